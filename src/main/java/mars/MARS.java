@@ -1,8 +1,16 @@
 package mars;
 
 import mars.coordinate.Coordinate;
+import mars.map.DerivedDataCache;
+import mars.map.ElevationStorage;
+import mars.map.GeoTIFF;
+import mars.map.GridTerrainMap;
+import mars.map.MapRegistry;
+import mars.rover.TraversabilityMask;
 import mars.ui.TerminalInterface;
 
+import java.io.File;
+
 /**
  * This class houses the main method which starts our program.
  */
@@ -14,7 +22,8 @@ public class MARS {
      */
     public static void main(String[] args) {
         TerminalInterface ti = new TerminalInterface();
-
+        double[] maskSlopes = null; //slopes to prebuild traversability masks for, instead of running the interface
+        boolean cleanCache = false; //delete outdated cache entries, instead of running the interface
 
         for( int i = 0; i < args.length; i++) {
             if(args[i].compareTo("-s") == 0){
@@ -67,6 +76,70 @@ public class MARS {
             if(args[i].compareTo("-col") == 0){
                 ti.coordType = "L";
             }
+            if(args[i].compareTo("-mmap") == 0){ //keep elevations in a memory-mapped sidecar file instead of the heap
+                GridTerrainMap.setDefaultStorage(ElevationStorage.MAPPED);
+            }
+            if(args[i].compareTo("-shared") == 0){ //map elevations from the -cachedir directory, shared with every other MARS process
+                GridTerrainMap.setDefaultStorage(ElevationStorage.SHARED);
+            }
+            if(args[i].compareTo("-quantize") == 0){ //keep elevations as 16-bit codes to quarter the memory of the map
+                GridTerrainMap.setDefaultStorage(ElevationStorage.QUANTIZED);
+            }
+            if(args[i].compareTo("-offheap") == 0){ //keep elevations in direct memory, for maps past 2^31 pixels
+                GridTerrainMap.setDefaultStorage(ElevationStorage.OFF_HEAP);
+            }
+            if(args[i].compareTo("-morton") == 0){ //keep elevations in Z-order tiles for better locality on wide maps
+                GridTerrainMap.setDefaultStorage(ElevationStorage.MORTON);
+            }
+            if(args[i].compareTo("-tiled") == 0){ //decode map tiles on demand, caching up to the given number of MB
+                GridTerrainMap.setDefaultStorage(ElevationStorage.TILED);
+                try{
+                    GeoTIFF.setTileCacheBytes(Long.parseLong(args[i+1]) * 1024 * 1024);
+                    i++;
+                }catch(Exception e){
+                    //no budget given; keep the default
+                }
+            }
+            if(args[i].compareTo("-decodethreads") == 0){ //threads used to decode a GeoTIFF as it loads
+                try{
+                    GeoTIFF.setDecodeThreads(Integer.parseInt(args[i+1]));
+                }catch(Exception e){
+                    System.out.println("Warning: Invalid input for decode threads");
+                }
+            }
+            if(args[i].compareTo("-mapbudget") == 0){ //MB loaded maps and the data worked out from them may use before older ones are dropped
+                try{
+                    MapRegistry.setMemoryBudget(Long.parseLong(args[i+1]) * 1024 * 1024);
+                }catch(Exception e){
+                    System.out.println("Warning: Invalid input for map memory budget");
+                }
+            }
+            if(args[i].compareTo("-cachedir") == 0){ //keep data derived from maps between runs, in the given directory or ~/.mars/cache
+                File directory = DerivedDataCache.getDefaultDirectory();
+                if(i + 1 < args.length && !args[i+1].startsWith("-")){
+                    directory = new File(args[i+1]);
+                    i++;
+                }
+                DerivedDataCache.setShared(new DerivedDataCache(directory));
+            }
+            if(args[i].compareTo("-nocache") == 0){ //recompute everything derived from the map on every run (the default)
+                DerivedDataCache.setShared(null);
+            }
+            if(args[i].compareTo("-cleancache") == 0){ //delete cache entries of maps which have changed since, then exit; run it while no other MARS is
+                cleanCache = true;
+            }
+            if(args[i].compareTo("-prebuildmasks") == 0){ //store the map's traversability masks for comma-separated slopes, then exit
+                try{
+                    String[] slopes = args[i+1].split(",");
+                    maskSlopes = new double[slopes.length];
+                    for(int j = 0; j < slopes.length; j++){
+                        maskSlopes[j] = Double.parseDouble(slopes[j].trim());
+                    }
+                }catch(Exception e){
+                    maskSlopes = null;
+                    System.out.println("Warning: Invalid input for mask slopes");
+                }
+            }
             if(args[i].compareTo("-o") == 0){
                 try{
                     ti.outputClass = args[i+1];
@@ -76,8 +149,57 @@ public class MARS {
             }
 
 
+        }
+        if(cleanCache){
+            cleanCache();
+            return;
+        }
+        if(maskSlopes != null){
+            prebuildMasks(ti.mapPath, maskSlopes);
+            return;
         }
         ti.promptUser();
     }
 
+    /**
+     * Deletes the entries of the cache directory (given by -cachedir, or the default one) which were derived from
+     * earlier contents of their maps.
+     */
+    private static void cleanCache() {
+        DerivedDataCache cache = DerivedDataCache.getShared();
+        if(cache == null){
+            cache = new DerivedDataCache(DerivedDataCache.getDefaultDirectory());
+        }
+        try{
+            System.out.println("Removed " + cache.removeStaleEntries() + " outdated entries from " + cache.getDirectory());
+        }catch(Exception e){
+            System.out.println("Could not clean the cache in " + cache.getDirectory() + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Works out and stores the traversability masks of a map for each of the given slopes, so later runs
+     * with those slopes map them from the cache instead of working them out.
+     * @param mapPath the map to build masks for
+     * @param slopes the maximum slopes, in degrees
+     */
+    private static void prebuildMasks(String mapPath, double[] slopes) {
+        if(DerivedDataCache.getShared() == null){
+            System.out.println("Warning: masks are only stored in a cache directory; give -cachedir to prebuild them");
+            return;
+        }
+        GridTerrainMap map;
+        try{
+            map = MapRegistry.getMap(mapPath);
+        }catch(Exception e){
+            System.out.println("Could not load map " + mapPath + ": " + e.getMessage());
+            return;
+        }
+        for(double slope : slopes){
+            long start = System.currentTimeMillis();
+            TraversabilityMask.get(map, slope);
+            System.out.println("Traversability for slope " + slope + " ready in " + (System.currentTimeMillis() - start) + " ms");
+        }
+    }
+
 }
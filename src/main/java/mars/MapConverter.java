@@ -0,0 +1,60 @@
+package mars;
+
+import mars.map.BinaryMapFormat;
+import mars.map.BinaryTerrainMap;
+import mars.map.ElevationStorage;
+import mars.map.GeoTIFF;
+
+import java.io.File;
+
+/**
+ * This class houses the method which converts a GeoTIFF into the native binary map format,
+ * which MARS can load far faster than the GeoTIFF itself (see BinaryMapFormat).
+ */
+public class MapConverter {
+
+    /**
+     * Converts a GeoTIFF into a binary map and checks that the result reads back intact.
+     * Usage: MapConverter input.tif [output.marsmap]
+     * The output defaults to the input path with its extension replaced by .marsmap.
+     * @param args path to the GeoTIFF, then optionally the path of the binary map to write
+     */
+    public static void main(String[] args) {
+        if (args.length < 1) {
+            System.out.println("Usage: MapConverter input.tif [output" + BinaryMapFormat.EXTENSION + "]");
+            return;
+        }
+        String input = args[0];
+        String output = args.length > 1 ? args[1] : getDefaultOutput(input);
+        try {
+            long start = System.currentTimeMillis();
+            GeoTIFF tiff = new GeoTIFF();
+            tiff.setStorage(ElevationStorage.TILED); //nothing needs decoding up front; writeBinaryMap reads the coverage strip by strip
+            tiff.initMap(input);
+            tiff.writeBinaryMap(new File(output));
+
+            BinaryTerrainMap converted = new BinaryTerrainMap();
+            converted.setStorage(ElevationStorage.MAPPED);
+            converted.initMap(output);
+            if (!converted.verifyChecksum()) {
+                System.out.println("Error: " + output + " does not match its checksum.");
+                return;
+            }
+            System.out.println("Wrote " + output + " (" + (int) converted.getWidth() + "x" + (int) converted.getHeight()
+                    + ") in " + (System.currentTimeMillis() - start) + " ms.");
+        } catch (Exception e) {
+            System.out.println("Error: could not convert " + input + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Returns the input path with its extension replaced by the binary map extension.
+     */
+    static String getDefaultOutput(String input) {
+        int dot = input.lastIndexOf('.');
+        int slash = Math.max(input.lastIndexOf('/'), input.lastIndexOf(File.separatorChar));
+        String base = dot > slash ? input.substring(0, dot) : input;
+        return base + BinaryMapFormat.EXTENSION;
+    }
+
+}
@@ -2,6 +2,8 @@ package mars.algorithm;
 
 import mars.coordinate.Coordinate;
 import mars.rover.MarsRover;
+import mars.rover.TraversabilityMask;
+import mars.rover.TraversableRegions;
 import mars.out.Output;
 import mars.map.TerrainMap;
 
@@ -20,4 +22,49 @@ public abstract class Algorithm {
 
     public abstract ArrayList<? extends Coordinate> getPath();
 
+    private TraversabilityMask traversability; //the rover's mask, fetched on the first edge check
+    private boolean traversabilityFetched; //true once traversability has been fetched, even if there is none
+
+    /**
+     * Returns whether this search may roam the whole map, so that state worked out for every coordinate of it
+     * (TraversabilityMask, TraversableRegions) can pay for itself. Limited searches only look at what is in the
+     * rover's field of view, and return false.
+     */
+    protected boolean searchesWholeMap() {
+        return true;
+    }
+
+    /**
+     * Returns whether the rover can move from one coordinate to another, exactly as MarsRover.canTraverse decides.
+     * A step to one of the 8 neighbors is a single lookup in the rover's TraversabilityMask, if the search and the
+     * map are worth one (see searchesWholeMap and MarsRover.usesWholeMapState); anything else asks the rover.
+     */
+    protected boolean canTraverse(Coordinate from, Coordinate to) {
+        if (!traversabilityFetched) {
+            traversability = searchesWholeMap() ? rover.getTraversabilityMask() : null;
+            traversabilityFetched = true;
+        }
+        if (traversability == null) {
+            return rover.canTraverse(from, to);
+        }
+        int direction = TraversabilityMask.direction(to.getX() - from.getX(), to.getY() - from.getY());
+        if (direction < 0) {
+            return rover.canTraverse(from, to);
+        }
+        return traversability.canTraverse(from.getX(), from.getY(), direction);
+    }
+
+    /**
+     * Returns false if the rover can never get from one coordinate to the other, because they lie in different
+     * TraversableRegions; a search can then give up at once instead of exhausting the start's region.
+     * True means a path may exist.
+     */
+    protected boolean mayReach(Coordinate from, Coordinate to) {
+        TraversableRegions regions = searchesWholeMap() ? rover.getTraversableRegions() : null;
+        if (regions == null) {
+            return true; //no regions worth labelling, so leave it to the search
+        }
+        return regions.mayConnect(from.getX(), from.getY(), to.getX(), to.getY());
+    }
+
 }
@@ -0,0 +1,93 @@
+package mars.algorithm;
+
+import mars.map.CellLayout;
+import mars.map.GridTerrainMap;
+import mars.map.RowMajorLayout;
+import mars.map.TerrainMap;
+
+/**
+ * A set of map cells for search state (visited, queued and so on), addressed by the long index of a CellLayout
+ * so it covers maps with more cells than an int can count. Sets made by forMap share the layout of the map's
+ * elevations, so a search marking cells touches the same neighborhoods of the set as it reads from the grid.
+ * Bits are kept in pages allocated the first time a cell in them is added, so a search touching a small part
+ * of a huge map only pays for the part it touches, and checking a cell is an array lookup instead of a list scan.
+ */
+public class CellSet {
+
+    private static final int PAGE_BITS = 16; //cells per page: 65536, i.e. 8 KB of bits
+    private static final int PAGE_MASK = (1 << PAGE_BITS) - 1;
+
+    private final CellLayout layout;
+    private final long[][] pages;
+    private long size;
+
+    /**
+     * Makes a set of the cells of a row-major width x height grid.
+     */
+    public CellSet(int width, int height) {
+        this(new RowMajorLayout(width, height));
+    }
+
+    public CellSet(CellLayout layout) {
+        this.layout = layout;
+        pages = new long[(int) ((layout.size() + PAGE_MASK) >>> PAGE_BITS)][];
+    }
+
+    /**
+     * Makes a set of the coordinates of a map, from 0 to its width and height inclusive as getValue accepts,
+     * laid out like the map's elevations if they are loaded (see GridTerrainMap.getLatticeLayout).
+     */
+    public static CellSet forMap(TerrainMap map) throws Exception {
+        if (map instanceof GridTerrainMap && ((GridTerrainMap) map).getElevationGrid() != null) {
+            return new CellSet(((GridTerrainMap) map).getLatticeLayout());
+        }
+        return new CellSet((int) map.getWidth() + 1, (int) map.getHeight() + 1);
+    }
+
+    /**
+     * Returns whether (x, y) is in the set. Cells off the map never are.
+     */
+    public boolean contains(int x, int y) {
+        if (!layout.contains(x, y)) {
+            return false;
+        }
+        long cell = layout.index(x, y);
+        long[] page = pages[(int) (cell >>> PAGE_BITS)];
+        int bit = (int) cell & PAGE_MASK;
+        return page != null && (page[bit >>> 6] & (1L << bit)) != 0;
+    }
+
+    /**
+     * Adds (x, y) to the set. Cells off the map are never added.
+     *
+     * @return true if the cell is on the map and was not in the set already
+     */
+    public boolean add(int x, int y) {
+        if (!layout.contains(x, y)) {
+            return false;
+        }
+        long cell = layout.index(x, y);
+        int pageIndex = (int) (cell >>> PAGE_BITS);
+        long[] page = pages[pageIndex];
+        if (page == null) {
+            page = new long[1 << (PAGE_BITS - 6)];
+            pages[pageIndex] = page;
+        }
+        int bit = (int) cell & PAGE_MASK;
+        long mask = 1L << bit;
+        if ((page[bit >>> 6] & mask) != 0) {
+            return false;
+        }
+        page[bit >>> 6] |= mask;
+        size++;
+        return true;
+    }
+
+    /**
+     * Returns how many cells are in the set.
+     */
+    public long size() {
+        return size;
+    }
+
+}
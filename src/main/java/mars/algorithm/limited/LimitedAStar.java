@@ -56,6 +56,11 @@ public class LimitedAStar extends Algorithm {
         outputClass = "TerminalOutput";
     }
 
+    @Override
+    protected boolean searchesWholeMap() {
+        return false; //only ever looks within the rover's field of view
+    }
+
     /**
      * Method which starts this search algorithm.
      */
@@ -211,17 +216,13 @@ public class LimitedAStar extends Algorithm {
         for (int i = x-1; i <= x+1; i++) {
             for (int j = y-1; j <= y+1; j++) {
                 if (!(i == x && j == y) && checkIfViewed(new Coordinate(i,j))) { //check if valid for limited TODO: first element probably can be removed
-                    try {
-                        AStarCoordinate potentialNeighbor = new AStarCoordinate(i, j);
-                        potentialNeighbor.setCostSoFar(costSoFar+1); //TODO: diagonals should technically add sqrt(2), not 1
-                        potentialNeighbor.setParent(coord);
-                        //TODO: Address issues with MarsRover.canTraverse (are we using Robert's idea?)
-                        if (rover.canTraverse(coord, potentialNeighbor)
-                                && !coordHasBeenVisited(potentialNeighbor)) { //if rover could visit this coordinate and hasn't already, add it
-                            neighbors.add(potentialNeighbor);
-                        }
-                    } catch (Exception e) {
-                        //"potentialNeighbor" was out of bounds of the map, so no-op.
+                    AStarCoordinate potentialNeighbor = new AStarCoordinate(i, j);
+                    potentialNeighbor.setCostSoFar(costSoFar+1); //TODO: diagonals should technically add sqrt(2), not 1
+                    potentialNeighbor.setParent(coord);
+                    //TODO: Address issues with MarsRover.canTraverse (are we using Robert's idea?)
+                    if (canTraverse(coord, potentialNeighbor)
+                            && !coordHasBeenVisited(potentialNeighbor)) { //if rover could visit this coordinate and hasn't already, add it
+                        neighbors.add(potentialNeighbor);
                     }
                 }
             }
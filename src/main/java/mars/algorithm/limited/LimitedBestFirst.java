@@ -40,6 +40,11 @@ public class LimitedBestFirst extends Algorithm {
         return path;
     }
 
+    @Override
+    protected boolean searchesWholeMap() {
+        return false; //only ever looks within the rover's field of view
+    }
+
     public void findPath() throws Exception {
         if(fieldOfView < 3) throw new Exception("WARNING: Field of view should be set to 3 or higher."); //interim goal calculations don't work with 1 or 2
         path.add(new BestFirstCoordinate(rover.getStartPosition())); //start coord
@@ -192,15 +197,11 @@ public class LimitedBestFirst extends Algorithm {
         for (int i = x-1; i <= x+1; i++) {
             for (int j = y-1; j <= y+1; j++) {
                 if (!(i == x && j == y) && checkIfViewed(new Coordinate(i,j))) { //if this is not the given coordinate "coord"
-                    try {
-                        BestFirstCoordinate potentialNeighbor = new BestFirstCoordinate(i, j);
-                        potentialNeighbor.setParent(coord);
-
-                        if (rover.canTraverse(coord, potentialNeighbor)) { //if rover could visit this coordinate, add it
-                            neighbors.add(potentialNeighbor);
-                        }
-                    } catch (Exception e) {
-                        //"potentialNeighbor" was out of bounds of the map, so no-op.
+                    BestFirstCoordinate potentialNeighbor = new BestFirstCoordinate(i, j);
+                    potentialNeighbor.setParent(coord);
+
+                    if (canTraverse(coord, potentialNeighbor)) { //if rover could visit this coordinate, add it
+                        neighbors.add(potentialNeighbor);
                     }
                 }
             }
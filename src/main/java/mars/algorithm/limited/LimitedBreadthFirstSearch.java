@@ -1,6 +1,7 @@
 package mars.algorithm.limited;
 
 import mars.algorithm.Algorithm;
+import mars.algorithm.CellSet;
 import mars.coordinate.Coordinate;
 import mars.rover.MarsRover;
 
@@ -47,6 +48,11 @@ public class LimitedBreadthFirstSearch extends Algorithm {
 
 	public ArrayList<Coordinate> getPath() {return fullPath;}
 
+	@Override
+	protected boolean searchesWholeMap() {
+		return false; //only ever looks within the rover's field of view
+	}
+
 	public void findPath() throws Exception {
         if(fieldOfView < 3) throw new Exception("WARNING: Field of view should be set to 3 or higher."); //interim goal calculations don't work with 1 or 2
         fullPath.add(rover.getStartPosition()); //start coord
@@ -104,15 +110,21 @@ public class LimitedBreadthFirstSearch extends Algorithm {
 		// Create a queue for BFS
 		LinkedList<Node> queue = new LinkedList<Node>();
 		List<Node> visitedList = new ArrayList<Node>();
+		// Cells dequeued so far, and cells ever queued, for lookups instead of scans of the lists.
+		// Every coordinate getValue accepts, laid out like the map's elevations.
+		CellSet visited = CellSet.forMap(map);
+		CellSet queued = CellSet.forMap(map);
 
 		//set all vertices to be equal to not visited
 		queue.add(startNode);
+		queued.add(startPosition.getX(), startPosition.getY());
 
 		while (queue.size() != 0) {
 
 			//dequeue and print
 			Node currentNode = queue.remove();
 			visitedList.add(currentNode);
+			visited.add(currentNode.getPosition().getX(), currentNode.getPosition().getY());
 
 			if(currentIsGoal(currentNode, goalNode)) {
 				ArrayList<Coordinate> path = constructPath(currentNode);
@@ -129,15 +141,17 @@ public class LimitedBreadthFirstSearch extends Algorithm {
 			// For each neighbor node...
 			for (Node neighbor : neighborList) {
 				// Ignore neighbors if it's too steep and we can't go there.
-				if(!rover.canTraverse(currentNode.getPosition(), neighbor.getPosition())) {
+				if(!canTraverse(currentNode.getPosition(), neighbor.getPosition())) {
 					continue;
 				}
+				int x = neighbor.getPosition().getX();
+				int y = neighbor.getPosition().getY();
 				// Ignore neighbors if we've already evaluated them.
-				if(isNodeInList(neighbor, visitedList)) {
+				if(visited.contains(x, y)) {
 					continue;
 				}
 				// If we're at an undiscovered node...
-				if(!isNodeInList(neighbor, queue)) {
+				if(queued.add(x, y)) {
 					queue.add(neighbor);
 				}
 
@@ -204,23 +218,6 @@ public class LimitedBreadthFirstSearch extends Algorithm {
         return Math.sqrt((Math.pow((x2-x1),2) + Math.pow((y2-y1),2)));
     }
 
-	/**
-	 * Check if there is a node matching ours in a list
-	 * @param node node to test for
-	 * @param list list to check
-	 * @return boolean whether node is in list
-	 */
-	private boolean isNodeInList(Node node, List<Node> list) {
-		int x = node.getPosition().getX();
-		int y = node.getPosition().getY();
-		for (Node n : list) {
-			int tmpX = n.getPosition().getX();
-			int tmpY = n.getPosition().getY();
-			if ((x == tmpX) && (y == tmpY)) {return true;}
-		}
-		return false;
-	}
-
 	/**
 	 * Constructs a path for BreadthFirst by traversing nodes' parents.
 	 * @param currentNode node to start traversing
@@ -41,6 +41,11 @@ public class LimitedDijkstra extends Algorithm {
         return fullPath;
     }
 
+    @Override
+    protected boolean searchesWholeMap() {
+        return false; //only ever looks within the rover's field of view
+    }
+
     public void findPath() throws Exception{
         if(fieldOfView < 3) throw new Exception("WARNING: Field of view should be set to 3 or higher."); //interim goal calculations don't work with 1 or 2
         fullPath.add(rover.getStartPosition());
@@ -255,7 +260,7 @@ public class LimitedDijkstra extends Algorithm {
                             if (nodeVector.get(q).getPosition().getX() == currentX &&
                                     nodeVector.get(q).getPosition().getY() == currentY) {
                                 // Alter node within vector.
-                                if (rover.canTraverse(minNode.getPosition(), currentNode.getPosition())) {
+                                if (canTraverse(minNode.getPosition(), currentNode.getPosition())) {
                                     nodeVector.get(q).setDistanceFromStart(totalDist);
                                     nodeVector.get(q).setParent(minNode);
 
@@ -49,6 +49,11 @@ public class LimitedGreedy extends Algorithm {
         outputClass = "TerminalOutput";
     }
 
+    @Override
+    protected boolean searchesWholeMap() {
+        return false; //only ever looks within the rover's field of view
+    }
+
     /*
      * Method which starts this search algorithm.
      */
@@ -124,7 +129,7 @@ public class LimitedGreedy extends Algorithm {
             while(stepped){
                 if(preferences.size() > 0){
                     checkNode = preferences.get(0); //if we actually were able to make that node, and it has a good slope, and we haven't visited it yet, go there
-                    if(checkNode != null && rover.canTraverse(currentNode, checkNode) && !checkNode.isVisited()){
+                    if(checkNode != null && canTraverse(currentNode, checkNode) && !checkNode.isVisited()){
                         currentNode = checkNode;
                         coords.add(currentNode);
                         fullcoords.add(currentNode);
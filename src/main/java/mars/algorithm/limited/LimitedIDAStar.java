@@ -43,6 +43,11 @@ public class LimitedIDAStar extends Algorithm {
      */
     public ArrayList<? extends Coordinate> getPath() { return path; }
 
+    @Override
+    protected boolean searchesWholeMap() {
+        return false; //only ever looks within the rover's field of view
+    }
+
     /**
      * Method which starts this search algorithm.
      */
@@ -187,19 +192,15 @@ public class LimitedIDAStar extends Algorithm {
         for (int i = x-1; i <= x+1; i++) {
             for (int j = y-1; j <= y+1; j++) {
                 if (!(i == x && j == y) && checkIfViewed(new Coordinate(i,j))) { //if this is not the given coordinate "coord".
-                    try {
-                        AStarCoordinate potentialNeighbor = new AStarCoordinate(i, j);
-                        if (i == x || j == y) {
-                            potentialNeighbor.setCostSoFar(costSoFar+1);
-                        } else {
-                            potentialNeighbor.setCostSoFar(costSoFar+sqrt(2));
-                        }
-                        potentialNeighbor.setParent(coord);
-                        if (rover.canTraverse(coord, potentialNeighbor)) { //if rover could visit this coordinate
-                            neighbors.add(potentialNeighbor);
-                        }
-                    } catch (Exception e) {
-                        //"potentialNeighbor" was out of bounds of the map, so no-op.
+                    AStarCoordinate potentialNeighbor = new AStarCoordinate(i, j);
+                    if (i == x || j == y) {
+                        potentialNeighbor.setCostSoFar(costSoFar+1);
+                    } else {
+                        potentialNeighbor.setCostSoFar(costSoFar+sqrt(2));
+                    }
+                    potentialNeighbor.setParent(coord);
+                    if (canTraverse(coord, potentialNeighbor)) { //if rover could visit this coordinate
+                        neighbors.add(potentialNeighbor);
                     }
                 }
             }
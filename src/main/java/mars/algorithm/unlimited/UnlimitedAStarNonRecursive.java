@@ -1,6 +1,7 @@
 package mars.algorithm.unlimited;
 
 import mars.algorithm.Algorithm;
+import mars.algorithm.CellSet;
 import mars.coordinate.Coordinate;
 import mars.out.MapImageOutput;
 import mars.out.OutputFactory;
@@ -54,8 +55,15 @@ public class UnlimitedAStarNonRecursive extends Algorithm {
         Coordinate startPosition = rover.getStartPosition();
         Coordinate endPosition= rover.getEndPosition();
 
+        if (!mayReach(startPosition, endPosition)) {
+            throw new Exception("WARNING: A path to the goal could not be found.");
+        }
+
         List<Node> openList = new ArrayList<Node>();
-        List<Node> closedList = new ArrayList<Node>();
+        // Cells evaluated so far, and cells ever opened; sets rather than lists so each check is a lookup, not a scan.
+        // Every coordinate getValue accepts, laid out like the map's elevations.
+        CellSet closed = CellSet.forMap(map);
+        CellSet opened = CellSet.forMap(map);
 
         Node startNode = new Node(startPosition);
         Node goalNode = new Node(endPosition);
@@ -65,6 +73,7 @@ public class UnlimitedAStarNonRecursive extends Algorithm {
         startNode.setParent(null);
 
         openList.add(startNode);
+        opened.add(startPosition.getX(), startPosition.getY());
 
         // While the open set isn't empty...
         while (!openList.isEmpty()) {
@@ -78,7 +87,7 @@ public class UnlimitedAStarNonRecursive extends Algorithm {
             }
 
             openList.remove(currentNode);
-            closedList.add(currentNode);
+            closed.add(currentNode.getPosition().getX(), currentNode.getPosition().getY());
 
             // Get the list of neighbor nodes.
             List<Node> neighborList = getNeighbors(currentNode);
@@ -86,14 +95,16 @@ public class UnlimitedAStarNonRecursive extends Algorithm {
             for (Node neighbor: neighborList) {
                 double tentativeGScore = Double.POSITIVE_INFINITY;
                 // Ignore neighbors if it's too steep and we can't go there.
-                if (rover.canTraverse(currentNode.getPosition(), neighbor.getPosition())) {
+                if (canTraverse(currentNode.getPosition(), neighbor.getPosition())) {
+                    int x = neighbor.getPosition().getX();
+                    int y = neighbor.getPosition().getY();
 
                     // Ignore neighbors if we've already evaluated them.
-                    if (isNodeInList(neighbor, closedList)) {
+                    if (closed.contains(x, y)) {
                         continue;
                     }
                     // If we're at an undiscovered node...
-                    if (!isNodeInList(neighbor, openList)) {
+                    if (opened.add(x, y)) {
                         openList.add(neighbor);
                     }
 
@@ -106,9 +117,6 @@ public class UnlimitedAStarNonRecursive extends Algorithm {
                         continue;
                     }
                 }
-                else {
-                    closedList.add(currentNode);
-                }
 
                 // If we get to this point, the path is optimal up to this point.
                 // So, we record the current Node for the full path.
@@ -126,23 +134,6 @@ public class UnlimitedAStarNonRecursive extends Algorithm {
 
     }
 
-    /**
-     * Check if there is a node matching ours in a list
-     * @param node node to test for
-     * @param list list to check
-     * @return boolean whether node is in list
-     */
-    private boolean isNodeInList(Node node, List<Node> list) {
-        int x = node.getPosition().getX();
-        int y = node.getPosition().getY();
-        for (Node n : list) {
-            int tmpX = n.getPosition().getX();
-            int tmpY = n.getPosition().getY();
-            if ((x == tmpX) && (y == tmpY)) {return true;}
-        }
-        return false;
-    }
-
     /**
      * Constructs a path for A* by traversing nodes' parents.
      * @param currentNode node to start traversing
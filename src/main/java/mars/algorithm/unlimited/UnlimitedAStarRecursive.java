@@ -127,17 +127,13 @@ public class UnlimitedAStarRecursive extends Algorithm {
         for (int i = x-1; i <= x+1; i++) {
             for (int j = y-1; j <= y+1; j++) {
                 if (!(i == x && j == y)) { //if this is not the given coordinate "coord". TODO: probably not needed now because of visited set logic
-                    try {
-                        AStarCoordinate potentialNeighbor = new AStarCoordinate(i, j);
-                        potentialNeighbor.setCostSoFar(costSoFar+1); //TODO: diagonals should technically add sqrt(2), not 1
-                        potentialNeighbor.setParent(coord);
-                        //TODO: Address issues with MarsRover.canTraverse (are we using Robert's idea?)
-                        if (rover.canTraverse(coord, potentialNeighbor)
-                                && !coordHasBeenVisited(potentialNeighbor)) { //if rover could visit this coordinate and hasn't already, add it
-                            neighbors.add(potentialNeighbor);
-                        }
-                    } catch (Exception e) {
-                        //"potentialNeighbor" was out of bounds of the map, so no-op.
+                    AStarCoordinate potentialNeighbor = new AStarCoordinate(i, j);
+                    potentialNeighbor.setCostSoFar(costSoFar+1); //TODO: diagonals should technically add sqrt(2), not 1
+                    potentialNeighbor.setParent(coord);
+                    //TODO: Address issues with MarsRover.canTraverse (are we using Robert's idea?)
+                    if (canTraverse(coord, potentialNeighbor)
+                            && !coordHasBeenVisited(potentialNeighbor)) { //if rover could visit this coordinate and hasn't already, add it
+                        neighbors.add(potentialNeighbor);
                     }
                 }
             }
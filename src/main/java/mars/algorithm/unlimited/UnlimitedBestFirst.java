@@ -1,6 +1,7 @@
 package mars.algorithm.unlimited;
 
 import mars.algorithm.Algorithm;
+import mars.algorithm.CellSet;
 import mars.coordinate.BestFirstCoordinate;
 import mars.coordinate.Coordinate;
 import mars.out.TerminalOutput;
@@ -56,10 +57,12 @@ public class UnlimitedBestFirst extends Algorithm {
         BestFirstCoordinate startPosition = new BestFirstCoordinate(rover.getStartPosition());
         BestFirstCoordinate endPosition = new BestFirstCoordinate(rover.getEndPosition());
 
-        ArrayList<BestFirstCoordinate> closed = new ArrayList<BestFirstCoordinate>();
         ArrayList<BestFirstCoordinate> open = new ArrayList<BestFirstCoordinate>();
-        boolean validNeighbor = false;
+        // Cells ever opened, closed ones included; a set rather than a list so each check is a lookup, not a scan.
+        // Every coordinate getValue accepts, laid out like the map's elevations.
+        CellSet opened = CellSet.forMap(map);
         open.add(startPosition);
+        opened.add(startPosition.getX(), startPosition.getY());
 
         BestFirstCoordinate current;
         ArrayList<BestFirstCoordinate> neighbors = new ArrayList<BestFirstCoordinate>();
@@ -75,25 +78,11 @@ public class UnlimitedBestFirst extends Algorithm {
                 foundSolution = true;
                 break;
             }
-            closed.add(current);
             open.remove(current);
             neighbors = getReachableNeighbors(current);
 
             for(BestFirstCoordinate n : neighbors){
-                validNeighbor = true;
-                for(BestFirstCoordinate m : closed){
-                    if(m.equals(n)){
-                        validNeighbor = false;
-                        break;
-                    }
-                }
-                for(BestFirstCoordinate m : open){
-                    if(m.equals(n)){
-                        validNeighbor = false;
-                        break;
-                    }
-                }
-                if(validNeighbor){
+                if(opened.add(n.getX(), n.getY())){ //neither open nor closed yet
                     open.add(n);
                 }
             }
@@ -121,15 +110,11 @@ public class UnlimitedBestFirst extends Algorithm {
         for (int i = x-1; i <= x+1; i++) {
             for (int j = y-1; j <= y+1; j++) {
                 if (!(i == x && j == y)) { //if this is not the given coordinate "coord"
-                    try {
-                        BestFirstCoordinate potentialNeighbor = new BestFirstCoordinate(i, j);
-                        potentialNeighbor.setParent(coord);
-
-                        if (rover.canTraverse(coord, potentialNeighbor)) { //if rover could visit this coordinate, add it
-                            neighbors.add(potentialNeighbor);
-                        }
-                    } catch (Exception e) {
-                        //"potentialNeighbor" was out of bounds of the map, so no-op.
+                    BestFirstCoordinate potentialNeighbor = new BestFirstCoordinate(i, j);
+                    potentialNeighbor.setParent(coord);
+
+                    if (canTraverse(coord, potentialNeighbor)) { //if rover could visit this coordinate, add it
+                        neighbors.add(potentialNeighbor);
                     }
                 }
             }
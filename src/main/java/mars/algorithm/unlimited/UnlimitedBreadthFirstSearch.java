@@ -1,6 +1,7 @@
 package mars.algorithm.unlimited;
 
 import mars.algorithm.Algorithm;
+import mars.algorithm.CellSet;
 import mars.coordinate.Coordinate;
 import mars.out.MapImageOutput;
 import mars.out.OutputFactory;
@@ -54,22 +55,30 @@ public class UnlimitedBreadthFirstSearch extends Algorithm {
 		Coordinate startPosition = rover.getStartPosition();
 		Coordinate endPosition = rover.getEndPosition();
 
+		if (!mayReach(startPosition, endPosition)) {
+			throw new Exception("WARNING: A path to the goal could not be found.");
+		}
+
 		Node startNode = new Node(startPosition);
 		Node goalNode = new Node(endPosition);
 
 		// Create a queue for BFS
 		LinkedList<Node> queue = new LinkedList<Node>();
-		List<Node> visitedList = new ArrayList<Node>();
+		// Cells dequeued so far, and cells ever queued; sets rather than lists so each check is a lookup, not a scan.
+		// Every coordinate getValue accepts, laid out like the map's elevations.
+		CellSet visited = CellSet.forMap(map);
+		CellSet queued = CellSet.forMap(map);
 
 
 		//set all vertices to be equal to not visited
 		queue.add(startNode);
+		queued.add(startPosition.getX(), startPosition.getY());
 
 		while (queue.size() != 0) {
 
 			//dequeue and print
 			Node currentNode = queue.remove();
-			visitedList.add(currentNode);
+			visited.add(currentNode.getPosition().getX(), currentNode.getPosition().getY());
 
 			if(currentIsGoal(currentNode, goalNode)) {
 			    success = true;
@@ -86,15 +95,17 @@ public class UnlimitedBreadthFirstSearch extends Algorithm {
 			// For each neighbor node...
 			for (Node neighbor : neighborList) {
 				// Ignore neighbors if it's too steep and we can't go there.
-				if(!rover.canTraverse(currentNode.getPosition(), neighbor.getPosition())) {
+				if(!canTraverse(currentNode.getPosition(), neighbor.getPosition())) {
 					continue;
 				}
+				int x = neighbor.getPosition().getX();
+				int y = neighbor.getPosition().getY();
 				// Ignore neighbors if we've already evaluated them.
-				if(isNodeInList(neighbor, visitedList)) {
+				if(visited.contains(x, y)) {
 					continue;
 				}
 				// If we're at an undiscovered node...
-				if(!isNodeInList(neighbor, queue)) {
+				if(queued.add(x, y)) {
 					queue.add(neighbor);
 				}
 
@@ -110,23 +121,6 @@ public class UnlimitedBreadthFirstSearch extends Algorithm {
 
 	}
 
-	/**
-	 * Check if there is a node matching ours in a list
-	 * @param node node to test for
-	 * @param list list to check
-	 * @return boolean whether node is in list
-	 */
-	private boolean isNodeInList(Node node, List<Node> list) {
-		int x = node.getPosition().getX();
-		int y = node.getPosition().getY();
-		for (Node n : list) {
-			int tmpX = n.getPosition().getX();
-			int tmpY = n.getPosition().getY();
-			if ((x == tmpX) && (y == tmpY)) {return true;}
-		}
-		return false;
-	}
-
 	/**
 	 * Constructs a path for BreadthFirst by traversing nodes' parents.
 	 * @param currentNode node to start traversing
@@ -48,6 +48,10 @@ public class UnlimitedDijkstra extends Algorithm {
         DijkstraNode startNode = new DijkstraNode(rover.getStartPosition());
         DijkstraNode goalNode = new DijkstraNode(rover.getEndPosition());
 
+        if (!mayReach(startNode.getPosition(), goalNode.getPosition())) {
+            throw new Exception("WARNING: A path to the goal could not be found.");
+        }
+
         int startX = startNode.getPosition().getX();
         int startY = startNode.getPosition().getY();
 
@@ -184,7 +188,7 @@ public class UnlimitedDijkstra extends Algorithm {
                             if (nodeVector.get(q).getPosition().getX() == currentX &&
                                     nodeVector.get(q).getPosition().getY() == currentY) {
                                 // Alter node within vector.
-                                if (rover.canTraverse(minNode.getPosition(), currentNode.getPosition())) {
+                                if (canTraverse(minNode.getPosition(), currentNode.getPosition())) {
                                     nodeVector.get(q).setDistanceFromStart(totalDist);
                                     nodeVector.get(q).setParent(minNode);
 
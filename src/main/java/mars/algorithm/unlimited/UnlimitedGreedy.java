@@ -124,7 +124,7 @@ public class UnlimitedGreedy extends Algorithm {
             while(stepped){
                 if(preferences.size() > 0){
                     checkNode = preferences.get(0); //if we actually were able to make that node, and it has a good slope, and we haven't visited it yet, go there
-                    if(checkNode != null && rover.canTraverse(currentNode, checkNode) && !checkNode.isVisited()){
+                    if(checkNode != null && canTraverse(currentNode, checkNode) && !checkNode.isVisited()){
                         currentNode = checkNode;
                         coords.add(currentNode);
                         fullcoords.add(currentNode);
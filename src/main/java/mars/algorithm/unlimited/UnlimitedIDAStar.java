@@ -104,19 +104,15 @@ public class UnlimitedIDAStar extends Algorithm {
         for (int i = x-1; i <= x+1; i++) {
             for (int j = y-1; j <= y+1; j++) {
                 if (!(i == x && j == y)) { //if this is not the given coordinate "coord".
-                    try {
-                        AStarCoordinate potentialNeighbor = new AStarCoordinate(i, j);
-                        if (i == x || j == y) {
-                            potentialNeighbor.setCostSoFar(costSoFar+1);
-                        } else {
-                            potentialNeighbor.setCostSoFar(costSoFar+sqrt(2));
-                        }
-                        potentialNeighbor.setParent(coord);
-                        if (rover.canTraverse(coord, potentialNeighbor)) { //if rover could visit this coordinate
-                            neighbors.add(potentialNeighbor);
-                        }
-                    } catch (Exception e) {
-                        //"potentialNeighbor" was out of bounds of the map, so no-op.
+                    AStarCoordinate potentialNeighbor = new AStarCoordinate(i, j);
+                    if (i == x || j == y) {
+                        potentialNeighbor.setCostSoFar(costSoFar+1);
+                    } else {
+                        potentialNeighbor.setCostSoFar(costSoFar+sqrt(2));
+                    }
+                    potentialNeighbor.setParent(coord);
+                    if (canTraverse(coord, potentialNeighbor)) { //if rover could visit this coordinate
+                        neighbors.add(potentialNeighbor);
                     }
                 }
             }
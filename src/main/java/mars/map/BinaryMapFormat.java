@@ -0,0 +1,265 @@
+package mars.map;
+
+import java.awt.Rectangle;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.zip.CRC32;
+
+/**
+ * The native MARS map format: a fixed-size header followed by the raw elevation samples, so a map can be
+ * read with a single bulk copy or memory-mapped as is, with no GeoTIFF decoding at all.
+ *
+ * Layout (all values little-endian):
+ * <pre>
+ *   int       magic ("MARS")
+ *   int       format version
+ *   int       width
+ *   int       height
+ *   int       bytes per sample (4 for floats, 8 for doubles)
+ *   int       reserved (0)
+ *   double[6] grid-to-world transform, in the order of AffineTransform.getMatrix
+ *   double    no-data value (NaN if the map has none)
+ *   long      CRC-32 of the sample bytes
+ *   double[6] pixel-to-{longitude, latitude} transform (all NaN if the map has none), since version 2
+ *   ...       zero padding up to the header size (128 bytes in version 1, 256 since version 2)
+ *   width * height samples in row-major order
+ * </pre>
+ */
+public class BinaryMapFormat {
+
+    public static final String EXTENSION = ".marsmap";
+    public static final int VERSION = 2;
+    static final int MAGIC = 0x4D415253; //"MARS"
+    static final int HEADER_BYTES = 256;
+    private static final int VERSION_1_HEADER_BYTES = 128;
+
+    /**
+     * The header of a binary map file.
+     */
+    public static class Header {
+        public final int version;
+        public final int width;
+        public final int height;
+        public final int sampleBytes;
+        public final GridTransform transform;
+        public final double noData;
+        public final long checksum;
+        public final GridTransform geographic; //null if the map has no geographic reference
+        public final int dataOffset; //where the samples start
+
+        Header(int version, int width, int height, int sampleBytes, GridTransform transform, double noData, long checksum,
+               GridTransform geographic) {
+            this.version = version;
+            this.width = width;
+            this.height = height;
+            this.sampleBytes = sampleBytes;
+            this.transform = transform;
+            this.noData = noData;
+            this.checksum = checksum;
+            this.geographic = geographic;
+            this.dataOffset = version == 1 ? VERSION_1_HEADER_BYTES : HEADER_BYTES;
+        }
+
+        /**
+         * Returns how many bytes of samples follow the header.
+         */
+        public long getSampleBytes() {
+            return (long) width * height * sampleBytes;
+        }
+    }
+
+    /**
+     * Reads and checks the header of a binary map.
+     *
+     * @param channel an open channel on the file
+     * @param file the file, for error messages
+     * @return the header
+     * @throws IOException if the file is not a binary map, is from a newer version, or is truncated
+     */
+    public static Header readHeader(FileChannel channel, File file) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        while (buffer.hasRemaining() && channel.read(buffer, buffer.position()) > 0) {
+            //keep reading until the header is full or the file ends
+        }
+        buffer.flip();
+        if (buffer.remaining() < VERSION_1_HEADER_BYTES || buffer.getInt() != MAGIC) {
+            throw new IOException("Not a binary map: " + file);
+        }
+        int version = buffer.getInt();
+        if (version > VERSION) {
+            throw new IOException("Binary map " + file + " is version " + version + "; this build reads up to version " + VERSION);
+        }
+        int width = buffer.getInt();
+        int height = buffer.getInt();
+        int sampleBytes = buffer.getInt();
+        buffer.getInt(); //reserved
+        if (width <= 0 || height <= 0 || (sampleBytes != 4 && sampleBytes != 8)) {
+            throw new IOException("Corrupt binary map header: " + file);
+        }
+        double[] gridToWorld = readMatrix(buffer);
+        double noData = buffer.getDouble();
+        long checksum = buffer.getLong();
+        GridTransform geographic = null;
+        if (version >= 2) {
+            if (buffer.limit() < HEADER_BYTES) {
+                throw new IOException("Truncated binary map: " + file);
+            }
+            double[] pixelToGeographic = readMatrix(buffer);
+            if (!Double.isNaN(pixelToGeographic[0])) {
+                geographic = new GridTransform(pixelToGeographic);
+            }
+        }
+
+        Header header = new Header(version, width, height, sampleBytes, new GridTransform(gridToWorld), noData, checksum, geographic);
+        if (channel.size() < header.dataOffset + header.getSampleBytes()) {
+            throw new IOException("Truncated binary map: " + file);
+        }
+        return header;
+    }
+
+    private static double[] readMatrix(ByteBuffer buffer) {
+        double[] matrix = new double[6];
+        for (int i = 0; i < matrix.length; i++) {
+            matrix[i] = buffer.getDouble();
+        }
+        return matrix;
+    }
+
+    /**
+     * Writes band 0 of the given image as a binary map, one strip of rows at a time.
+     * Int and double samples are stored as doubles, everything else as floats (as in ElevationGrid.fromImage).
+     * The file is written under a temporary name unique to this writer and atomically moved into place once complete,
+     * so a reader never sees a half-written map, and processes writing the same map at once can't corrupt it.
+     *
+     * @param image the map image
+     * @param transform the map's grid-to-world transform
+     * @param geographic the map's pixel-to-{longitude, latitude} transform, or null if it has none
+     * @param noData the map's no-data value, or NaN if it has none
+     * @param out where the binary map should end up
+     * @throws IOException if the file cannot be written
+     */
+    public static void write(RenderedImage image, GridTransform transform, GridTransform geographic, double noData, File out)
+            throws IOException {
+        write(new ImageRegionSource(image), transform, geographic, noData, out);
+    }
+
+    /**
+     * Version of write(RenderedImage, ...) reading a RegionSource, such as a map file read directly by TiffRegionSource.
+     *
+     * @throws IOException if the source cannot be read or the file cannot be written
+     */
+    public static void write(RegionSource source, GridTransform transform, GridTransform geographic, double noData, File out)
+            throws IOException {
+        File directory = out.getAbsoluteFile().getParentFile();
+        File temp = File.createTempFile(out.getName(), ".tmp", directory);
+        try {
+            RandomAccessFile file = new RandomAccessFile(temp, "rw");
+            try {
+                write(source, transform, geographic, noData, file.getChannel());
+                file.getChannel().force(false);
+            } finally {
+                file.close();
+            }
+            Files.move(temp.toPath(), out.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            temp.delete(); //no-op once moved
+        }
+    }
+
+    /**
+     * Writes band 0 of the given image as a binary map into an empty channel, for callers which manage the file
+     * themselves (such as DerivedDataCache entries).
+     *
+     * @throws IOException if the channel cannot be written
+     */
+    public static void write(RenderedImage image, GridTransform transform, GridTransform geographic, double noData,
+                             FileChannel channel) throws IOException {
+        write(new ImageRegionSource(image), transform, geographic, noData, channel);
+    }
+
+    /**
+     * Version of write(RenderedImage, ..., FileChannel) reading a RegionSource.
+     *
+     * @throws IOException if the source cannot be read or the channel cannot be written
+     */
+    public static void write(RegionSource source, GridTransform transform, GridTransform geographic, double noData,
+                             FileChannel channel) throws IOException {
+        int width = source.getWidth();
+        int height = source.getHeight();
+        int sampleBytes = ElevationGrid.isDoubleSampled(source.getDataType()) ? 8 : 4;
+        CRC32 crc = new CRC32();
+
+        channel.truncate(0);
+        channel.position(HEADER_BYTES); //the header goes in last, once the checksum is known
+
+        RegionSource.Reader reader = source.open();
+        try {
+            for (int row = 0; row < height; row += ElevationGrid.STRIP_HEIGHT) {
+                int rows = Math.min(ElevationGrid.STRIP_HEIGHT, height - row);
+                Raster strip = reader.read(new Rectangle(0, row, width, rows));
+                ByteBuffer samples = ByteBuffer.allocate(width * rows * sampleBytes).order(ByteOrder.LITTLE_ENDIAN);
+                if (sampleBytes == 8) {
+                    samples.asDoubleBuffer().put(strip.getSamples(strip.getMinX(), strip.getMinY(), width, rows, 0, (double[]) null));
+                } else {
+                    samples.asFloatBuffer().put(strip.getSamples(strip.getMinX(), strip.getMinY(), width, rows, 0, (float[]) null));
+                }
+                crc.update(samples.array(), 0, samples.capacity());
+                while (samples.hasRemaining()) {
+                    channel.write(samples);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(MAGIC).putInt(VERSION).putInt(width).putInt(height).putInt(sampleBytes).putInt(0);
+        for (double entry : transform.getGridToWorld()) {
+            header.putDouble(entry);
+        }
+        header.putDouble(noData).putLong(crc.getValue());
+        double[] pixelToGeographic = geographic != null ? geographic.getGridToWorld() : null;
+        for (int i = 0; i < 6; i++) {
+            header.putDouble(pixelToGeographic != null ? pixelToGeographic[i] : Double.NaN);
+        }
+        header.rewind(); //write all HEADER_BYTES, padding included
+        while (header.hasRemaining()) {
+            channel.write(header, header.position());
+        }
+    }
+
+    /**
+     * Computes the CRC-32 of the samples of a binary map, to compare against its header.
+     *
+     * @param channel an open channel on the file
+     * @param header the file's header
+     * @return the checksum of the sample bytes
+     * @throws IOException if the file cannot be read
+     */
+    public static long checksum(FileChannel channel, Header header) throws IOException {
+        CRC32 crc = new CRC32();
+        ByteBuffer buffer = ByteBuffer.allocate(1 << 20);
+        long position = header.dataOffset;
+        long end = header.dataOffset + header.getSampleBytes();
+        while (position < end) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), end - position));
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new IOException("Unexpected end of binary map");
+            }
+            crc.update(buffer.array(), 0, read);
+            position += read;
+        }
+        return crc.getValue();
+    }
+
+}
@@ -0,0 +1,66 @@
+package mars.map;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+
+/**
+ * A terrain map loaded from the native binary format (see BinaryMapFormat and MapConverter).
+ * Loading needs no GeoTIFF decoding: the samples are memory-mapped and, in HEAP storage, copied
+ * onto the heap in one bulk copy, so even very large maps load at disk speed.
+ * A converted map answers getValue exactly as the GeoTIFF it came from.
+ */
+public class BinaryTerrainMap extends GridTerrainMap {
+    private long checksum; //CRC-32 of the samples, from the file header
+
+    //init function, takes in the file path to a binary map
+    public void initMap(String fileLocation) throws Exception {
+        checkNotLoaded();
+        mapPath = fileLocation;
+        File file = new File(fileLocation);
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = in.getChannel();
+            BinaryMapFormat.Header header = BinaryMapFormat.readHeader(channel, file);
+            MappedElevationGrid mapped = MappedElevationGrid.map(channel, header);
+            if (!ElevationGrid.fitsInArray(header.width, header.height)) {
+                storage = ElevationStorage.MAPPED; //too many cells for any heap grid, and the mapped samples are already off the heap
+            }
+            if (storage == ElevationStorage.HEAP || storage == ElevationStorage.MORTON) {
+                if (BinaryMapFormat.checksum(channel, header) != header.checksum) {
+                    throw new IOException("Checksum mismatch in binary map " + file);
+                }
+                elevationGrid = storage == ElevationStorage.HEAP ? mapped.toHeap() : MortonElevationGrid.copyOf(mapped, header.sampleBytes == 8);
+            } else {
+                elevationGrid = mapped; //mapped pages are already read on demand and off the heap, which is all TILED or OFF_HEAP would add
+            }
+            transform = header.transform;
+            geographicTransform = header.geographic;
+            noData = header.noData;
+            checksum = header.checksum;
+        } finally {
+            in.close(); //the mappings stay valid after the channel is closed
+        }
+    }
+
+    /**
+     * Re-reads the samples of this map's file and checks them against the checksum in its header.
+     * Maps loaded in HEAP storage are checked as they load; mapped maps are only checked when this is called,
+     * since checking means reading every page.
+     *
+     * @return true if the file's samples match its checksum
+     * @throws IOException if the file cannot be read
+     */
+    public boolean verifyChecksum() throws IOException {
+        File file = new File(mapPath);
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = in.getChannel();
+            return BinaryMapFormat.checksum(channel, BinaryMapFormat.readHeader(channel, file)) == checksum;
+        } finally {
+            in.close();
+        }
+    }
+
+}
@@ -0,0 +1,45 @@
+package mars.map;
+
+/**
+ * Decides where each cell of a width x height grid lives in a flat array.
+ * Grids and per-cell search arrays which share a layout can be indexed with the same index,
+ * so a search reading elevations and writing its own state touches the same neighborhoods of both.
+ * Indexes are longs, as maps may have more cells than an int can count (per-cell state for such maps lives in
+ * an OffHeapArray or a CellSet rather than a Java array).
+ */
+public abstract class CellLayout {
+
+    protected final int width;
+    protected final int height;
+
+    protected CellLayout(int width, int height) {
+        this.width = width;
+        this.height = height;
+    }
+
+    /**
+     * Returns the array index of cell (x, y). No bounds checking is done.
+     */
+    public abstract long index(int x, int y);
+
+    /**
+     * Returns how many array elements a grid in this layout needs, which can be more than width * height.
+     */
+    public abstract long size();
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Returns whether (x, y) lies inside the grid.
+     */
+    public boolean contains(int x, int y) {
+        return x >= 0 && y >= 0 && x < width && y < height;
+    }
+
+}
@@ -0,0 +1,335 @@
+package mars.map;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A directory of data derived from map files (elevation pyramids, masks, labels...) which outlives the program,
+ * so expensive precomputation over a map is done once rather than on every run.
+ *
+ * Each entry is keyed by a SHA-256 hash of the source map's contents together with the name and parameters
+ * of the derivation, so an entry is never served for a map which has changed since it was written. Outdated
+ * entries stay until removeStaleEntries is called, since other processes may still have them mapped.
+ * The content hash itself is remembered per file and only recomputed when the file's size or modification time changes.
+ * Entries are written to a temporary file and atomically moved into place, then memory-mapped on every later use,
+ * so concurrent processes sharing a cache directory never see a partial entry. An entry is only written by one
+ * process at a time: the others wait on a lock file next to it and then map what the first one wrote, so every
+ * process on a machine shares one copy of each entry in the page cache.
+ */
+public class DerivedDataCache {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static volatile DerivedDataCache shared; //the cache maps use for their own derived data, or null for none
+    private static final ConcurrentHashMap<String, Object> writing = new ConcurrentHashMap<String, Object>(); //per-entry monitors; file locks only exclude other processes
+
+    private final File directory;
+
+    /**
+     * Writes the contents of a cache entry.
+     */
+    public interface EntryWriter {
+        /**
+         * @param out channel on the new entry, positioned at its start
+         * @throws IOException if the entry cannot be written
+         */
+        void write(FileChannel out) throws IOException;
+    }
+
+    /**
+     * Constructor for a cache kept in the given directory, which is created if need be.
+     */
+    public DerivedDataCache(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Returns the cache directory used when none is given: .mars/cache in the user's home directory.
+     */
+    public static File getDefaultDirectory() {
+        return new File(new File(System.getProperty("user.home"), ".mars"), "cache");
+    }
+
+    /**
+     * Sets the cache maps use for their own derived data (such as their elevation pyramid), or null to cache nothing.
+     * There is none until one is set (MARS sets one for -cachedir), so nothing is written or hashed by default.
+     */
+    public static void setShared(DerivedDataCache cache) {
+        shared = cache;
+    }
+
+    public static DerivedDataCache getShared() {
+        return shared;
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Returns the cached entry for a derivation of the given source file, writing it first if it isn't cached yet.
+     * The entry is mapped read-only with little-endian byte order.
+     *
+     * @param source the map file the data is derived from
+     * @param derivation name of the derivation; letters, digits, '.' and '_' only
+     * @param parameters every parameter the derived data depends on, in a fixed order
+     * @param writer writes the entry if it isn't cached
+     * @return the entry's contents
+     * @throws IOException if the source cannot be hashed or the entry cannot be written or read
+     */
+    public ByteBuffer get(File source, String derivation, String parameters, EntryWriter writer) throws IOException {
+        return map(getFile(source, derivation, parameters, writer));
+    }
+
+    /**
+     * Returns the file holding the cached entry for a derivation of the given source file, writing it first if it
+     * isn't cached yet. If another thread or process is already writing the entry, this waits for it to finish
+     * rather than writing it again. For entries too large to map as one buffer, or which the caller maps itself.
+     *
+     * @param source the map file the data is derived from
+     * @param derivation name of the derivation; letters, digits, '.' and '_' only
+     * @param parameters every parameter the derived data depends on, in a fixed order
+     * @param writer writes the entry if it isn't cached
+     * @return the entry's file, complete
+     * @throws IOException if the source cannot be hashed or the entry cannot be written
+     */
+    public File getFile(File source, String derivation, String parameters, EntryWriter writer) throws IOException {
+        if (!derivation.matches("[A-Za-z0-9_.]+")) {
+            throw new IllegalArgumentException("Bad derivation name: " + derivation);
+        }
+        String sourceId = sourceId(source);
+        String content = fingerprint(source).substring(0, 32);
+        File entry = entryFile(sourceId, derivation, content, parameters);
+        if (entry.isFile()) {
+            return entry;
+        }
+        createDirectory();
+        Object monitor = new Object();
+        synchronized (monitor) { //held before it is published, so no other thread can get in ahead of us
+            Object existing;
+            while ((existing = writing.putIfAbsent(entry.getPath(), monitor)) != null) {
+                synchronized (existing) {
+                    //waits for the thread holding the entry, which removes its monitor before letting go of it
+                }
+            }
+            try {
+                RandomAccessFile lockFile = new RandomAccessFile(new File(entry.getPath() + ".lock"), "rw");
+                try {
+                    FileLock lock = lockFile.getChannel().lock(); //waits for any other process writing this entry
+                    try {
+                        if (!entry.isFile()) { //unless it was written while we waited
+                            writeEntry(entry, writer);
+                        }
+                    } finally {
+                        lock.release();
+                    }
+                } finally {
+                    lockFile.close();
+                }
+            } finally {
+                writing.remove(entry.getPath(), monitor); //so the map only ever holds entries being written
+            }
+        }
+        return entry;
+    }
+
+    /**
+     * Returns the file holding the entry for a derivation of the given source, whether or not it exists yet.
+     */
+    public File getEntryFile(File source, String derivation, String parameters) throws IOException {
+        return entryFile(sourceId(source), derivation, fingerprint(source).substring(0, 32), parameters);
+    }
+
+    /**
+     * Entries are named [source path hash]-[derivation]-[content hash]-[parameters hash].bin.
+     */
+    private File entryFile(String sourceId, String derivation, String content, String parameters) {
+        String key = hex(sha256((derivation + "\n" + parameters).getBytes(UTF8))).substring(0, 16);
+        return new File(directory, sourceId + "-" + derivation + "-" + content + "-" + key + ".bin");
+    }
+
+    /**
+     * Returns the SHA-256 hash (in hex) of the given file's contents. The hash is remembered in the cache
+     * directory and reused for as long as the file keeps the same size and modification time.
+     *
+     * @param source the file to hash
+     * @return the hash of its contents
+     * @throws IOException if the file cannot be read
+     */
+    public String fingerprint(File source) throws IOException {
+        File memo = new File(directory, sourceId(source) + ".hash");
+        String stamp = source.length() + " " + source.lastModified() + " ";
+        if (memo.isFile()) {
+            String remembered = new String(Files.readAllBytes(memo.toPath()), UTF8);
+            if (remembered.startsWith(stamp)) {
+                return remembered.substring(stamp.length()).trim();
+            }
+        }
+
+        MessageDigest digest = newDigest();
+        FileInputStream in = new FileInputStream(source);
+        try {
+            FileChannel channel = in.getChannel();
+            ByteBuffer buffer = ByteBuffer.allocate(1 << 20);
+            while (channel.read(buffer) > 0) {
+                digest.update(buffer.array(), 0, buffer.position());
+                buffer.clear();
+            }
+        } finally {
+            in.close();
+        }
+        final String hash = hex(digest.digest());
+        final byte[] line = (stamp + hash + "\n").getBytes(UTF8);
+        writeEntry(memo, new EntryWriter() {
+            public void write(FileChannel out) throws IOException {
+                out.write(ByteBuffer.wrap(line));
+            }
+        });
+        return hash;
+    }
+
+    /**
+     * Writes an entry under a temporary name and atomically moves it into place.
+     */
+    private void writeEntry(File entry, EntryWriter writer) throws IOException {
+        createDirectory();
+        File temp = File.createTempFile(entry.getName(), ".tmp", directory);
+        try {
+            RandomAccessFile file = new RandomAccessFile(temp, "rw");
+            try {
+                writer.write(file.getChannel());
+                file.getChannel().force(false);
+            } finally {
+                file.close();
+            }
+            Files.move(temp.toPath(), entry.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            temp.delete(); //no-op once moved
+        }
+    }
+
+    private void createDirectory() throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs() && !directory.isDirectory()) {
+            throw new IOException("Could not create cache directory " + directory);
+        }
+    }
+
+    /**
+     * Deletes the entries (and their lock files) derived from earlier contents of any source whose current content
+     * hash this cache remembers, skipping entries another process is writing. Other processes may still have a
+     * deleted entry mapped, which systems that allow deleting mapped files (such as Linux) leave working, so run
+     * this when nothing else is using the cache, as MARS -cleancache does, rather than while maps are in use.
+     *
+     * @return how many entries were deleted
+     * @throws IOException if a remembered hash cannot be read
+     */
+    public int removeStaleEntries() throws IOException {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return 0;
+        }
+        Map<String, String> contents = new HashMap<String, String>(); //source path hash to current content hash
+        for (File file : files) {
+            String name = file.getName();
+            if (name.endsWith(".hash")) {
+                String[] memo = new String(Files.readAllBytes(file.toPath()), UTF8).trim().split(" ");
+                if (memo.length == 3 && memo[2].length() >= 32) {
+                    contents.put(name.substring(0, name.length() - ".hash".length()), memo[2].substring(0, 32));
+                }
+            }
+        }
+        int removed = 0;
+        for (File entry : files) {
+            String name = entry.getName();
+            int dash = name.indexOf('-');
+            String content = dash < 0 ? null : contents.get(name.substring(0, dash));
+            if (content != null && name.endsWith(".bin") && !name.contains("-" + content + "-") && removeUnlocked(entry)) {
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Deletes an entry and its lock file if no other process holds the lock, that is, is writing it.
+     */
+    private static boolean removeUnlocked(File entry) throws IOException {
+        File lockPath = new File(entry.getPath() + ".lock");
+        RandomAccessFile lockFile = new RandomAccessFile(lockPath, "rw");
+        boolean removed = false;
+        try {
+            FileLock lock;
+            try {
+                lock = lockFile.getChannel().tryLock();
+            } catch (OverlappingFileLockException e) {
+                return false; //this process is writing it
+            }
+            if (lock == null) {
+                return false;
+            }
+            try {
+                removed = entry.delete();
+                return removed;
+            } finally {
+                lock.release();
+            }
+        } finally {
+            lockFile.close();
+            if (removed) {
+                lockPath.delete();
+            }
+        }
+    }
+
+    /**
+     * Returns a short hash of the source's canonical path, which names everything cached for it.
+     */
+    private static String sourceId(File source) throws IOException {
+        return hex(sha256(source.getCanonicalPath().getBytes(UTF8))).substring(0, 16);
+    }
+
+    private static ByteBuffer map(File entry) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(entry, "r");
+        try {
+            FileChannel channel = file.getChannel();
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()).order(ByteOrder.LITTLE_ENDIAN);
+        } finally {
+            file.close(); //the mapping stays valid after the channel is closed
+        }
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e); //every JRE must provide it
+        }
+    }
+
+    private static byte[] sha256(byte[] data) {
+        return newDigest().digest(data);
+    }
+
+    private static String hex(byte[] bytes) {
+        StringBuilder out = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            out.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return out.toString();
+    }
+
+}
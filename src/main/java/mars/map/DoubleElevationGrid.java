@@ -0,0 +1,54 @@
+package mars.map;
+
+import java.awt.image.Raster;
+
+/**
+ * An ElevationGrid backed by a double[], used for int and double source samples
+ * which a float cannot hold exactly.
+ */
+public class DoubleElevationGrid extends ElevationGrid implements WritableElevationGrid {
+
+    private final double[] samples;
+
+    public DoubleElevationGrid(int width, int height) {
+        super(width, height);
+        samples = new double[arrayCells(width, height)];
+    }
+
+    /**
+     * Constructor for a grid over an existing row-major array of samples, which is used as is.
+     */
+    DoubleElevationGrid(int width, int height, double[] samples) {
+        super(width, height);
+        this.samples = samples;
+    }
+
+    public double get(int x, int y) {
+        return samples[y * width + x];
+    }
+
+    public double get(long index) {
+        return samples[(int) index]; //heap grids never have more cells than an int can count
+    }
+
+    public void readRow(int x, int y, int length, double[] dest, int offset) {
+        System.arraycopy(samples, y * width + x, dest, offset, length);
+    }
+
+    public void readRow(int x, int y, int length, float[] dest, int offset) {
+        int start = y * width + x;
+        for (int i = 0; i < length; i++) {
+            dest[offset + i] = (float) samples[start + i];
+        }
+    }
+
+    public long getMemoryFootprint() {
+        return 8L * width * height;
+    }
+
+    public void copyRows(Raster strip, int firstRow, int rows) {
+        double[] buffer = strip.getSamples(strip.getMinX(), strip.getMinY(), width, rows, 0, (double[]) null);
+        System.arraycopy(buffer, 0, samples, firstRow * width, width * rows);
+    }
+
+}
@@ -0,0 +1,309 @@
+package mars.map;
+
+import java.awt.Rectangle;
+import java.awt.image.DataBuffer;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A flat, row-major copy of a single elevation band, read once from a map's image
+ * so that elevation lookups are plain array accesses instead of Raster/GeoTools calls.
+ */
+public abstract class ElevationGrid {
+
+    static final int STRIP_HEIGHT = 64; //rows copied out of the source image per request
+    static final int MAX_ARRAY_CELLS = Integer.MAX_VALUE - 8; //largest array some VMs will allocate
+
+    protected final int width;
+    protected final int height;
+
+    protected ElevationGrid(int width, int height) {
+        this.width = width;
+        this.height = height;
+    }
+
+    /**
+     * Returns whether a grid of the given size fits in a single Java array, which every heap grid needs.
+     * Larger maps must be kept in OFF_HEAP or MAPPED storage.
+     */
+    public static boolean fitsInArray(int width, int height) {
+        return (long) width * height <= MAX_ARRAY_CELLS;
+    }
+
+    /**
+     * Returns width * height for a grid which keeps its cells in one array.
+     *
+     * @throws IllegalArgumentException if the grid has more cells than an array can hold
+     */
+    static int arrayCells(int width, int height) {
+        if (!fitsInArray(width, height)) {
+            throw new IllegalArgumentException("A " + width + "x" + height + " map has too many cells for the heap;"
+                    + " load it in OFF_HEAP or MAPPED storage");
+        }
+        return width * height;
+    }
+
+    /**
+     * Copies band 0 of the given image into a new grid. Sample types that fit exactly in a float
+     * (byte, short, ushort, float) are stored as floats; int and double samples are stored as doubles.
+     * The image is read in horizontal strips, so no full-size Raster copy is ever held alongside the grid.
+     *
+     * @param image the decoded map image
+     * @return a grid holding every sample of the image
+     */
+    public static ElevationGrid fromImage(RenderedImage image) {
+        return fromRegion(image, new Rectangle(image.getMinX(), image.getMinY(), image.getWidth(), image.getHeight()));
+    }
+
+    /**
+     * Copies band 0 of a rectangular region of the given image into a new grid, whose (0, 0)
+     * is the region's upper-left corner. Only the parts of the image inside the region are decoded.
+     *
+     * @param image the map image
+     * @param region the region to copy, in image coordinates
+     * @return a grid holding every sample of the region
+     */
+    public static ElevationGrid fromRegion(RenderedImage image, Rectangle region) {
+        if (isDoubleSampled(image)) {
+            DoubleElevationGrid elevations = new DoubleElevationGrid(region.width, region.height);
+            copyRegion(image, region, elevations);
+            return elevations;
+        }
+        FloatElevationGrid elevations = new FloatElevationGrid(region.width, region.height);
+        copyRegion(image, region, elevations);
+        return elevations;
+    }
+
+    private static void copyRegion(RenderedImage image, Rectangle region, WritableElevationGrid into) {
+        for (int row = 0; row < region.height; row += STRIP_HEIGHT) {
+            int rows = Math.min(STRIP_HEIGHT, region.height - row);
+            Raster strip = image.getData(new Rectangle(region.x, region.y + row, region.width, rows));
+            into.copyRows(strip, row, rows);
+        }
+    }
+
+    /**
+     * Parallel version of fromImage: the image is cut into strips along its own tile rows, and the strips
+     * are decoded on a pool of at most the given number of threads, each straight into its rows of the grid.
+     * Decoding a large compressed map is then bound by the number of cores rather than by one.
+     *
+     * @param image the decoded or deferred map image
+     * @param threads the most threads to decode with
+     * @param progress told about each strip as it is done, or null
+     * @return a grid holding every sample of the image
+     * @throws InterruptedException if the calling thread is interrupted while waiting for the strips
+     */
+    public static ElevationGrid fromImage(RenderedImage image, int threads, LoadProgress progress) throws InterruptedException {
+        try {
+            return fromSource(new ImageRegionSource(image), threads, progress);
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not decode map image", e); //images in memory are never read from files
+        }
+    }
+
+    /**
+     * Version of fromImage(RenderedImage, int, LoadProgress) reading a RegionSource, such as a map file read
+     * directly by TiffRegionSource, with one reader per decoding thread.
+     *
+     * @throws IOException if the source cannot be read
+     */
+    public static ElevationGrid fromSource(RegionSource source, int threads, LoadProgress progress)
+            throws InterruptedException, IOException {
+        if (isDoubleSampled(source.getDataType())) {
+            DoubleElevationGrid elevations = new DoubleElevationGrid(source.getWidth(), source.getHeight());
+            decode(source, elevations, threads, progress);
+            return elevations;
+        }
+        FloatElevationGrid elevations = new FloatElevationGrid(source.getWidth(), source.getHeight());
+        decode(source, elevations, threads, progress);
+        return elevations;
+    }
+
+    /**
+     * Decodes band 0 of an image into a grid of the same size (see decode(RegionSource, ...)).
+     */
+    static void decode(RenderedImage image, WritableElevationGrid into, int threads, LoadProgress progress)
+            throws InterruptedException {
+        try {
+            decode(new ImageRegionSource(image), into, threads, progress);
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not decode map image", e);
+        }
+    }
+
+    /**
+     * Decodes band 0 of a source into a grid of the same size, a strip at a time on up to the given number of threads.
+     * Strips are whole rows of the source's tiles (or STRIP_HEIGHT rows, if the source is a single tile high),
+     * so no tile is decoded by two strips. Each thread opens a reader of its own and takes the next strip nobody has
+     * started until there are none left. Grids only have to cope with copyRows being called at once for different rows.
+     */
+    static void decode(final RegionSource source, final WritableElevationGrid into, int threads, final LoadProgress progress)
+            throws InterruptedException, IOException {
+        final int w = source.getWidth();
+        final int h = source.getHeight();
+        int tileHeight = source.getTileHeight();
+        final int stripHeight = tileHeight < h ? ((STRIP_HEIGHT + tileHeight - 1) / tileHeight) * tileHeight : STRIP_HEIGHT;
+        int strips = (h + stripHeight - 1) / stripHeight;
+        if (threads <= 1 || strips <= 1) {
+            RegionSource.Reader reader = source.open();
+            try {
+                for (int row = 0; row < h; row += stripHeight) {
+                    int rows = Math.min(stripHeight, h - row);
+                    into.copyRows(reader.read(new Rectangle(0, row, w, rows)), row, rows);
+                    if (progress != null) {
+                        progress.update(row + rows, h);
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+            return;
+        }
+
+        int workers = Math.min(threads, strips);
+        ExecutorService pool = Executors.newFixedThreadPool(workers, new ThreadFactory() {
+            public Thread newThread(Runnable task) {
+                Thread thread = new Thread(task, "map-decoder");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        final AtomicInteger nextRow = new AtomicInteger();
+        final AtomicInteger rowsDone = new AtomicInteger();
+        List<Future<?>> pending = new ArrayList<Future<?>>(workers);
+        try {
+            for (int i = 0; i < workers; i++) {
+                pending.add(pool.submit(new Callable<Void>() {
+                    public Void call() throws IOException {
+                        RegionSource.Reader reader = source.open();
+                        try {
+                            int firstRow;
+                            while ((firstRow = nextRow.getAndAdd(stripHeight)) < h && !Thread.currentThread().isInterrupted()) {
+                                int rows = Math.min(stripHeight, h - firstRow);
+                                into.copyRows(reader.read(new Rectangle(0, firstRow, w, rows)), firstRow, rows);
+                                int done = rowsDone.addAndGet(rows);
+                                if (progress != null) {
+                                    progress.update(done, h);
+                                }
+                            }
+                        } finally {
+                            reader.close();
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (Future<?> worker : pending) {
+                try {
+                    worker.get();
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof IOException) throw (IOException) cause;
+                    if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+                    if (cause instanceof Error) throw (Error) cause;
+                    throw new IllegalStateException("Could not decode map image", cause);
+                }
+            }
+        } finally {
+            pool.shutdownNow(); //stops the other workers if one failed
+        }
+    }
+
+    /**
+     * Returns whether the image's samples need a double to be held exactly (int and double samples).
+     */
+    static boolean isDoubleSampled(RenderedImage image) {
+        return isDoubleSampled(image.getSampleModel().getDataType());
+    }
+
+    /**
+     * Returns whether samples of the given DataBuffer type need a double to be held exactly.
+     */
+    static boolean isDoubleSampled(int dataType) {
+        return dataType == DataBuffer.TYPE_DOUBLE || dataType == DataBuffer.TYPE_INT;
+    }
+
+    /**
+     * Returns the elevation at (x, y) in grid (pixel) coordinates. No bounds checking is done;
+     * callers are expected to have checked 0 <= x < width and 0 <= y < height.
+     */
+    public abstract double get(int x, int y);
+
+    /**
+     * Returns the elevation at a packed index y * width + x. No bounds checking is done.
+     * The index is a long, since maps may have more cells than an int can count (see OffHeapElevationGrid).
+     */
+    public double get(long index) {
+        return get((int) (index % width), (int) (index / width));
+    }
+
+    /**
+     * Copies a run of elevations from one row of the grid into an array. No bounds checking is done;
+     * the run must lie inside the grid. Subclasses override this with a bulk copy where they can.
+     *
+     * @param x first column of the run
+     * @param y row of the run
+     * @param length number of elevations to copy
+     * @param dest array to copy into
+     * @param offset index in dest of the first elevation
+     */
+    public void readRow(int x, int y, int length, double[] dest, int offset) {
+        for (int i = 0; i < length; i++) {
+            dest[offset + i] = get(x + i, y);
+        }
+    }
+
+    /**
+     * Float variant of readRow; elevations are narrowed to float.
+     */
+    public void readRow(int x, int y, int length, float[] dest, int offset) {
+        for (int i = 0; i < length; i++) {
+            dest[offset + i] = (float) get(x + i, y);
+        }
+    }
+
+    /**
+     * Returns roughly how many bytes of heap this grid's samples occupy.
+     */
+    public abstract long getMemoryFootprint();
+
+    /**
+     * Returns how many bytes of direct memory, outside the heap, this grid's samples occupy.
+     */
+    public long getDirectBytes() {
+        return 0;
+    }
+
+    /**
+     * Returns how many bytes of files this grid maps into memory for its samples.
+     */
+    public long getMappedBytes() {
+        return 0;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Returns whether (x, y) lies inside the grid.
+     */
+    public boolean contains(int x, int y) {
+        return x >= 0 && y >= 0 && x < width && y < height;
+    }
+
+}
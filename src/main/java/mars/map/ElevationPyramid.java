@@ -0,0 +1,327 @@
+package mars.map;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * Min/max/mean elevation statistics for square tiles of a map, at several levels of detail.
+ * Level 0 tiles are BASE_TILE_SIZE pixels across; every level above merges 2x2 tiles of the level below,
+ * up to a single tile covering the whole map. Built once in a single pass over the elevations, it answers
+ * min/max queries for the whole map or any rectangle by visiting only the tiles the rectangle touches.
+ * NaN samples (no data) are ignored.
+ */
+public class ElevationPyramid {
+
+    public static final int BASE_TILE_SIZE = 32;
+    public static final int VERSION = 2; //of the format written by write; 2 has long sample counts
+
+    private final ElevationGrid elevations;
+    private final Level[] levels;
+
+    /**
+     * Builds the pyramid for the given elevations.
+     */
+    public ElevationPyramid(ElevationGrid elevations) {
+        this.elevations = elevations;
+
+        int levelCount = 1;
+        for (int size = BASE_TILE_SIZE; size < elevations.getWidth() || size < elevations.getHeight(); size *= 2) {
+            levelCount++;
+        }
+        levels = new Level[levelCount];
+        levels[0] = buildBaseLevel();
+        for (int i = 1; i < levelCount; i++) {
+            levels[i] = mergeLevel(levels[i - 1]);
+        }
+    }
+
+    private ElevationPyramid(ElevationGrid elevations, Level[] levels) {
+        this.elevations = elevations;
+        this.levels = levels;
+    }
+
+    /**
+     * Writes the pyramid's statistics (little-endian), to be read back by read, for example into a DerivedDataCache.
+     */
+    public void write(FileChannel out) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(16).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(elevations.getWidth()).putInt(elevations.getHeight()).putInt(BASE_TILE_SIZE).putInt(levels.length);
+        header.flip();
+        writeFully(out, header);
+        for (Level level : levels) {
+            int tiles = level.across * level.down;
+            ByteBuffer data = ByteBuffer.allocate(12 + tiles * (8 + 8 + 4 + 8)).order(ByteOrder.LITTLE_ENDIAN);
+            data.putInt(level.tileSize).putInt(level.across).putInt(level.down);
+            for (int i = 0; i < tiles; i++) data.putDouble(level.min[i]);
+            for (int i = 0; i < tiles; i++) data.putDouble(level.max[i]);
+            for (int i = 0; i < tiles; i++) data.putFloat(level.mean[i]);
+            for (int i = 0; i < tiles; i++) data.putLong(level.count[i]);
+            data.flip();
+            writeFully(out, data);
+        }
+    }
+
+    private static void writeFully(FileChannel out, ByteBuffer data) throws IOException {
+        while (data.hasRemaining()) {
+            out.write(data);
+        }
+    }
+
+    /**
+     * Reads a pyramid written by write, instead of building it again.
+     *
+     * @param in the written pyramid, positioned at its start
+     * @param elevations the elevations the pyramid was built from
+     * @return the pyramid
+     * @throws IOException if the data was not written for a grid of this size
+     */
+    public static ElevationPyramid read(ByteBuffer in, ElevationGrid elevations) throws IOException {
+        in = in.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        if (in.getInt() != elevations.getWidth() || in.getInt() != elevations.getHeight() || in.getInt() != BASE_TILE_SIZE) {
+            throw new IOException("Stored elevation pyramid does not match the map");
+        }
+        Level[] levels = new Level[in.getInt()];
+        for (int l = 0; l < levels.length; l++) {
+            Level level = new Level(in.getInt(), elevations.getWidth(), elevations.getHeight());
+            if (in.getInt() != level.across || in.getInt() != level.down) {
+                throw new IOException("Stored elevation pyramid does not match the map");
+            }
+            in.asDoubleBuffer().get(level.min);
+            in.position(in.position() + 8 * level.min.length);
+            in.asDoubleBuffer().get(level.max);
+            in.position(in.position() + 8 * level.max.length);
+            in.asFloatBuffer().get(level.mean);
+            in.position(in.position() + 4 * level.mean.length);
+            in.asLongBuffer().get(level.count);
+            in.position(in.position() + 8 * level.count.length);
+            levels[l] = level;
+        }
+        return new ElevationPyramid(elevations, levels);
+    }
+
+    /**
+     * Returns the lowest elevation on the map, or NaN if it has no data.
+     */
+    public double getMin() {
+        return getMin(0, 0, elevations.getWidth(), elevations.getHeight());
+    }
+
+    /**
+     * Returns the highest elevation on the map, or NaN if it has no data.
+     */
+    public double getMax() {
+        return getMax(0, 0, elevations.getWidth(), elevations.getHeight());
+    }
+
+    /**
+     * Returns the mean elevation of the map, or NaN if it has no data.
+     */
+    public double getMean() {
+        Level top = levels[levels.length - 1];
+        return top.count[0] == 0 ? Double.NaN : top.mean[0];
+    }
+
+    /**
+     * Returns the lowest elevation within a rectangle of the map (in pixels), or NaN if it holds no data.
+     * Parts of the rectangle off the map are ignored.
+     */
+    public double getMin(int x, int y, int width, int height) {
+        double min = query(false, x, y, x + width, y + height);
+        return min == Double.POSITIVE_INFINITY ? Double.NaN : min;
+    }
+
+    /**
+     * Returns the highest elevation within a rectangle of the map (in pixels), or NaN if it holds no data.
+     * Parts of the rectangle off the map are ignored.
+     */
+    public double getMax(int x, int y, int width, int height) {
+        double max = query(true, x, y, x + width, y + height);
+        return max == Double.NEGATIVE_INFINITY ? Double.NaN : max;
+    }
+
+    //----Per-tile access---------------------------------------------------------------------------------------------
+
+    public int getLevelCount() {
+        return levels.length;
+    }
+
+    /**
+     * Returns the width and height (in pixels) of the tiles on the given level.
+     */
+    public int getTileSize(int level) {
+        return levels[level].tileSize;
+    }
+
+    public int getTilesAcross(int level) {
+        return levels[level].across;
+    }
+
+    public int getTilesDown(int level) {
+        return levels[level].down;
+    }
+
+    public double getTileMin(int level, int tileX, int tileY) {
+        Level l = levels[level];
+        return l.count[tileY * l.across + tileX] == 0 ? Double.NaN : l.min[tileY * l.across + tileX];
+    }
+
+    public double getTileMax(int level, int tileX, int tileY) {
+        Level l = levels[level];
+        return l.count[tileY * l.across + tileX] == 0 ? Double.NaN : l.max[tileY * l.across + tileX];
+    }
+
+    public double getTileMean(int level, int tileX, int tileY) {
+        Level l = levels[level];
+        return l.count[tileY * l.across + tileX] == 0 ? Double.NaN : l.mean[tileY * l.across + tileX];
+    }
+
+    //----Building----------------------------------------------------------------------------------------------------
+
+    private Level buildBaseLevel() {
+        int w = elevations.getWidth();
+        int h = elevations.getHeight();
+        Level level = new Level(BASE_TILE_SIZE, w, h);
+
+        for (int ty = 0; ty < level.down; ty++) {
+            for (int tx = 0; tx < level.across; tx++) {
+                double min = Double.POSITIVE_INFINITY;
+                double max = Double.NEGATIVE_INFINITY;
+                double sum = 0;
+                int count = 0;
+                int xEnd = Math.min(w, (tx + 1) * BASE_TILE_SIZE);
+                int yEnd = Math.min(h, (ty + 1) * BASE_TILE_SIZE);
+                for (int y = ty * BASE_TILE_SIZE; y < yEnd; y++) {
+                    for (int x = tx * BASE_TILE_SIZE; x < xEnd; x++) {
+                        double value = elevations.get(x, y);
+                        if (value != value) continue; //NaN, no data
+                        if (value < min) min = value;
+                        if (value > max) max = value;
+                        sum += value;
+                        count++;
+                    }
+                }
+                level.set(ty * level.across + tx, min, max, count == 0 ? 0 : sum / count, count);
+            }
+        }
+        return level;
+    }
+
+    private Level mergeLevel(Level below) {
+        Level level = new Level(below.tileSize * 2, elevations.getWidth(), elevations.getHeight());
+
+        for (int ty = 0; ty < level.down; ty++) {
+            for (int tx = 0; tx < level.across; tx++) {
+                double min = Double.POSITIVE_INFINITY;
+                double max = Double.NEGATIVE_INFINITY;
+                double sum = 0;
+                long count = 0; //the top tiles of maps over 2^31 cells count more samples than an int holds
+                for (int cy = ty * 2; cy < Math.min(below.down, ty * 2 + 2); cy++) {
+                    for (int cx = tx * 2; cx < Math.min(below.across, tx * 2 + 2); cx++) {
+                        int child = cy * below.across + cx;
+                        if (below.count[child] == 0) continue;
+                        min = Math.min(min, below.min[child]);
+                        max = Math.max(max, below.max[child]);
+                        sum += (double) below.mean[child] * below.count[child];
+                        count += below.count[child];
+                    }
+                }
+                level.set(ty * level.across + tx, min, max, count == 0 ? 0 : sum / count, count);
+            }
+        }
+        return level;
+    }
+
+    //----Querying----------------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the min (or max) over the half-open pixel rectangle [x0, x1) x [y0, y1),
+     * or +/- infinity if the rectangle holds no data.
+     */
+    private double query(boolean wantMax, int x0, int y0, int x1, int y1) {
+        x0 = Math.max(x0, 0);
+        y0 = Math.max(y0, 0);
+        x1 = Math.min(x1, elevations.getWidth());
+        y1 = Math.min(y1, elevations.getHeight());
+        double result = wantMax ? Double.NEGATIVE_INFINITY : Double.POSITIVE_INFINITY;
+        if (x0 >= x1 || y0 >= y1) {
+            return result;
+        }
+        return query(wantMax, levels.length - 1, 0, 0, x0, y0, x1, y1, result);
+    }
+
+    private double query(boolean wantMax, int level, int tx, int ty, int x0, int y0, int x1, int y1, double result) {
+        Level l = levels[level];
+        if (tx >= l.across || ty >= l.down) {
+            return result;
+        }
+        int tileX0 = tx * l.tileSize;
+        int tileY0 = ty * l.tileSize;
+        int tileX1 = Math.min(tileX0 + l.tileSize, elevations.getWidth());
+        int tileY1 = Math.min(tileY0 + l.tileSize, elevations.getHeight());
+        if (tileX1 <= x0 || tileX0 >= x1 || tileY1 <= y0 || tileY0 >= y1) {
+            return result; //tile doesn't touch the rectangle
+        }
+
+        int index = ty * l.across + tx;
+        if (l.count[index] == 0) {
+            return result;
+        }
+        double tileValue = wantMax ? l.max[index] : l.min[index];
+        if (wantMax ? tileValue <= result : tileValue >= result) {
+            return result; //nothing in this tile can improve on what we have
+        }
+        if (tileX0 >= x0 && tileX1 <= x1 && tileY0 >= y0 && tileY1 <= y1) {
+            return tileValue; //tile lies wholly inside the rectangle
+        }
+
+        if (level == 0) { //partially covered base tile; scan just the overlap
+            for (int y = Math.max(tileY0, y0); y < Math.min(tileY1, y1); y++) {
+                for (int x = Math.max(tileX0, x0); x < Math.min(tileX1, x1); x++) {
+                    double value = elevations.get(x, y);
+                    if (value != value) continue;
+                    if (wantMax ? value > result : value < result) result = value;
+                }
+            }
+            return result;
+        }
+        for (int cy = ty * 2; cy <= ty * 2 + 1; cy++) {
+            for (int cx = tx * 2; cx <= tx * 2 + 1; cx++) {
+                result = query(wantMax, level - 1, cx, cy, x0, y0, x1, y1, result);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Statistics for every tile on one level of the pyramid, in row-major tile order.
+     */
+    private static class Level {
+        final int tileSize;
+        final int across;
+        final int down;
+        final double[] min;
+        final double[] max;
+        final float[] mean;
+        final long[] count;
+
+        Level(int tileSize, int width, int height) {
+            this.tileSize = tileSize;
+            this.across = (width + tileSize - 1) / tileSize;
+            this.down = (height + tileSize - 1) / tileSize;
+            min = new double[across * down];
+            max = new double[across * down];
+            mean = new float[across * down];
+            count = new long[across * down];
+        }
+
+        void set(int index, double min, double max, double mean, long count) {
+            this.min[index] = min;
+            this.max[index] = max;
+            this.mean[index] = (float) mean;
+            this.count[index] = count;
+        }
+    }
+
+}
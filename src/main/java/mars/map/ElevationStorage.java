@@ -0,0 +1,14 @@
+package mars.map;
+
+/**
+ * Where a map keeps its elevation samples once loaded.
+ */
+public enum ElevationStorage {
+    HEAP,   //a primitive array on the Java heap (see ElevationGrid.fromImage)
+    MAPPED, //a sidecar file of raw samples next to the map, memory-mapped on later loads
+    TILED,  //fixed-size tiles decoded on first touch and kept in a bounded LRU cache (see TiledElevationGrid)
+    QUANTIZED, //16-bit codes with a per-map scale and offset on the heap (see QuantizedElevationGrid)
+    SHARED, //a binary map in the shared DerivedDataCache, written once per machine and memory-mapped by every process
+    MORTON, //on the heap in Z-order tiles, so vertical neighbors are as close as horizontal ones (see MortonElevationGrid)
+    OFF_HEAP //direct memory addressed by long index, for maps with more cells than a Java array holds (see OffHeapElevationGrid)
+}
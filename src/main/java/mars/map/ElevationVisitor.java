@@ -0,0 +1,15 @@
+package mars.map;
+
+/**
+ * Callback for TerrainMap.forEachInRect, called once per pixel visited.
+ */
+public interface ElevationVisitor {
+
+    /**
+     * @param x column of the pixel
+     * @param y row of the pixel
+     * @param elevation elevation of the pixel (NaN where the map has no data)
+     */
+    void visit(int x, int y, double elevation);
+
+}
@@ -0,0 +1,53 @@
+package mars.map;
+
+import java.awt.image.Raster;
+
+/**
+ * An ElevationGrid backed by a float[], used for byte, short and float source samples.
+ */
+public class FloatElevationGrid extends ElevationGrid implements WritableElevationGrid {
+
+    private final float[] samples;
+
+    public FloatElevationGrid(int width, int height) {
+        super(width, height);
+        samples = new float[arrayCells(width, height)];
+    }
+
+    /**
+     * Constructor for a grid over an existing row-major array of samples, which is used as is.
+     */
+    FloatElevationGrid(int width, int height, float[] samples) {
+        super(width, height);
+        this.samples = samples;
+    }
+
+    public double get(int x, int y) {
+        return samples[y * width + x];
+    }
+
+    public double get(long index) {
+        return samples[(int) index]; //heap grids never have more cells than an int can count
+    }
+
+    public void readRow(int x, int y, int length, double[] dest, int offset) {
+        int start = y * width + x;
+        for (int i = 0; i < length; i++) {
+            dest[offset + i] = samples[start + i];
+        }
+    }
+
+    public void readRow(int x, int y, int length, float[] dest, int offset) {
+        System.arraycopy(samples, y * width + x, dest, offset, length);
+    }
+
+    public long getMemoryFootprint() {
+        return 4L * width * height;
+    }
+
+    public void copyRows(Raster strip, int firstRow, int rows) {
+        float[] buffer = strip.getSamples(strip.getMinX(), strip.getMinY(), width, rows, 0, (float[]) null);
+        System.arraycopy(buffer, 0, samples, firstRow * width, width * rows);
+    }
+
+}
@@ -2,184 +2,337 @@ package mars.map;
 
 import org.geotools.coverage.grid.GridCoordinates2D;
 import org.geotools.coverage.grid.GridCoverage2D;
+import org.geotools.coverage.grid.GridEnvelope2D;
 import org.geotools.coverage.grid.GridGeometry2D;
+import org.geotools.coverage.grid.io.AbstractGridFormat;
+import org.geotools.coverage.grid.io.imageio.geotiff.GeoTiffIIOMetadataDecoder;
 import org.geotools.gce.geotiff.GeoTiffReader;
 import org.geotools.geometry.DirectPosition2D;
-import mars.coordinate.*;
+import org.geotools.referencing.CRS;
+import org.opengis.metadata.spatial.PixelOrientation;
+import org.opengis.parameter.GeneralParameterValue;
+import org.opengis.parameter.ParameterValue;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+import org.opengis.referencing.crs.GeographicCRS;
+import org.opengis.referencing.crs.ProjectedCRS;
+import org.opengis.referencing.datum.PixelInCell;
+import org.opengis.referencing.operation.MathTransform;
+import org.opengis.referencing.operation.MathTransform2D;
+import org.opengis.referencing.operation.TransformException;
 
+import java.awt.Rectangle;
+import java.awt.geom.AffineTransform;
 import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
 import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
 
 /*
  * An implementation of a terrain map using the GeoTIFF format.
  */
-public class GeoTIFF extends TerrainMap {
-    private static GridCoverage2D grid; //grid coverage from input GeoTIFF, see http://docs.geotools.org/latest/javadocs/org/geotools/coverage/grid/GridCoverage2D.html
-    private static Raster gridData; //image data from input GeoTIFF
-    private String mapPath; //stores the path to this GeoTIFF
+public class GeoTIFF extends GridTerrainMap {
+    private GeoTiffReader reader; //GeoTools reader of the file, see http://docs.geotools.org/latest/javadocs/org/geotools/gce/geotiff/GeoTiffReader.html
+    private GridGeometry2D geometry; //the file's grid, as read from its header; pixels are only read by the elevation grids
+    private LoadProgress loadProgress; //told as strips of the map are decoded, or null
+    private static long tileCacheBytes = TiledElevationGrid.DEFAULT_CACHE_BYTES; //byte budget for TILED storage
+    private static int decodeThreads = Runtime.getRuntime().availableProcessors(); //threads decoding HEAP, MORTON and OFF_HEAP maps
+    private static final GridTransform MARS_MAP_GEOGRAPHIC =
+            new GridTransform(new double[] {1 / 256.0, 0, 0, 1 / 256.0, 135, -30}); //marsMap.tif: 256 pixels per degree from (135E, 30S), as TerminalInterface reads lat/long
 
 
     //init function, takes in the file path to a target GeoTIFF
     public void initMap(String fileLocation) throws Exception {
-        mapPath = fileLocation;
         initTif(fileLocation);
     }
 
     /**
      * Initialization function for GeoTIFF class. Loads full GeoTIFF into memory for use
-     * Access to GeoTIFF data handled through other functions in this class using the created GeoTiffReader instance
+     * The elevation band is copied once into a primitive ElevationGrid, which serves every later elevation read.
+     * Only the file's header is read through GeoTools; the pixels are decoded by TiffRegionSource readers, or
+     * a tile at a time through GeoTools in TILED storage.
      * @param fileLocation file path to GeoTIFF
      * @throws Exception exception generated by Geotools
      */
     public void initTif(String fileLocation) throws Exception {
+        checkNotLoaded();
         mapPath = fileLocation;
         File tiffFile = new File(fileLocation); //get the tiff
-        GeoTiffReader reader = new GeoTiffReader(tiffFile); //make a GeoTiffReader (a apache geotools class)
-
-        grid = reader.read(null); //read in the tiff file
-        gridData = grid.getRenderedImage().getData(); //and its data
+        reader = new GeoTiffReader(tiffFile); //make a GeoTiffReader (a apache geotools class)
+        geometry = new GridGeometry2D(reader.getOriginalGridRange(), PixelInCell.CELL_CORNER,
+                reader.getOriginalGridToWorld(PixelInCell.CELL_CORNER), reader.getCoordinateReferenceSystem(), null);
+        pixelAddressed = mapPath.equals("src/main/resources/marsMap.tif");
+        transform = readGridTransform();
+        geographicTransform = readGeographicTransform();
+        GeoTiffIIOMetadataDecoder metadata = reader.getMetadata();
+        noData = metadata.hasNoData() ? metadata.getNoData() : Double.NaN;
+        GridEnvelope2D size = geometry.getGridRange2D();
+        if (!ElevationGrid.fitsInArray(size.width, size.height) && (storage == ElevationStorage.HEAP
+                || storage == ElevationStorage.QUANTIZED || storage == ElevationStorage.MORTON)) {
+            System.out.println("Warning: " + fileLocation + " has too many pixels for " + storage + " storage; keeping it off the heap");
+            storage = ElevationStorage.OFF_HEAP;
+        }
+        if (storage == ElevationStorage.MAPPED) {
+            elevationGrid = loadMapped(tiffFile);
+        } else if (storage == ElevationStorage.SHARED) {
+            elevationGrid = loadShared(tiffFile);
+        } else if (storage == ElevationStorage.TILED) {
+            elevationGrid = new TiledElevationGrid(new TileSource(tiffFile), TiledElevationGrid.DEFAULT_TILE_SIZE, tileCacheBytes);
+        } else if (storage == ElevationStorage.QUANTIZED) {
+            QuantizedElevationGrid quantized = QuantizedElevationGrid.fromSource(new TiffRegionSource(tiffFile), noData);
+            System.out.println("Stored " + fileLocation + " as 16-bit elevations (max error: " + quantized.getQuantizationError() + ")");
+            elevationGrid = quantized;
+        } else if (storage == ElevationStorage.OFF_HEAP) {
+            elevationGrid = OffHeapElevationGrid.fromSource(new TiffRegionSource(tiffFile), decodeThreads, loadProgress);
+        } else if (storage == ElevationStorage.MORTON) {
+            elevationGrid = MortonElevationGrid.fromSource(new TiffRegionSource(tiffFile), decodeThreads, loadProgress);
+        } else {
+            elevationGrid = ElevationGrid.fromSource(new TiffRegionSource(tiffFile), decodeThreads, loadProgress); //decode its strips in parallel into a flat array
+        }
+        if (storage != ElevationStorage.TILED) {
+            reader.dispose(); //only TILED storage reads pixels through GeoTools
+            reader = null;
+        }
     }
 
     /**
-     * Function to get an elevation at a certain point in the elevation map.
-     * @param x x-coordinate (in pixels) of the desired elevation in the elevation map
-     * @param y y-coordinate (in pixels) of the desired elevation in the elevation map
-     * @return elevation at the given point
-     * @throws Exception exception generated by Geotools
+     * Maps the elevation sidecar for the given GeoTIFF, decoding the GeoTIFF into a new sidecar first
+     * if there is none yet or the GeoTIFF has changed since the sidecar was written.
+     * @param tiffFile the GeoTIFF being loaded
+     * @return a grid backed by the mapped sidecar
+     * @throws Exception if the sidecar cannot be written or read
      */
-    public double getValue(double x, double y) throws Exception { //take in x,y and return elevation
-        GridGeometry2D gg = grid.getGridGeometry();
-
-        DirectPosition2D posWorld = new DirectPosition2D(x,y);
-        GridCoordinates2D posGrid = gg.worldToGrid(posWorld);
+    private ElevationGrid loadMapped(File tiffFile) throws Exception {
+        File sidecar = getSidecarFile(tiffFile);
+        if (sidecar.lastModified() < tiffFile.lastModified()) { //lastModified is 0 if there is no sidecar yet
+            writeBinaryMap(sidecar);
+        }
+        return MappedElevationGrid.open(sidecar);
+    }
 
-        //envelope is the size in the target projection
-        double[] pixel = new double[1];
-        if(x > gridData.getWidth() || x < 0 || y > gridData.getHeight() || y < 0){ //if x or y out of bounds, error
-            throw new Exception("Bad getValue");
+    /**
+     * Maps this GeoTIFF's elevations from a binary map kept in the shared DerivedDataCache, keyed by the GeoTIFF's contents.
+     * The first process to load the map decodes it into the cache; every other process (including ones started
+     * while that is happening) waits for it and then maps the same file, so the operating system holds one copy
+     * of the elevations for all of them. Without a shared cache this is the same as MAPPED storage.
+     * @param tiffFile the GeoTIFF being loaded
+     * @return a grid backed by the mapped cache entry
+     * @throws Exception if the entry cannot be written or read
+     */
+    private ElevationGrid loadShared(final File tiffFile) throws Exception {
+        DerivedDataCache cache = DerivedDataCache.getShared();
+        if (cache == null) {
+            return loadMapped(tiffFile);
         }
-        double[] data;
-        if (mapPath.equals("src/main/resources/marsMap.tif")) {
-            data = gridData.getPixel((int)x,(int)y,pixel);
-        }else{
-            data = gridData.getPixel(posGrid.x,posGrid.y,pixel);
+        if (transform == null) {
+            throw new Exception("GeoTIFF " + mapPath + " does not have an affine grid-to-world transform");
         }
-        return data[0];
+        File shared = cache.getFile(tiffFile, "elevations", "format=" + BinaryMapFormat.VERSION, new DerivedDataCache.EntryWriter() {
+            public void write(FileChannel out) throws IOException {
+                BinaryMapFormat.write(new TiffRegionSource(tiffFile), transform, geographicTransform, noData, out);
+            }
+        });
+        return MappedElevationGrid.open(shared);
     }
 
     /**
-     * Function to get maximum value of a GeoTIFF.
-     * @return maximum value
-     * @throws Exception exception generated by Geotools
+     * Returns the sidecar file used to hold the elevations of a GeoTIFF in MAPPED storage.
+     * The sidecar is a binary map (see BinaryMapFormat), so it can also be loaded directly as a BinaryTerrainMap.
      */
-    public double getMaxValue() throws Exception {
-        double maxElevation = Double.MIN_VALUE; //use minimum
-        double currentElevation;
-        for(int i = 0; i < gridData.getWidth(); i++)
-        {
-            for(int j = 0; j < gridData.getHeight(); j++)
-            {
-                currentElevation = getValue(i,j);
-                if(currentElevation > maxElevation){
-                    maxElevation = currentElevation;
-                }
-            }
-        }
-        System.out.println("Maximum Elevation:  "+ maxElevation);
-        return maxElevation;
+    public static File getSidecarFile(File tiffFile) {
+        return new File(tiffFile.getPath() + ".elev");
     }
 
     /**
-     * Function to get minimum value of a GeoTIFF.
-     * @return minimum value
-     * @throws Exception exception generated by Geotools
+     * Sets a callback told how many rows have been decoded as a HEAP, MORTON or OFF_HEAP map loads. Must be called before initMap.
      */
-    public double getMinValue() throws Exception {
-        double minElevation = Double.MAX_VALUE; //use maximum
-        double currentElevation;
-        for(int i = 0; i < gridData.getWidth(); i++)
-        {
-            for(int j = 0; j < gridData.getHeight(); j++)
-            {
-                currentElevation = getValue(i,j);
-                if(currentElevation < minElevation){
-                    minElevation = currentElevation;
-                }
-            }
-        }
-        System.out.println("Minimum Elevation:  "+ minElevation);
-        return minElevation;
+    public void setLoadProgress(LoadProgress progress) {
+        loadProgress = progress;
     }
 
-    public double getWidth() throws Exception {
-        return gridData.getWidth();
+    /**
+     * Sets how many threads decode the strips of maps loaded from now on in HEAP, MORTON or OFF_HEAP storage.
+     * Defaults to the number of cores; 1 decodes on the loading thread alone.
+     */
+    public static void setDecodeThreads(int threads) {
+        decodeThreads = Math.max(1, threads);
     }
 
-    public double getHeight() throws Exception {
-        return gridData.getHeight();
+    /**
+     * Sets how many bytes of decoded tiles GeoTIFFs in TILED storage may cache. Takes effect for maps loaded afterwards.
+     */
+    public static void setTileCacheBytes(long bytes) {
+        tileCacheBytes = bytes;
     }
-  
+
     /**
-     * Returns the file path which initialized this GeoTIFF.
+     * Writes this GeoTIFF's elevations, transforms and no-data value as a binary map (see BinaryMapFormat).
+     * Samples are read from the GeoTIFF strip by strip, whatever storage the elevations are kept in.
+     *
+     * @param out the file to write
+     * @throws Exception if the coverage has no affine grid-to-world transform or the file cannot be written
      */
-    public String getMapPath() {
-        return mapPath;
+    public void writeBinaryMap(File out) throws Exception {
+        if (transform == null) {
+            throw new Exception("GeoTIFF " + mapPath + " does not have an affine grid-to-world transform");
+        }
+        BinaryMapFormat.write(new TiffRegionSource(new File(mapPath)), transform, geographicTransform, noData, out);
     }
-  
+
     /**
-     * Returns the elevations of pixels within a given
-     * rectangular area, defined by an origin point and
-     * a width and height from the origin
-     * (width and height cannot be negative).
+     * Reads the transform from world coordinates to grid cells out of the file's grid geometry, measured from the
+     * upper-left corner of each cell. Maps addressed in pixels get the identity.
      *
-     * @return a 2D array of the elevations at each pixel in the area
-     * @param origin a Coordinate point which is the origin of the rectangular area
-     * @param width the number of pixels to extend the area in the X direction from the origin
-     * @param height the number of pixels to extend the area in the Y direction from the origin
+     * @return the transform, or null if the grid-to-world transform is not affine
      */
-    public double[][] getElevationsInArea(Coordinate origin, int width, int height) {
-        int x = origin.getX();
-        int y = origin.getY();
-        double[][] elevations = new double[height][width];
-        //bounds checking
-        int areaWidth = ((x+width) < gridData.getWidth()) ? width : gridData.getWidth();
-        int areaHeight = ((y+height) < gridData.getHeight()) ? height : gridData.getHeight();
-
-        for (int i = x; i < x+areaWidth; i++) {
-            for (int j = y; j < y+areaHeight; j++) {
-                try {
-                    int row = (height-1) - (j-y);
-                    int col = i - x;
-                    elevations[row][col] = getValue(i, j);
+    private GridTransform readGridTransform() {
+        if (pixelAddressed) {
+            return GridTransform.IDENTITY;
+        }
+        MathTransform2D gridToWorld = geometry.getGridToCRS2D(PixelOrientation.UPPER_LEFT);
+        if (!(gridToWorld instanceof AffineTransform)) {
+            return null;
+        }
+        double[] matrix = new double[6];
+        ((AffineTransform) gridToWorld).getMatrix(matrix);
+        return new GridTransform(matrix);
+    }
+
+    /**
+     * Works out the transform from pixels to {longitude, latitude} (at the pixel's centre) from the coverage's CRS.
+     * For a projected CRS this means undoing the projection, which is only affine for some projections (such as
+     * the equirectangular projection of most planetary DEMs), so the transform is fitted to three corners of the map
+     * and kept only if it also matches the fourth corner and the centre.
+     *
+     * @return the transform, or null if the map's CRS is not geographic or its projection is not affine
+     */
+    private GridTransform readGeographicTransform() {
+        if (pixelAddressed) {
+            return MARS_MAP_GEOGRAPHIC;
+        }
+        try {
+            CoordinateReferenceSystem crs = geometry.getCoordinateReferenceSystem();
+            MathTransform unproject = null;
+            CoordinateReferenceSystem geographic = crs;
+            if (crs instanceof ProjectedCRS) {
+                unproject = ((ProjectedCRS) crs).getConversionFromBase().getMathTransform().inverse();
+                geographic = ((ProjectedCRS) crs).getBaseCRS();
+            } else if (!(crs instanceof GeographicCRS)) {
+                return null;
+            }
+            boolean latitudeFirst = CRS.getAxisOrder(geographic) == CRS.AxisOrder.NORTH_EAST;
+
+            int w = geometry.getGridRange2D().width;
+            int h = geometry.getGridRange2D().height;
+            double[] points = {0, 0, w, 0, 0, h, w, h, w / 2, h / 2}; //pixels; the last two are only checked
+            double[] lonLat = new double[points.length];
+            for (int i = 0; i < points.length; i += 2) {
+                lonLat[i] = points[i] + 0.5; //centre of the pixel, from its upper-left corner
+                lonLat[i + 1] = points[i + 1] + 0.5;
+            }
+            geometry.getGridToCRS2D(PixelOrientation.UPPER_LEFT).transform(lonLat, 0, lonLat, 0, lonLat.length / 2);
+            if (unproject != null) {
+                unproject.transform(lonLat, 0, lonLat, 0, lonLat.length / 2);
+            }
+            if (latitudeFirst) {
+                for (int i = 0; i < lonLat.length; i += 2) {
+                    double latitude = lonLat[i];
+                    lonLat[i] = lonLat[i + 1];
+                    lonLat[i + 1] = latitude;
                 }
-                catch (Exception e) {
-                    //out of bounds; no-op
+            }
+
+            double[] matrix = {
+                    (lonLat[2] - lonLat[0]) / w, (lonLat[3] - lonLat[1]) / w,
+                    (lonLat[4] - lonLat[0]) / h, (lonLat[5] - lonLat[1]) / h,
+                    lonLat[0], lonLat[1]};
+            GridTransform fitted = new GridTransform(matrix);
+            for (int i = 6; i < points.length; i += 2) {
+                double[] expected = fitted.toWorld(points[i], points[i + 1]);
+                if (Math.abs(expected[0] - lonLat[i]) > 1e-7 || Math.abs(expected[1] - lonLat[i + 1]) > 1e-7) {
+                    return null; //the projection isn't affine over this map
                 }
             }
+            return fitted;
+        } catch (Exception e) { //no inverse projection, or the fit is degenerate
+            return null;
         }
-
-        return elevations;
     }
 
+    /**
+     * The source of TILED storage's tiles: each tile is read through GeoTools with a read area of just the tile,
+     * deferred (USE_JAI_IMAGEREAD) so that only the file's strips or tiles under it are decoded. The layout of the
+     * image comes from a TiffRegionSource.
+     */
+    private class TileSource implements RegionSource {
+        private final TiffRegionSource layout;
 
+        TileSource(File tiffFile) throws IOException {
+            layout = new TiffRegionSource(tiffFile);
+        }
 
-    public double[] coordinateConvert(Coordinate coord) {
-
-        double xpixel = coord.getX();
-        double ypixel = coord.getY();
+        public int getWidth() {
+            return layout.getWidth();
+        }
 
-        //new Coordinate placeholder
+        public int getHeight() {
+            return layout.getHeight();
+        }
 
-        double Diffx = xpixel / 256.0;
-        double xLonDouble = Diffx + 135.0;
+        public int getTileHeight() {
+            return layout.getTileHeight();
+        }
 
-        double Diffy = ypixel / 256;
-        double yLatDouble = -30 + Diffy;
+        public int getDataType() {
+            return layout.getDataType();
+        }
 
-        double[] newCoord = {yLatDouble, xLonDouble};
+        public Reader open() {
+            return new Reader() {
+                public Raster read(Rectangle region) throws IOException {
+                    return readRegion(region);
+                }
 
-        return newCoord;
+                public void close() {
+                }
+            };
+        }
     }
-}
 
+    /**
+     * Reads a region of the map through GeoTools, as a coverage covering only that region.
+     */
+    private Raster readRegion(Rectangle region) throws IOException {
+        ParameterValue<GridGeometry2D> area = AbstractGridFormat.READ_GRIDGEOMETRY2D.createValue();
+        area.setValue(new GridGeometry2D(new GridEnvelope2D(region), PixelInCell.CELL_CORNER,
+                geometry.getGridToCRS(PixelInCell.CELL_CORNER), geometry.getCoordinateReferenceSystem(), null));
+        ParameterValue<Boolean> deferred = AbstractGridFormat.USE_JAI_IMAGEREAD.createValue();
+        deferred.setValue(true);
+        GridCoverage2D coverage = reader.read(new GeneralParameterValue[] {area, deferred});
+        try {
+            RenderedImage image = coverage.getRenderedImage();
+            double[] corner = {image.getMinX(), image.getMinY()}; //where the coverage starts in the map, as the reader may round the area out
+            coverage.getGridGeometry().getGridToCRS2D(PixelOrientation.UPPER_LEFT).transform(corner, 0, corner, 0, 1);
+            geometry.getCRSToGrid2D(PixelOrientation.UPPER_LEFT).transform(corner, 0, corner, 0, 1);
+            int x = image.getMinX() + region.x - (int) Math.round(corner[0]);
+            int y = image.getMinY() + region.y - (int) Math.round(corner[1]);
+            return image.getData(new Rectangle(x, y, region.width, region.height));
+        } catch (TransformException e) {
+            throw new IOException("Could not locate the region read from " + mapPath, e);
+        } finally {
+            coverage.dispose(true);
+        }
+    }
 
+    protected long gridIndex(double x, double y) {
+        if (transform != null) {
+            return super.gridIndex(x, y);
+        }
+        try { //no affine transform; ask GeoTools
+            GridCoordinates2D posGrid = geometry.worldToGrid(new DirectPosition2D(x,y));
+            return elevationGrid.contains(posGrid.x, posGrid.y) ? (long) posGrid.y * elevationGrid.getWidth() + posGrid.x : -1;
+        } catch (TransformException e) {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,486 @@
+package mars.map;
+
+import mars.coordinate.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Abstract class for terrain maps whose elevations are held in an ElevationGrid once loaded.
+ * Everything that only needs the grid (statistics, areas, dimensions) lives here, so every map format
+ * answers it the same way; subclasses load the grid and turn map coordinates into grid cells.
+ * A map is loaded once by initMap and never changes afterwards, so one instance can be shared
+ * by any number of rovers and threads (see MapRegistry). An updated map file is loaded as a new instance
+ * with a higher version (see MapRegistry.reload), while searches holding the old one carry on with it.
+ */
+public abstract class GridTerrainMap extends TerrainMap {
+    protected ElevationGrid elevationGrid; //the map's elevations, set once by initMap
+    protected String mapPath; //stores the path to this map
+    protected ElevationStorage storage = defaultStorage; //where elevation samples are kept once loaded
+    protected GridTransform transform = GridTransform.IDENTITY; //map coordinates to grid cells, set by initMap
+    protected GridTransform geographicTransform; //pixel to {longitude, latitude}, or null if the map has no geographic reference
+    protected double noData = Double.NaN; //value the map uses for missing samples, NaN if none
+    protected boolean pixelAddressed; //true if map coordinates are pixels rather than world coordinates, set once by initMap
+    private long version; //which load of this map file this is, set by MapRegistry before the map is shared
+    private volatile ElevationPyramid pyramid; //per-tile min/max/mean, built on first use
+    private volatile MapStatistics statistics; //histograms and counts, computed on first use
+    private final AtomicLong derivedDirectBytes = new AtomicLong(); //data worked out from this map, see addDerivedData
+    private final AtomicLong derivedMappedBytes = new AtomicLong();
+    private static ElevationStorage defaultStorage = ElevationStorage.HEAP;
+
+    /**
+     * Sets where this map keeps its elevation samples. Must be called before initMap to take effect.
+     */
+    public void setStorage(ElevationStorage storage) {
+        this.storage = storage;
+    }
+
+    public ElevationStorage getStorage() {
+        return storage;
+    }
+
+    /**
+     * Sets the storage used by maps created from now on (for example by a MarsRover).
+     */
+    public static void setDefaultStorage(ElevationStorage storage) {
+        defaultStorage = storage;
+    }
+
+    public static ElevationStorage getDefaultStorage() {
+        return defaultStorage;
+    }
+
+    /**
+     * Returns whether this map is addressed in pixels rather than world coordinates, as the bundled
+     * marsMap.tif is. Worked out once when the map loads, so callers can check it on every step.
+     */
+    public boolean isPixelAddressed() {
+        return pixelAddressed;
+    }
+
+    /**
+     * Throws if this map has already been loaded; maps are immutable once initMap returns.
+     */
+    protected void checkNotLoaded() {
+        if (elevationGrid != null) {
+            throw new IllegalStateException("Map is already loaded from " + mapPath);
+        }
+    }
+
+    /**
+     * Returns the packed index (gridY * width + gridX) of the grid cell holding a point given in
+     * map coordinates, or -1 if the point falls outside the grid.
+     * Plain arithmetic on the transform read when the map was loaded.
+     */
+    protected long gridIndex(double x, double y) {
+        return transform.toGridIndex(x, y, elevationGrid.getWidth(), elevationGrid.getHeight());
+    }
+
+    /**
+     * Returns the transform from map coordinates to grid cells.
+     */
+    public GridTransform getGridTransform() {
+        return transform;
+    }
+
+    /**
+     * Returns the transform from pixels to {longitude, latitude} in degrees, or null if the map has no geographic reference.
+     */
+    public GridTransform getGeographicTransform() {
+        return geographicTransform;
+    }
+
+    /**
+     * Function to get an elevation at a certain point in the elevation map.
+     * @param x x-coordinate of the desired elevation, in map coordinates
+     * @param y y-coordinate of the desired elevation, in map coordinates
+     * @return elevation at the given point
+     * @throws Exception if the point is off the map
+     * @throws IllegalStateException if the map is not loaded
+     */
+    public double getValue(double x, double y) throws Exception { //take in x,y and return elevation
+        if(elevationGrid == null){
+            throw new IllegalStateException("Map is not loaded" + (mapPath == null ? "" : " from " + mapPath));
+        }
+        if(x > elevationGrid.getWidth() || x < 0 || y > elevationGrid.getHeight() || y < 0){ //if x or y out of bounds, error
+            throw new Exception("Bad getValue");
+        }
+        long cell = gridIndex(x, y);
+        if(cell < 0){
+            throw new Exception("Bad getValue");
+        }
+        return elevationGrid.get(cell);
+    }
+
+    /**
+     * Reads an elevation the way getValue does, but returns NO_VALUE for points off the map instead of throwing,
+     * so searches probing the map's edges don't pay for an exception per neighbor.
+     * @param x x-coordinate of the desired elevation, in map coordinates
+     * @param y y-coordinate of the desired elevation, in map coordinates
+     * @return elevation at the given point, or NO_VALUE if the point is off the map or the map is not loaded
+     */
+    public double sample(double x, double y) {
+        if(elevationGrid == null) return NO_VALUE; //a failed load leaves nowhere to stand
+        if(x > elevationGrid.getWidth() || x < 0 || y > elevationGrid.getHeight() || y < 0){ //same bounds as getValue
+            return NO_VALUE;
+        }
+        long cell = gridIndex(x, y);
+        return cell < 0 ? NO_VALUE : elevationGrid.get(cell);
+    }
+
+    public void getValues(double[] xs, double[] ys, double[] out, int count) {
+        for (int i = 0; i < count; i++) {
+            out[i] = sample(xs[i], ys[i]);
+        }
+    }
+
+    public void getValues(int[] indices, double[] out, int count) {
+        long size = (long) elevationGrid.getWidth() * elevationGrid.getHeight();
+        for (int i = 0; i < count; i++) {
+            int index = indices[i];
+            out[i] = (index < 0 || index >= size) ? NO_VALUE : elevationGrid.get(index);
+        }
+    }
+
+    public void getValues(long[] indices, double[] out, int count) {
+        long size = (long) elevationGrid.getWidth() * elevationGrid.getHeight();
+        for (int i = 0; i < count; i++) {
+            long index = indices[i];
+            out[i] = (index < 0 || index >= size) ? NO_VALUE : elevationGrid.get(index);
+        }
+    }
+
+    public void forEachInRect(int x, int y, int width, int height, ElevationVisitor visitor) {
+        int x0 = Math.max(x, 0);
+        int y0 = Math.max(y, 0);
+        int x1 = Math.min(x + width, elevationGrid.getWidth());
+        int y1 = Math.min(y + height, elevationGrid.getHeight());
+        if (x0 >= x1) {
+            return;
+        }
+        double[] row = new double[x1 - x0];
+        for (int j = y0; j < y1; j++) {
+            elevationGrid.readRow(x0, j, row.length, row, 0);
+            for (int i = 0; i < row.length; i++) {
+                visitor.visit(x0 + i, j, row[i]);
+            }
+        }
+    }
+
+    /**
+     * Function to get maximum value of a map.
+     * Answered from the elevation pyramid, which is built on first use.
+     * @return maximum value
+     * @throws Exception if the map is not loaded
+     */
+    public double getMaxValue() throws Exception {
+        return getPyramid().getMax();
+    }
+
+    /**
+     * Function to get minimum value of a map.
+     * Answered from the elevation pyramid, which is built on first use.
+     * @return minimum value
+     * @throws Exception if the map is not loaded
+     */
+    public double getMinValue() throws Exception {
+        return getPyramid().getMin();
+    }
+
+    /**
+     * Function to get the maximum value within a rectangle of a map, given in pixels.
+     * @return maximum value, or NaN if the rectangle is off the map
+     */
+    public double getMaxValue(int x, int y, int width, int height) {
+        return getPyramid().getMax(x, y, width, height);
+    }
+
+    /**
+     * Function to get the minimum value within a rectangle of a map, given in pixels.
+     * @return minimum value, or NaN if the rectangle is off the map
+     */
+    public double getMinValue(int x, int y, int width, int height) {
+        return getPyramid().getMin(x, y, width, height);
+    }
+
+    /**
+     * Returns the min/max/mean pyramid for this map, building it the first time it is asked for.
+     */
+    public ElevationPyramid getPyramid() {
+        ElevationPyramid result = pyramid;
+        if (result == null) {
+            synchronized (this) {
+                result = pyramid;
+                if (result == null) {
+                    pyramid = result = loadPyramid();
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Reads the pyramid from the shared DerivedDataCache if there is one, building (and caching) it otherwise.
+     */
+    private ElevationPyramid loadPyramid() {
+        DerivedDataCache cache = DerivedDataCache.getShared();
+        if (cache != null && mapPath != null) {
+            final ElevationPyramid[] built = new ElevationPyramid[1];
+            String parameters = "tile=" + ElevationPyramid.BASE_TILE_SIZE + ",version=" + ElevationPyramid.VERSION
+                    + ",quantized=" + (storage == ElevationStorage.QUANTIZED);
+            try {
+                ByteBuffer stored = cache.get(new File(mapPath), "pyramid", parameters, new DerivedDataCache.EntryWriter() {
+                    public void write(FileChannel out) throws IOException {
+                        built[0] = new ElevationPyramid(elevationGrid);
+                        built[0].write(out);
+                    }
+                });
+                return built[0] != null ? built[0] : ElevationPyramid.read(stored, elevationGrid);
+            } catch (IOException e) {
+                System.out.println("Warning: could not use cached statistics for " + mapPath + ": " + e.getMessage());
+            }
+        }
+        return new ElevationPyramid(elevationGrid);
+    }
+
+    /**
+     * Returns this map's elevation and slope statistics, computing them the first time they are asked for.
+     */
+    public MapStatistics getStatistics() {
+        MapStatistics result = statistics;
+        if (result == null) {
+            synchronized (this) {
+                result = statistics;
+                if (result == null) {
+                    statistics = result = loadStatistics();
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Reads the statistics from the shared DerivedDataCache if there is one, computing (and caching) them otherwise.
+     * The histogram's range comes from the pyramid, so the statistics take a single pass over the elevations
+     * unless the no-data value is one of the pyramid's bounds.
+     */
+    private MapStatistics loadStatistics() {
+        ElevationPyramid pyramid = getPyramid();
+        double low = pyramid.getMin();
+        double high = pyramid.getMax();
+        if (low == noData || high == noData) {
+            low = high = Double.NaN; //the pyramid counts no-data samples as elevations, so its range is no use
+        }
+        final double histogramMin = low;
+        final double histogramMax = high;
+        DerivedDataCache cache = DerivedDataCache.getShared();
+        if (cache != null && mapPath != null) {
+            final MapStatistics[] built = new MapStatistics[1];
+            String parameters = "elevationBins=" + MapStatistics.ELEVATION_BINS + ",slopeBins=" + MapStatistics.SLOPE_BINS
+                    + ",noData=" + noData + ",quantized=" + (storage == ElevationStorage.QUANTIZED);
+            try {
+                ByteBuffer stored = cache.get(new File(mapPath), "statistics", parameters, new DerivedDataCache.EntryWriter() {
+                    public void write(FileChannel out) throws IOException {
+                        built[0] = MapStatistics.compute(elevationGrid, noData, histogramMin, histogramMax);
+                        built[0].write(out);
+                    }
+                });
+                return built[0] != null ? built[0] : MapStatistics.read(stored, elevationGrid);
+            } catch (IOException e) {
+                System.out.println("Warning: could not use cached statistics for " + mapPath + ": " + e.getMessage());
+            }
+        }
+        return MapStatistics.compute(elevationGrid, noData, histogramMin, histogramMax);
+    }
+
+    /**
+     * Returns the value this map uses for missing samples, or NaN if it declares none.
+     */
+    public double getNoData() {
+        return noData;
+    }
+
+    /**
+     * Returns the layout of this map's elevations, so per-cell search arrays can be laid out the same way.
+     * Maps in MORTON storage use a MortonLayout; every other map is row-major.
+     */
+    public CellLayout getCellLayout() {
+        if (elevationGrid instanceof MortonElevationGrid) {
+            return ((MortonElevationGrid) elevationGrid).getLayout();
+        }
+        return new RowMajorLayout(elevationGrid.getWidth(), elevationGrid.getHeight());
+    }
+
+    /**
+     * Returns the layout of per-coordinate state for this map (traversability, regions, search sets): the cells of
+     * getCellLayout, then the far column and row that getValue also accepts.
+     */
+    public LatticeLayout getLatticeLayout() {
+        return new LatticeLayout(getCellLayout());
+    }
+
+    /**
+     * Returns the grid holding this map's elevations, indexed in pixels.
+     */
+    public ElevationGrid getElevationGrid() {
+        return elevationGrid;
+    }
+
+    public double getWidth() {
+        return elevationGrid.getWidth();
+    }
+
+    public double getHeight() {
+        return elevationGrid.getHeight();
+    }
+
+    /**
+     * Returns roughly how many bytes this map occupies (0 if not loaded): its elevations on the heap, in direct
+     * memory and in mapped files, and the data worked out from them (see addDerivedData). MapRegistry's budget
+     * counts this.
+     */
+    public long getMemoryFootprint() {
+        if (elevationGrid == null) {
+            return 0;
+        }
+        return elevationGrid.getMemoryFootprint() + getDirectBytes() + getMappedBytes();
+    }
+
+    /**
+     * Returns how many bytes of direct memory this map's elevations and the data worked out from them occupy.
+     */
+    public long getDirectBytes() {
+        return (elevationGrid == null ? 0 : elevationGrid.getDirectBytes()) + derivedDirectBytes.get();
+    }
+
+    /**
+     * Returns how many bytes of files this map's elevations and the data worked out from them map into memory.
+     */
+    public long getMappedBytes() {
+        return (elevationGrid == null ? 0 : elevationGrid.getMappedBytes()) + derivedMappedBytes.get();
+    }
+
+    /**
+     * Counts data worked out from this map and kept for as long as it is (a TraversabilityMask, say) in its footprint,
+     * as direct or mapped bytes depending on where the data lives.
+     */
+    public void addDerivedData(OffHeapArray data) {
+        (data.isMapped() ? derivedMappedBytes : derivedDirectBytes).addAndGet(data.size());
+    }
+
+    /**
+     * Returns which load of its file this map is: 1 for the first load through MapRegistry, and one more
+     * for each reload after that. Maps loaded outside the registry are version 0.
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    void setVersion(long version) {
+        this.version = version;
+    }
+
+    /**
+     * Returns the file path which initialized this map.
+     */
+    public String getMapPath() {
+        return mapPath;
+    }
+
+    /**
+     * Returns the elevations of pixels within a given
+     * rectangular area, defined by an origin point and
+     * a width and height from the origin
+     * (width and height cannot be negative).
+     * The first row of the result is the top of the area (the row furthest from the origin).
+     * Pixels off the map are NaN.
+     *
+     * @return a 2D array of the elevations at each pixel in the area
+     * @param origin a Coordinate point which is the origin of the rectangular area
+     * @param width the number of pixels to extend the area in the X direction from the origin
+     * @param height the number of pixels to extend the area in the Y direction from the origin
+     */
+    public double[][] getElevationsInArea(Coordinate origin, int width, int height) {
+        return getElevationsInArea(origin, width, height, new double[height][width]);
+    }
+
+    /**
+     * Same as getElevationsInArea(origin, width, height), but fills the given array
+     * (at least height rows of at least width elevations) instead of allocating one.
+     * The area is clipped to the map once and copied a row at a time.
+     *
+     * @return the elevations array, filled in
+     */
+    public double[][] getElevationsInArea(Coordinate origin, int width, int height, double[][] elevations) {
+        int x = origin.getX();
+        int y = origin.getY();
+        //clip the columns once; every row covers the same ones
+        int firstCol = Math.max(0, -x);
+        int lastCol = Math.max(firstCol, Math.min(width, elevationGrid.getWidth() - x));
+
+        for (int row = 0; row < height; row++) {
+            double[] line = elevations[row];
+            int j = y + (height-1) - row;
+            if (j < 0 || j >= elevationGrid.getHeight() || firstCol == lastCol) {
+                Arrays.fill(line, 0, width, Double.NaN);
+                continue;
+            }
+            Arrays.fill(line, 0, firstCol, Double.NaN);
+            elevationGrid.readRow(x + firstCol, j, lastCol - firstCol, line, firstCol);
+            Arrays.fill(line, lastCol, width, Double.NaN);
+        }
+        return elevations;
+    }
+
+    /**
+     * Returns the elevations of a rectangular area as a flat float array, in grid order:
+     * elevations[row * width + col] is the pixel (x + col, y + row). Pixels off the map are NaN.
+     * The area is clipped to the map once and copied a row at a time, so this runs at memory speed.
+     *
+     * @param x column of the area's first pixel
+     * @param y row of the area's first pixel
+     * @param width number of columns in the area
+     * @param height number of rows in the area
+     * @param elevations array of at least width * height floats to fill, or null to allocate one
+     * @return the filled array
+     */
+    public float[] getElevationsInArea(int x, int y, int width, int height, float[] elevations) {
+        if (elevations == null) {
+            elevations = new float[width * height];
+        }
+        int firstCol = Math.max(0, -x);
+        int lastCol = Math.max(firstCol, Math.min(width, elevationGrid.getWidth() - x));
+
+        for (int row = 0; row < height; row++) {
+            int start = row * width;
+            int j = y + row;
+            if (j < 0 || j >= elevationGrid.getHeight() || firstCol == lastCol) {
+                Arrays.fill(elevations, start, start + width, Float.NaN);
+                continue;
+            }
+            Arrays.fill(elevations, start, start + firstCol, Float.NaN);
+            elevationGrid.readRow(x + firstCol, j, lastCol - firstCol, elevations, start + firstCol);
+            Arrays.fill(elevations, start + lastCol, start + width, Float.NaN);
+        }
+        return elevations;
+    }
+
+
+
+    /**
+     * Converts a pixel to {latitude, longitude} in degrees, using the transform read from the map when it was loaded.
+     * @param coord the pixel to convert
+     * @return {latitude, longitude}, or {NaN, NaN} if the map has no geographic reference
+     */
+    public double[] coordinateConvert(Coordinate coord) {
+        if (geographicTransform == null) {
+            return new double[] {Double.NaN, Double.NaN};
+        }
+        double[] lonLat = geographicTransform.toWorld(coord.getX(), coord.getY());
+        return new double[] {lonLat[1], lonLat[0]};
+    }
+}
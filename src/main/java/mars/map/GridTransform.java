@@ -0,0 +1,114 @@
+package mars.map;
+
+import java.awt.geom.AffineTransform;
+import java.awt.geom.NoninvertibleTransformException;
+
+/**
+ * An affine mapping between the world coordinates of a map and its grid (pixel) coordinates.
+ * Grid coordinates are measured from the upper-left corner of cell (0, 0), so a world point
+ * falls in the cell found by flooring its grid coordinates.
+ */
+public class GridTransform {
+
+    /**
+     * The transform of a map addressed directly in pixels.
+     */
+    public static final GridTransform IDENTITY = new GridTransform(new double[] {1, 0, 0, 1, 0, 0});
+
+    private final double[] gridToWorld; //m00, m10, m01, m11, m02, m12 as in AffineTransform.getMatrix
+    private final double xx, xy, xt; //gridX = xx * worldX + xy * worldY + xt
+    private final double yx, yy, yt; //gridY = yx * worldX + yy * worldY + yt
+    private final boolean identity; //worked out once, as isIdentity is asked on every step of a search
+
+    /**
+     * Constructor for a transform given its grid-to-world matrix.
+     *
+     * @param gridToWorld the six matrix entries, in the order of AffineTransform.getMatrix
+     * @throws IllegalArgumentException if the matrix cannot be inverted
+     */
+    public GridTransform(double[] gridToWorld) {
+        this.gridToWorld = gridToWorld.clone();
+        AffineTransform worldToGrid;
+        try {
+            worldToGrid = new AffineTransform(gridToWorld).createInverse();
+        } catch (NoninvertibleTransformException e) {
+            throw new IllegalArgumentException("Grid-to-world transform is not invertible", e);
+        }
+        xx = worldToGrid.getScaleX();
+        xy = worldToGrid.getShearX();
+        xt = worldToGrid.getTranslateX();
+        yx = worldToGrid.getShearY();
+        yy = worldToGrid.getScaleY();
+        yt = worldToGrid.getTranslateY();
+        identity = new AffineTransform(gridToWorld).isIdentity();
+    }
+
+    /**
+     * Returns the column of the grid cell containing a world point.
+     */
+    public int toGridX(double x, double y) {
+        return (int) Math.floor(xx * x + xy * y + xt);
+    }
+
+    /**
+     * Returns the row of the grid cell containing a world point.
+     */
+    public int toGridY(double x, double y) {
+        return (int) Math.floor(yx * x + yy * y + yt);
+    }
+
+    /**
+     * Returns the packed index (gridY * width + gridX) of the grid cell containing a world point,
+     * or -1 if that cell is outside a grid of the given size.
+     */
+    public long toGridIndex(double x, double y, int width, int height) {
+        double gx = Math.floor(xx * x + xy * y + xt);
+        double gy = Math.floor(yx * x + yy * y + yt);
+        if (gx < 0 || gy < 0 || gx >= width || gy >= height) { //compared as doubles, so huge values can't wrap around
+            return -1;
+        }
+        return (long) gy * width + (long) gx; //a long, since maps may have more cells than an int can count
+    }
+
+    /**
+     * Batch version of toGridIndex: cells[i] is the packed index of the cell containing (xs[i], ys[i]), or -1.
+     */
+    public void toGridIndices(double[] xs, double[] ys, int width, int height, long[] cells, int count) {
+        for (int i = 0; i < count; i++) {
+            cells[i] = toGridIndex(xs[i], ys[i], width, height);
+        }
+    }
+
+    /**
+     * Returns the world coordinates {x, y} of a point given in grid coordinates.
+     */
+    public double[] toWorld(double gridX, double gridY) {
+        double[] m = gridToWorld;
+        return new double[] {m[0] * gridX + m[2] * gridY + m[4], m[1] * gridX + m[3] * gridY + m[5]};
+    }
+
+    /**
+     * Batch version of toWorld: (worldXs[i], worldYs[i]) is the world point of grid point (gridXs[i], gridYs[i]).
+     */
+    public void toWorld(double[] gridXs, double[] gridYs, double[] worldXs, double[] worldYs, int count) {
+        double[] m = gridToWorld;
+        for (int i = 0; i < count; i++) {
+            double gx = gridXs[i];
+            double gy = gridYs[i];
+            worldXs[i] = m[0] * gx + m[2] * gy + m[4];
+            worldYs[i] = m[1] * gx + m[3] * gy + m[5];
+        }
+    }
+
+    /**
+     * Returns a copy of the grid-to-world matrix, in the order of AffineTransform.getMatrix.
+     */
+    public double[] getGridToWorld() {
+        return gridToWorld.clone();
+    }
+
+    public boolean isIdentity() {
+        return identity;
+    }
+
+}
@@ -0,0 +1,46 @@
+package mars.map;
+
+import java.awt.Rectangle;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+
+/**
+ * A RegionSource over an image already in memory (or one which is safe to read from several threads at once).
+ * Every reader reads the same image.
+ */
+public class ImageRegionSource implements RegionSource {
+
+    private final RenderedImage image;
+
+    public ImageRegionSource(RenderedImage image) {
+        this.image = image;
+    }
+
+    public int getWidth() {
+        return image.getWidth();
+    }
+
+    public int getHeight() {
+        return image.getHeight();
+    }
+
+    public int getTileHeight() {
+        return image.getTileHeight();
+    }
+
+    public int getDataType() {
+        return image.getSampleModel().getDataType();
+    }
+
+    public Reader open() {
+        return new Reader() {
+            public Raster read(Rectangle region) {
+                return image.getData(new Rectangle(image.getMinX() + region.x, image.getMinY() + region.y, region.width, region.height));
+            }
+
+            public void close() {
+            }
+        };
+    }
+
+}
@@ -0,0 +1,45 @@
+package mars.map;
+
+/**
+ * The layout of per-coordinate state for a map: coordinates run from 0 to the grid's width and height inclusive,
+ * since getValue and canTraverse accept both far edges. Coordinates on the grid are indexed by the grid's own layout,
+ * so state kept this way lies next to the elevations it was worked out from; the far column and then the far row
+ * follow them.
+ */
+public class LatticeLayout extends CellLayout {
+
+    private final CellLayout cells;
+    private final long cellsSize;
+
+    /**
+     * @param cells the layout of the grid's cells, for example a map's getCellLayout
+     */
+    public LatticeLayout(CellLayout cells) {
+        super(cells.getWidth() + 1, cells.getHeight() + 1);
+        this.cells = cells;
+        this.cellsSize = cells.size();
+    }
+
+    public long index(int x, int y) {
+        int lastX = width - 1;
+        if (x < lastX && y < height - 1) {
+            return cells.index(x, y);
+        }
+        if (x == lastX) {
+            return cellsSize + y; //the far column, top to bottom
+        }
+        return cellsSize + height + x; //the far row, left of the far column
+    }
+
+    public long size() {
+        return cellsSize + height + width - 1;
+    }
+
+    /**
+     * Returns the layout of the grid's cells this layout extends.
+     */
+    public CellLayout getCells() {
+        return cells;
+    }
+
+}
@@ -0,0 +1,15 @@
+package mars.map;
+
+/**
+ * Callback for loaders which decode a map in parts, called each time another part is done.
+ * Parts may finish on different threads and out of order, so implementations must be thread-safe.
+ */
+public interface LoadProgress {
+
+    /**
+     * @param rowsDone number of rows of the map decoded so far
+     * @param rows number of rows in the map
+     */
+    void update(int rowsDone, int rows);
+
+}
@@ -131,6 +131,8 @@ public class MapElevationsViewer  {
             }
             //Print x-axis labels below the elevations
             printXAxis(yAxis, elevation, x);
+            System.out.println("\n\nLowest: " + map.getMinValue(x, originCoords.getY(), width, height)
+                    + "  Highest: " + map.getMaxValue(x, originCoords.getY(), width, height));
         } catch (Exception e) {
             System.out.println("Something went wrong..."); //Improve this message?
         }
@@ -0,0 +1,330 @@
+package mars.map;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * A process-wide registry of loaded maps, keyed by canonical file path and the storage they are loaded in
+ * (GridTerrainMap's default storage when they are asked for), so changing the storage between calls loads the file
+ * again in the new storage instead of handing back a map kept in the old one.
+ * Every caller asking for the same map in the same storage gets the same shared, read-only map, and a map
+ * is only ever loaded once even when many threads ask for it at the same time.
+ * When the loaded maps use more heap than the memory budget, the least recently requested
+ * maps are dropped from the registry (rovers already holding them keep working).
+ *
+ * Maps never change once loaded. When a map file is updated, reload loads it again in the background as a new,
+ * higher version and swaps that in once it is ready: searches already running keep the version they started
+ * with, and every getMap from then on gets the new one. Nothing waits for the reload except its own Future.
+ * Update map files by moving the new file into place rather than rewriting them, since maps in TILED storage
+ * keep reading from their file.
+ */
+public class MapRegistry {
+
+    private static final LinkedHashMap<String, FutureTask<GridTerrainMap>> maps =
+            new LinkedHashMap<String, FutureTask<GridTerrainMap>>(16, 0.75f, true); //access order, least recently requested first
+    private static final HashMap<String, Long> versions = new HashMap<String, Long>(); //last version handed out per map; guarded by maps
+    private static final HashMap<String, Long> registeredVersions = new HashMap<String, Long>(); //version of each registered load; guarded by maps
+    private static long memoryBudget = Long.MAX_VALUE;
+    private static final ExecutorService preloader = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable task) {
+            Thread thread = new Thread(task, "map-preloader");
+            thread.setDaemon(true); //never keep the program alive just to finish a preload
+            return thread;
+        }
+    });
+    private static final ExecutorService reloader = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable task) {
+            Thread thread = new Thread(task, "map-reloader");
+            thread.setDaemon(true);
+            return thread;
+        }
+    }); //separate from the preloader, so a long reload never holds up a map the user is waiting for
+
+    /**
+     * Returns the shared map for the given file, loading it if no one has yet.
+     * Concurrent callers asking for a map that is still loading wait for that load instead of starting their own.
+     * A map queued by preload but not yet started is loaded on the calling thread rather than waited for.
+     *
+     * @param mapPath path to the map file
+     * @return the loaded map
+     * @throws Exception if the map could not be loaded
+     */
+    public static GridTerrainMap getMap(String mapPath) throws Exception {
+        ElevationStorage storage = GridTerrainMap.getDefaultStorage();
+        String key = key(mapPath, storage);
+        FutureTask<GridTerrainMap> load = getLoad(key, mapPath, storage);
+        load.run(); //does nothing if the load has already started, in which case get waits for it
+        try {
+            GridTerrainMap map = load.get();
+            enforceBudget(key);
+            return map;
+        } catch (ExecutionException e) {
+            forget(key, load);
+            Throwable cause = e.getCause();
+            throw (cause instanceof Exception) ? (Exception) cause : e;
+        } catch (CancellationException e) {
+            forget(key, load);
+            throw e;
+        }
+    }
+
+    /**
+     * Starts loading the given map on a background thread and returns at once, so the map can load while
+     * the user is still being prompted. Once the map is loaded its elevation pyramid is built too.
+     * A later getMap for the same file returns the same instance, waiting for the load if it hasn't finished.
+     *
+     * @param mapPath path to the map file
+     * @return a Future which completes with the loaded map, or with the exception which stopped it loading
+     * @throws IOException if the path cannot be resolved
+     */
+    public static Future<GridTerrainMap> preload(String mapPath) throws IOException {
+        ElevationStorage storage = GridTerrainMap.getDefaultStorage();
+        final String key = key(mapPath, storage);
+        final FutureTask<GridTerrainMap> load = getLoad(key, mapPath, storage);
+        preloader.execute(new Runnable() {
+            public void run() {
+                load.run();
+                try {
+                    GridTerrainMap map = load.get();
+                    enforceBudget(key);
+                    map.getPyramid(); //derived data the search will ask for
+                } catch (Exception e) {
+                    forget(key, load); //the caller sees the failure through the Future
+                }
+            }
+        });
+        return load;
+    }
+
+    /**
+     * Returns the registry key of a map file loaded in the given storage.
+     */
+    private static String key(String mapPath, ElevationStorage storage) throws IOException {
+        return new File(mapPath).getCanonicalPath() + "|" + storage;
+    }
+
+    /**
+     * Returns the registered load for a map, registering a new (not yet started) one if there is none.
+     */
+    private static FutureTask<GridTerrainMap> getLoad(String key, String mapPath, ElevationStorage storage) {
+        synchronized (maps) {
+            FutureTask<GridTerrainMap> load = maps.get(key);
+            if (load == null) {
+                long version = nextVersion(key);
+                load = newLoad(mapPath, storage, version);
+                maps.put(key, load);
+                registeredVersions.put(key, version);
+            }
+            return load;
+        }
+    }
+
+    /**
+     * Returns a load (not yet started) of a new instance of a map in the given storage, with the given version.
+     */
+    private static FutureTask<GridTerrainMap> newLoad(final String mapPath, final ElevationStorage storage, final long version) {
+        return new FutureTask<GridTerrainMap>(new Callable<GridTerrainMap>() {
+            public GridTerrainMap call() throws Exception {
+                GridTerrainMap map = createMap(mapPath);
+                map.setStorage(storage); //the storage of the key, even if the default has changed since
+                map.setVersion(version);
+                map.initMap(mapPath);
+                return map;
+            }
+        });
+    }
+
+    /**
+     * Hands out the next version number for a map. Must be called holding the maps lock.
+     */
+    private static long nextVersion(String key) {
+        Long last = versions.get(key);
+        long version = last == null ? 1 : last + 1;
+        versions.put(key, version);
+        return version;
+    }
+
+    /**
+     * Loads a new version of a map, in the current default storage, from its file on a background thread and, once it has loaded, makes it the map
+     * every later getMap returns. Until then getMap keeps returning the current version, and anything already
+     * holding the current version keeps it for as long as it likes. If the new version fails to load, the
+     * current one stays. If several reloads of a map overlap, the newest one to finish loading is kept, unless
+     * a reload started later has already been swapped in.
+     *
+     * @param mapPath path to the map file
+     * @return a Future which completes with the new version once it has been swapped in, or with the exception
+     *         which stopped it loading
+     * @throws IOException if the path cannot be resolved
+     */
+    public static Future<GridTerrainMap> reload(final String mapPath) throws IOException {
+        ElevationStorage storage = GridTerrainMap.getDefaultStorage();
+        final String key = key(mapPath, storage);
+        final long version;
+        synchronized (maps) {
+            version = nextVersion(key);
+        }
+        final FutureTask<GridTerrainMap> load = newLoad(mapPath, storage, version);
+        FutureTask<GridTerrainMap> swap = new FutureTask<GridTerrainMap>(new Callable<GridTerrainMap>() {
+            public GridTerrainMap call() throws Exception {
+                load.run();
+                GridTerrainMap map;
+                try {
+                    map = load.get();
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    throw (cause instanceof Exception) ? (Exception) cause : e;
+                }
+                map.getPyramid(); //derived data the next search will ask for, built before anyone waits on it
+                synchronized (maps) {
+                    Long registered = registeredVersions.get(key);
+                    if (registered == null || registered < version) {
+                        maps.put(key, load);
+                        registeredVersions.put(key, version);
+                    }
+                }
+                enforceBudget(key);
+                return map;
+            }
+        });
+        reloader.execute(swap);
+        return swap;
+    }
+
+    /**
+     * Drops a failed or cancelled load from the registry, so the next caller gets to try again.
+     */
+    private static void forget(String key, FutureTask<GridTerrainMap> load) {
+        synchronized (maps) {
+            if (maps.get(key) == load) {
+                maps.remove(key);
+                registeredVersions.remove(key);
+            }
+        }
+    }
+
+    /**
+     * Returns a new, unloaded map of the right type for the given file: a BinaryTerrainMap for
+     * binary maps (see BinaryMapFormat) and a GeoTIFF for anything else.
+     */
+    public static GridTerrainMap createMap(String mapPath) {
+        if (mapPath.endsWith(BinaryMapFormat.EXTENSION)) {
+            return new BinaryTerrainMap();
+        }
+        return new GeoTIFF();
+    }
+
+    /**
+     * Sets how many bytes the registered maps may use in total before older ones are dropped, counting their heap,
+     * direct and mapped bytes and the data worked out from them (see GridTerrainMap.getMemoryFootprint).
+     */
+    public static void setMemoryBudget(long bytes) {
+        memoryBudget = bytes;
+        enforceBudget(null);
+    }
+
+    public static long getMemoryBudget() {
+        return memoryBudget;
+    }
+
+    /**
+     * Returns whether a map can take on the given number of bytes of data worked out from it (see
+     * GridTerrainMap.addDerivedData) with the registered maps, and the map itself if it is not one of them, still
+     * within the memory budget. Callers check this before building data the budget would only drop again.
+     */
+    public static boolean fitsBudget(GridTerrainMap map, long bytes) {
+        synchronized (maps) {
+            long used = 0;
+            boolean registered = false;
+            for (FutureTask<GridTerrainMap> load : maps.values()) {
+                used += footprint(load);
+                registered |= loaded(load) == map;
+            }
+            if (!registered) {
+                used += map.getMemoryFootprint();
+            }
+            return bytes <= memoryBudget - used;
+        }
+    }
+
+    /**
+     * Returns the keys of all maps currently held by the registry, least recently requested first: each is the map's
+     * canonical path and the storage it was loaded in, separated by "|".
+     */
+    public static List<String> getLoadedMaps() {
+        synchronized (maps) {
+            return new ArrayList<String>(maps.keySet());
+        }
+    }
+
+    /**
+     * Drops every map from the registry.
+     */
+    public static void clear() {
+        synchronized (maps) {
+            maps.clear();
+            registeredVersions.clear(); //versions keep counting up, so a map loaded again still gets a new version
+        }
+    }
+
+    /**
+     * Drops the least recently requested, fully loaded maps until the registry fits its memory budget.
+     *
+     * @param keep key of a map which must not be dropped (the one just loaded), or null
+     */
+    private static void enforceBudget(String keep) {
+        synchronized (maps) {
+            long used = 0;
+            for (FutureTask<GridTerrainMap> load : maps.values()) {
+                used += footprint(load);
+            }
+
+            Iterator<Map.Entry<String, FutureTask<GridTerrainMap>>> eldest = maps.entrySet().iterator();
+            while (used > memoryBudget && eldest.hasNext()) {
+                Map.Entry<String, FutureTask<GridTerrainMap>> entry = eldest.next();
+                if (entry.getKey().equals(keep) || !entry.getValue().isDone()) {
+                    continue;
+                }
+                used -= footprint(entry.getValue());
+                registeredVersions.remove(entry.getKey());
+                eldest.remove();
+            }
+        }
+    }
+
+    /**
+     * Returns the footprint of a finished load, or 0 if it is still loading or failed.
+     */
+    private static long footprint(FutureTask<GridTerrainMap> load) {
+        GridTerrainMap map = loaded(load);
+        return map == null ? 0 : map.getMemoryFootprint();
+    }
+
+    /**
+     * Returns the map of a finished load, or null if it is still loading or failed.
+     */
+    private static GridTerrainMap loaded(FutureTask<GridTerrainMap> load) {
+        if (!load.isDone()) {
+            return null;
+        }
+        try {
+            return load.get();
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+}
@@ -0,0 +1,378 @@
+package mars.map;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Whole-map statistics used to tune rovers to a map: elevation range, mean and histogram, how many samples
+ * hold no data, and the distribution of slopes between neighboring pixels.
+ *
+ * Everything is gathered in one pass over the elevations, split into bands of rows which are scanned in
+ * parallel on a ForkJoinPool and merged pairwise. Slopes are measured as MarsRover.getSlope does, in degrees,
+ * between each pixel and its right and lower neighbors, so every edge of the grid is counted once.
+ * Samples which are NaN or equal to the map's no-data value are counted as no data and left out of
+ * everything else, as are the slopes touching them.
+ */
+public class MapStatistics {
+
+    public static final int ELEVATION_BINS = 256;
+    public static final int SLOPE_BINS = 90; //one per degree, 0 to 90
+    static final int BAND_ROWS = 128; //rows scanned by one fork/join task; bigger ranges are split in two
+    private static final ForkJoinPool POOL = new ForkJoinPool(); //one worker per core; its threads are daemons
+
+    private final int width;
+    private final int height;
+    private final double noData;
+    private final double histogramMin; //lower edge of the first elevation bin
+    private final double histogramMax; //upper edge of the last elevation bin
+    private final Band totals;
+
+    private MapStatistics(int width, int height, double noData, double histogramMin, double histogramMax, Band totals) {
+        this.width = width;
+        this.height = height;
+        this.noData = noData;
+        this.histogramMin = histogramMin;
+        this.histogramMax = histogramMax;
+        this.totals = totals;
+    }
+
+    /**
+     * Computes the statistics of the given elevations on a pool with one worker per core.
+     *
+     * @param elevations the map's elevations
+     * @param noData the map's no-data value, or NaN if it has none
+     * @param low lowest elevation on the map, or NaN if it isn't known yet
+     * @param high highest elevation on the map, or NaN if it isn't known yet
+     * @return the statistics
+     */
+    public static MapStatistics compute(ElevationGrid elevations, double noData, double low, double high) {
+        return compute(elevations, noData, low, high, POOL);
+    }
+
+    /**
+     * Computes the statistics of the given elevations on the given pool.
+     * The elevation histogram spans [low, high], so those should be the map's real range (ElevationPyramid has it);
+     * if either is NaN, a first pass finds the range before the statistics pass.
+     *
+     * @param elevations the map's elevations
+     * @param noData the map's no-data value, or NaN if it has none
+     * @param low lowest elevation on the map, or NaN if it isn't known yet
+     * @param high highest elevation on the map, or NaN if it isn't known yet
+     * @param pool the pool to scan on
+     * @return the statistics
+     */
+    public static MapStatistics compute(ElevationGrid elevations, double noData, double low, double high, ForkJoinPool pool) {
+        if (low != low || high != high) {
+            Band range = pool.invoke(new BandTask(elevations, noData, 0, 0, 0, elevations.getHeight(), false));
+            low = range.min;
+            high = range.max;
+        }
+        Band totals = pool.invoke(new BandTask(elevations, noData, low, high, 0, elevations.getHeight(), true));
+        return new MapStatistics(elevations.getWidth(), elevations.getHeight(), noData, low, high, totals);
+    }
+
+    //----Results-----------------------------------------------------------------------------------------------------
+
+    /**
+     * Returns how many samples hold an elevation.
+     */
+    public long getCount() {
+        return totals.count;
+    }
+
+    /**
+     * Returns how many samples are NaN or the map's no-data value.
+     */
+    public long getNoDataCount() {
+        return (long) width * height - totals.count;
+    }
+
+    /**
+     * Returns the no-data value the statistics were computed with, or NaN if the map has none.
+     */
+    public double getNoData() {
+        return noData;
+    }
+
+    /**
+     * Returns the lowest elevation on the map, or NaN if it has no data.
+     */
+    public double getMin() {
+        return totals.count == 0 ? Double.NaN : totals.min;
+    }
+
+    /**
+     * Returns the highest elevation on the map, or NaN if it has no data.
+     */
+    public double getMax() {
+        return totals.count == 0 ? Double.NaN : totals.max;
+    }
+
+    /**
+     * Returns the mean elevation of the map, or NaN if it has no data.
+     */
+    public double getMean() {
+        return totals.count == 0 ? Double.NaN : totals.sum / totals.count;
+    }
+
+    /**
+     * Returns the standard deviation of the map's elevations, or NaN if it has no data.
+     */
+    public double getStandardDeviation() {
+        if (totals.count == 0) {
+            return Double.NaN;
+        }
+        double mean = totals.sum / totals.count;
+        return Math.sqrt(Math.max(0, totals.sumOfSquares / totals.count - mean * mean));
+    }
+
+    /**
+     * Returns a copy of the elevation histogram: ELEVATION_BINS equal-width bins from getHistogramMin to getHistogramMax.
+     */
+    public long[] getElevationHistogram() {
+        return totals.elevations.clone();
+    }
+
+    public double getHistogramMin() {
+        return histogramMin;
+    }
+
+    public double getHistogramMax() {
+        return histogramMax;
+    }
+
+    /**
+     * Returns how many neighboring pixel pairs were measured for slope.
+     */
+    public long getSlopeCount() {
+        return totals.slopeCount;
+    }
+
+    /**
+     * Returns the steepest slope between neighboring pixels, in degrees, or NaN if no slope was measured.
+     */
+    public double getMaxSlope() {
+        return totals.slopeCount == 0 ? Double.NaN : totals.maxSlope;
+    }
+
+    /**
+     * Returns a copy of the slope histogram: bin i counts neighboring pixel pairs whose slope is
+     * between i and i + 1 degrees (the last bin includes 90).
+     */
+    public long[] getSlopeHistogram() {
+        return totals.slopes.clone();
+    }
+
+    /**
+     * Returns the fraction of neighboring pixel pairs whose slope is at most the given number of degrees,
+     * to the nearest whole degree: roughly how much of the map a rover with that maximum slope can cross.
+     */
+    public double getTraversableFraction(double maxSlope) {
+        if (totals.slopeCount == 0) {
+            return Double.NaN;
+        }
+        long within = 0;
+        for (int i = 0; i < SLOPE_BINS && i < Math.round(maxSlope); i++) {
+            within += totals.slopes[i];
+        }
+        return (double) within / totals.slopeCount;
+    }
+
+    //----Storage-----------------------------------------------------------------------------------------------------
+
+    /**
+     * Writes the statistics (little-endian), to be read back by read, for example into a DerivedDataCache.
+     */
+    public void write(FileChannel out) throws IOException {
+        ByteBuffer data = ByteBuffer.allocate(4 * 4 + 8 * 11 + 8 * (ELEVATION_BINS + SLOPE_BINS)).order(ByteOrder.LITTLE_ENDIAN);
+        data.putInt(width).putInt(height).putInt(ELEVATION_BINS).putInt(SLOPE_BINS);
+        data.putDouble(noData).putDouble(histogramMin).putDouble(histogramMax);
+        data.putLong(totals.count).putDouble(totals.min).putDouble(totals.max).putDouble(totals.sum).putDouble(totals.sumOfSquares);
+        data.putLong(totals.slopeCount).putDouble(totals.maxSlope).putLong(0); //reserved
+        for (long bin : totals.elevations) data.putLong(bin);
+        for (long bin : totals.slopes) data.putLong(bin);
+        data.flip();
+        while (data.hasRemaining()) {
+            out.write(data);
+        }
+    }
+
+    /**
+     * Reads statistics written by write, instead of computing them again.
+     *
+     * @param in the written statistics, positioned at their start
+     * @param elevations the elevations the statistics were computed from
+     * @return the statistics
+     * @throws IOException if the data was not written for a grid of this size
+     */
+    public static MapStatistics read(ByteBuffer in, ElevationGrid elevations) throws IOException {
+        in = in.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        if (in.getInt() != elevations.getWidth() || in.getInt() != elevations.getHeight()
+                || in.getInt() != ELEVATION_BINS || in.getInt() != SLOPE_BINS) {
+            throw new IOException("Stored map statistics do not match the map");
+        }
+        double noData = in.getDouble();
+        double histogramMin = in.getDouble();
+        double histogramMax = in.getDouble();
+        Band totals = new Band(histogramMin, histogramMax);
+        totals.count = in.getLong();
+        totals.min = in.getDouble();
+        totals.max = in.getDouble();
+        totals.sum = in.getDouble();
+        totals.sumOfSquares = in.getDouble();
+        totals.slopeCount = in.getLong();
+        totals.maxSlope = in.getDouble();
+        in.getLong(); //reserved
+        in.asLongBuffer().get(totals.elevations);
+        in.position(in.position() + 8 * ELEVATION_BINS);
+        in.asLongBuffer().get(totals.slopes);
+        return new MapStatistics(elevations.getWidth(), elevations.getHeight(), noData, histogramMin, histogramMax, totals);
+    }
+
+    //----Scanning----------------------------------------------------------------------------------------------------
+
+    /**
+     * Scans a range of rows, splitting it in two until it is at most BAND_ROWS rows.
+     */
+    private static class BandTask extends RecursiveTask<Band> {
+        private static final long serialVersionUID = 1L;
+        private final ElevationGrid elevations;
+        private final double noData;
+        private final double low;
+        private final double high;
+        private final int firstRow;
+        private final int endRow; //exclusive
+        private final boolean full; //false to find just the elevation range
+
+        BandTask(ElevationGrid elevations, double noData, double low, double high, int firstRow, int endRow, boolean full) {
+            this.elevations = elevations;
+            this.noData = noData;
+            this.low = low;
+            this.high = high;
+            this.firstRow = firstRow;
+            this.endRow = endRow;
+            this.full = full;
+        }
+
+        @Override
+        protected Band compute() {
+            if (endRow - firstRow > BAND_ROWS) {
+                int middle = (firstRow + endRow) >>> 1;
+                BandTask top = new BandTask(elevations, noData, low, high, firstRow, middle, full);
+                BandTask bottom = new BandTask(elevations, noData, low, high, middle, endRow, full);
+                top.fork();
+                Band result = bottom.compute();
+                result.merge(top.join());
+                return result;
+            }
+            return scan();
+        }
+
+        private Band scan() {
+            int width = elevations.getWidth();
+            Band band = new Band(low, high);
+            double[] row = new double[width];
+            double[] below = new double[width];
+            if (firstRow < endRow) {
+                elevations.readRow(0, firstRow, width, row, 0);
+                clearNoData(row);
+            }
+            for (int y = firstRow; y < endRow; y++) {
+                boolean hasBelow = full && y + 1 < elevations.getHeight(); //the band below starts there, but this band owns the edges to it
+                if (hasBelow) {
+                    elevations.readRow(0, y + 1, width, below, 0);
+                    clearNoData(below);
+                }
+                for (int x = 0; x < width; x++) {
+                    double value = row[x];
+                    if (value != value) continue; //no data
+                    band.addElevation(value);
+                    if (!full) continue;
+                    if (x + 1 < width) band.addSlope(value, row[x + 1]);
+                    if (hasBelow) band.addSlope(value, below[x]);
+                }
+                double[] swap = row; //the row below becomes the current row
+                row = below;
+                below = swap;
+                if (!hasBelow && y + 1 < endRow) {
+                    elevations.readRow(0, y + 1, width, row, 0);
+                    clearNoData(row);
+                }
+            }
+            return band;
+        }
+
+        /**
+         * Replaces the no-data value with NaN, so every later check is a single NaN test.
+         */
+        private void clearNoData(double[] row) {
+            if (noData != noData) {
+                return;
+            }
+            for (int i = 0; i < row.length; i++) {
+                if (row[i] == noData) row[i] = Double.NaN;
+            }
+        }
+    }
+
+    /**
+     * Running totals for one band of rows; bands are merged into the totals for the whole map.
+     */
+    private static class Band {
+        final double low;
+        final double binWidth;
+        final long[] elevations = new long[ELEVATION_BINS];
+        final long[] slopes = new long[SLOPE_BINS];
+        long count;
+        double min = Double.POSITIVE_INFINITY;
+        double max = Double.NEGATIVE_INFINITY;
+        double sum;
+        double sumOfSquares;
+        long slopeCount;
+        double maxSlope;
+
+        Band(double low, double high) {
+            this.low = low;
+            this.binWidth = high > low ? (high - low) / ELEVATION_BINS : 0;
+        }
+
+        void addElevation(double value) {
+            count++;
+            if (value < min) min = value;
+            if (value > max) max = value;
+            sum += value;
+            sumOfSquares += value * value;
+            int bin = binWidth > 0 ? (int) ((value - low) / binWidth) : 0;
+            elevations[bin < 0 ? 0 : bin >= ELEVATION_BINS ? ELEVATION_BINS - 1 : bin]++;
+        }
+
+        /**
+         * Adds the slope between two pixels one pixel apart, unless the second has no data.
+         */
+        void addSlope(double from, double to) {
+            if (to != to) return;
+            double slope = Math.toDegrees(Math.atan(Math.abs(to - from)));
+            slopeCount++;
+            if (slope > maxSlope) maxSlope = slope;
+            int bin = (int) slope;
+            slopes[bin >= SLOPE_BINS ? SLOPE_BINS - 1 : bin]++;
+        }
+
+        void merge(Band other) {
+            count += other.count;
+            min = Math.min(min, other.min);
+            max = Math.max(max, other.max);
+            sum += other.sum;
+            sumOfSquares += other.sumOfSquares;
+            slopeCount += other.slopeCount;
+            maxSlope = Math.max(maxSlope, other.maxSlope);
+            for (int i = 0; i < ELEVATION_BINS; i++) elevations[i] += other.elevations[i];
+            for (int i = 0; i < SLOPE_BINS; i++) slopes[i] += other.slopes[i];
+        }
+    }
+
+}
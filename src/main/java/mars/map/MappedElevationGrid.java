@@ -0,0 +1,64 @@
+package mars.map;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+
+/**
+ * An ElevationGrid whose samples live in a binary map file (see BinaryMapFormat)
+ * which is memory-mapped instead of copied onto the heap. Heap use stays flat no matter
+ * how large the map is; the operating system pages samples in as they are touched.
+ * Samples are addressed by long index over as many mapped segments as the file needs (see OffHeapArray),
+ * so maps with more than Integer.MAX_VALUE cells work like any other.
+ */
+public class MappedElevationGrid extends OffHeapElevationGrid {
+
+    private MappedElevationGrid(int width, int height, int sampleBytes, OffHeapArray samples) {
+        super(width, height, sampleBytes, samples);
+    }
+
+    /**
+     * Maps an existing binary map file read-only.
+     *
+     * @param file the binary map, written by BinaryMapFormat.write
+     * @return a grid backed by the mapped file
+     * @throws IOException if the file cannot be read or is not a binary map
+     */
+    public static MappedElevationGrid open(File file) throws IOException {
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = in.getChannel();
+            return map(channel, BinaryMapFormat.readHeader(channel, file));
+        } finally {
+            in.close(); //the mappings stay valid after the channel is closed
+        }
+    }
+
+    /**
+     * Maps the samples of a binary map whose header has already been read.
+     */
+    static MappedElevationGrid map(FileChannel channel, BinaryMapFormat.Header header) throws IOException {
+        OffHeapArray samples = OffHeapArray.map(channel, FileChannel.MapMode.READ_ONLY, header.dataOffset, header.getSampleBytes());
+        return new MappedElevationGrid(header.width, header.height, header.sampleBytes, samples);
+    }
+
+    /**
+     * Copies every sample onto the heap with one bulk copy per mapped segment.
+     *
+     * @return a FloatElevationGrid or DoubleElevationGrid holding the same samples
+     * @throws IllegalArgumentException if the map has more cells than a heap grid can hold
+     */
+    public ElevationGrid toHeap() {
+        int cells = arrayCells(width, height);
+        if (sampleBytes == 8) {
+            double[] heap = new double[cells];
+            samples.getDoubles(0, heap, 0, cells);
+            return new DoubleElevationGrid(width, height, heap);
+        }
+        float[] heap = new float[cells];
+        samples.getFloats(0, heap, 0, cells);
+        return new FloatElevationGrid(width, height, heap);
+    }
+
+}
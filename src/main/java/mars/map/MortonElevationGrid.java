@@ -0,0 +1,114 @@
+package mars.map;
+
+import java.awt.Rectangle;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.io.IOException;
+
+/**
+ * An ElevationGrid whose samples are stored in a MortonLayout instead of row by row, so searches whose
+ * frontiers grow in every direction stay within a few pages of memory. Samples are held as floats,
+ * or as doubles for int and double source samples, exactly as FloatElevationGrid and DoubleElevationGrid do.
+ */
+public class MortonElevationGrid extends ElevationGrid implements WritableElevationGrid {
+
+    private final MortonLayout layout;
+    private final float[] floats; //null if samples are held as doubles
+    private final double[] doubles; //null if samples are held as floats
+
+    public MortonElevationGrid(int width, int height, boolean doubleSamples) {
+        super(width, height);
+        layout = new MortonLayout(width, height);
+        floats = doubleSamples ? null : new float[layout.arraySize()];
+        doubles = doubleSamples ? new double[layout.arraySize()] : null;
+    }
+
+    /**
+     * Copies band 0 of the given image into a new grid, reading it in horizontal strips like ElevationGrid.fromImage.
+     *
+     * @param image the decoded map image
+     * @return a grid holding every sample of the image
+     */
+    public static MortonElevationGrid fromImage(RenderedImage image) {
+        int w = image.getWidth();
+        int h = image.getHeight();
+        MortonElevationGrid elevations = new MortonElevationGrid(w, h, isDoubleSampled(image));
+        for (int row = 0; row < h; row += STRIP_HEIGHT) {
+            int rows = Math.min(STRIP_HEIGHT, h - row);
+            Raster strip = image.getData(new Rectangle(image.getMinX(), image.getMinY() + row, w, rows));
+            elevations.copyRows(strip, row, rows);
+        }
+        return elevations;
+    }
+
+    /**
+     * Parallel version of fromImage, decoding strips of the image on up to the given number of threads
+     * (see ElevationGrid.fromImage(RenderedImage, int, LoadProgress)).
+     */
+    public static MortonElevationGrid fromImage(RenderedImage image, int threads, LoadProgress progress) throws InterruptedException {
+        MortonElevationGrid elevations = new MortonElevationGrid(image.getWidth(), image.getHeight(), isDoubleSampled(image));
+        decode(image, elevations, threads, progress);
+        return elevations;
+    }
+
+    /**
+     * Version of fromImage reading a RegionSource, with one reader per decoding thread.
+     *
+     * @throws IOException if the source cannot be read
+     */
+    public static MortonElevationGrid fromSource(RegionSource source, int threads, LoadProgress progress)
+            throws InterruptedException, IOException {
+        MortonElevationGrid elevations = new MortonElevationGrid(source.getWidth(), source.getHeight(), isDoubleSampled(source.getDataType()));
+        decode(source, elevations, threads, progress);
+        return elevations;
+    }
+
+    /**
+     * Copies another grid (for example a mapped binary map) into a new grid in Morton order.
+     */
+    public static MortonElevationGrid copyOf(ElevationGrid source, boolean doubleSamples) {
+        MortonElevationGrid elevations = new MortonElevationGrid(source.getWidth(), source.getHeight(), doubleSamples);
+        double[] row = new double[source.getWidth()];
+        for (int y = 0; y < source.getHeight(); y++) {
+            source.readRow(0, y, row.length, row, 0);
+            elevations.setRow(y, row);
+        }
+        return elevations;
+    }
+
+    public double get(int x, int y) {
+        int index = layout.arrayIndex(x, y);
+        return floats != null ? floats[index] : doubles[index];
+    }
+
+    /**
+     * Returns the layout the samples are stored in, for per-cell arrays which should share it.
+     */
+    public MortonLayout getLayout() {
+        return layout;
+    }
+
+    public long getMemoryFootprint() {
+        return (floats != null ? 4L : 8L) * layout.size();
+    }
+
+    public void copyRows(Raster strip, int firstRow, int rows) {
+        double[] row = new double[width];
+        for (int j = 0; j < rows; j++) {
+            strip.getSamples(strip.getMinX(), strip.getMinY() + j, width, 1, 0, row);
+            setRow(firstRow + j, row);
+        }
+    }
+
+    private void setRow(int y, double[] row) {
+        for (int x = 0; x < width; x++) {
+            int index = layout.arrayIndex(x, y);
+            if (floats != null) {
+                floats[index] = (float) row[x];
+            } else {
+                doubles[index] = row[x];
+            }
+        }
+    }
+
+}
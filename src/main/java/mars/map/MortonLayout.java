@@ -0,0 +1,66 @@
+package mars.map;
+
+/**
+ * A blocked Z-order layout. The grid is cut into TILE_SIZE x TILE_SIZE tiles stored one after another
+ * in row-major tile order, and the cells inside each tile are stored in Morton (Z) order, so cells
+ * near each other in any direction are near each other in memory. A row-major raster puts a cell's
+ * vertical neighbors a whole row apart, which on wide maps means a different page for every step
+ * up or down; here a 32 x 32 tile of floats is a single 4 KB page.
+ * Only the last column and row of tiles can be partly unused, so the overhead stays small for any map shape.
+ */
+public class MortonLayout extends CellLayout {
+
+    public static final int TILE_BITS = 5;
+    public static final int TILE_SIZE = 1 << TILE_BITS;
+    private static final int TILE_MASK = TILE_SIZE - 1;
+    private static final int[] SPREAD = new int[TILE_SIZE]; //SPREAD[i] is i with a zero bit inserted above each of its bits
+
+    static {
+        for (int i = 0; i < TILE_SIZE; i++) {
+            int spread = 0;
+            for (int bit = 0; bit < TILE_BITS; bit++) {
+                spread |= ((i >> bit) & 1) << (2 * bit);
+            }
+            SPREAD[i] = spread;
+        }
+    }
+
+    private final int tilesAcross;
+    private final int size;
+
+    public MortonLayout(int width, int height) {
+        super(width, height);
+        tilesAcross = (width + TILE_MASK) >> TILE_BITS;
+        int tilesDown = (height + TILE_MASK) >> TILE_BITS;
+        long cells = (long) tilesAcross * tilesDown << (2 * TILE_BITS);
+        if (cells > ElevationGrid.MAX_ARRAY_CELLS) {
+            throw new IllegalArgumentException("A " + width + "x" + height + " grid does not fit in one array");
+        }
+        size = (int) cells;
+    }
+
+    public long index(int x, int y) {
+        return arrayIndex(x, y);
+    }
+
+    /**
+     * Returns the index of cell (x, y) as an int, for the Java arrays of a MortonElevationGrid: a Morton layout
+     * always fits in one array.
+     */
+    public int arrayIndex(int x, int y) {
+        int tile = (y >> TILE_BITS) * tilesAcross + (x >> TILE_BITS);
+        return (tile << (2 * TILE_BITS)) | SPREAD[x & TILE_MASK] | (SPREAD[y & TILE_MASK] << 1);
+    }
+
+    public long size() {
+        return size;
+    }
+
+    /**
+     * Returns size() as an int, for allocating Java arrays in this layout.
+     */
+    public int arraySize() {
+        return size;
+    }
+
+}
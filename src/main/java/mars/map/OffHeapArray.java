@@ -0,0 +1,213 @@
+package mars.map;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * A long-indexed run of bytes outside the Java heap, held as a series of fixed-size segments: either direct
+ * buffers or mapped regions of a file. A single ByteBuffer (like a Java array) is limited to Integer.MAX_VALUE
+ * elements, so this is what holds maps with more cells than that.
+ * Values are little-endian, as in BinaryMapFormat. Segments are a power of two bytes long, so a float, int,
+ * long or double at an index which is a multiple of its size never straddles two of them.
+ * Absolute gets and puts never move a segment's position, so threads may read and write different parts at once.
+ */
+public class OffHeapArray {
+
+    static final int SEGMENT_BITS = 30; //1 GB per segment
+    static final long SEGMENT_BYTES = 1L << SEGMENT_BITS;
+    private static final long SEGMENT_MASK = SEGMENT_BYTES - 1;
+
+    private final ByteBuffer[] segments;
+    private final long bytes;
+    private final boolean mapped; //true for regions of a file, false for direct memory
+
+    private OffHeapArray(ByteBuffer[] segments, long bytes, boolean mapped) {
+        this.segments = segments;
+        this.bytes = bytes;
+        this.mapped = mapped;
+    }
+
+    /**
+     * Allocates a zeroed array of direct memory.
+     *
+     * @param bytes the size of the array, in bytes
+     * @return the new array
+     */
+    public static OffHeapArray allocate(long bytes) {
+        ByteBuffer[] segments = new ByteBuffer[segmentCount(bytes)];
+        for (int i = 0; i < segments.length; i++) {
+            segments[i] = ByteBuffer.allocateDirect(segmentSize(bytes, i)).order(ByteOrder.LITTLE_ENDIAN);
+        }
+        return new OffHeapArray(segments, bytes, false);
+    }
+
+    /**
+     * Maps a region of a file as an array. The mapping stays valid after the channel is closed.
+     *
+     * @param channel an open channel on the file
+     * @param mode READ_ONLY, or READ_WRITE for an array whose puts go to the file
+     * @param position where the region starts in the file
+     * @param bytes the size of the region
+     * @return an array over the mapped region
+     * @throws IOException if the region cannot be mapped
+     */
+    public static OffHeapArray map(FileChannel channel, FileChannel.MapMode mode, long position, long bytes) throws IOException {
+        ByteBuffer[] segments = new ByteBuffer[segmentCount(bytes)];
+        for (int i = 0; i < segments.length; i++) {
+            segments[i] = channel.map(mode, position + i * SEGMENT_BYTES, segmentSize(bytes, i)).order(ByteOrder.LITTLE_ENDIAN);
+        }
+        return new OffHeapArray(segments, bytes, true);
+    }
+
+    private static int segmentCount(long bytes) {
+        if (bytes < 0) {
+            throw new IllegalArgumentException("Negative array size: " + bytes);
+        }
+        return (int) ((bytes + SEGMENT_MASK) >>> SEGMENT_BITS);
+    }
+
+    private static int segmentSize(long bytes, int segment) {
+        return (int) Math.min(SEGMENT_BYTES, bytes - segment * SEGMENT_BYTES);
+    }
+
+    /**
+     * Returns the size of the array, in bytes.
+     */
+    public long size() {
+        return bytes;
+    }
+
+    /**
+     * Returns whether the array maps a region of a file (see map) rather than holding direct memory.
+     */
+    public boolean isMapped() {
+        return mapped;
+    }
+
+    public byte getByte(long offset) {
+        return segments[(int) (offset >>> SEGMENT_BITS)].get((int) (offset & SEGMENT_MASK));
+    }
+
+    public void putByte(long offset, byte value) {
+        segments[(int) (offset >>> SEGMENT_BITS)].put((int) (offset & SEGMENT_MASK), value);
+    }
+
+    /**
+     * Returns the index'th float, at byte offset 4 * index. The other element accessors work the same way.
+     */
+    public float getFloat(long index) {
+        long offset = index << 2;
+        return segments[(int) (offset >>> SEGMENT_BITS)].getFloat((int) (offset & SEGMENT_MASK));
+    }
+
+    public void putFloat(long index, float value) {
+        long offset = index << 2;
+        segments[(int) (offset >>> SEGMENT_BITS)].putFloat((int) (offset & SEGMENT_MASK), value);
+    }
+
+    public int getInt(long index) {
+        long offset = index << 2;
+        return segments[(int) (offset >>> SEGMENT_BITS)].getInt((int) (offset & SEGMENT_MASK));
+    }
+
+    public void putInt(long index, int value) {
+        long offset = index << 2;
+        segments[(int) (offset >>> SEGMENT_BITS)].putInt((int) (offset & SEGMENT_MASK), value);
+    }
+
+    public double getDouble(long index) {
+        long offset = index << 3;
+        return segments[(int) (offset >>> SEGMENT_BITS)].getDouble((int) (offset & SEGMENT_MASK));
+    }
+
+    public void putDouble(long index, double value) {
+        long offset = index << 3;
+        segments[(int) (offset >>> SEGMENT_BITS)].putDouble((int) (offset & SEGMENT_MASK), value);
+    }
+
+    /**
+     * Copies length floats starting at the index'th into an array, a segment at a time.
+     */
+    public void getFloats(long index, float[] dest, int offset, int length) {
+        while (length > 0) {
+            ByteBuffer run = slice(index << 2);
+            int count = Math.min(length, run.remaining() >> 2);
+            run.asFloatBuffer().get(dest, offset, count);
+            index += count;
+            offset += count;
+            length -= count;
+        }
+    }
+
+    public void putFloats(long index, float[] src, int offset, int length) {
+        while (length > 0) {
+            ByteBuffer run = slice(index << 2);
+            int count = Math.min(length, run.remaining() >> 2);
+            run.asFloatBuffer().put(src, offset, count);
+            index += count;
+            offset += count;
+            length -= count;
+        }
+    }
+
+    public void getDoubles(long index, double[] dest, int offset, int length) {
+        while (length > 0) {
+            ByteBuffer run = slice(index << 3);
+            int count = Math.min(length, run.remaining() >> 3);
+            run.asDoubleBuffer().get(dest, offset, count);
+            index += count;
+            offset += count;
+            length -= count;
+        }
+    }
+
+    public void putDoubles(long index, double[] src, int offset, int length) {
+        while (length > 0) {
+            ByteBuffer run = slice(index << 3);
+            int count = Math.min(length, run.remaining() >> 3);
+            run.asDoubleBuffer().put(src, offset, count);
+            index += count;
+            offset += count;
+            length -= count;
+        }
+    }
+
+    /**
+     * Writes the whole array to a channel, from the channel's position, a segment at a time.
+     *
+     * @param out the channel to write to
+     * @throws IOException if the array cannot be written
+     */
+    public void write(FileChannel out) throws IOException {
+        for (ByteBuffer segment : segments) {
+            ByteBuffer run = segment.duplicate();
+            run.position(0);
+            while (run.hasRemaining()) {
+                out.write(run);
+            }
+        }
+    }
+
+    /**
+     * Returns a little-endian view of the segment holding a byte offset, from that offset to the segment's end.
+     * The view has its own position, so it is safe to use while other threads use the segment.
+     */
+    private ByteBuffer slice(long offset) {
+        ByteBuffer run = segments[(int) (offset >>> SEGMENT_BITS)].duplicate();
+        run.position((int) (offset & SEGMENT_MASK));
+        return run.slice().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    public long getLong(long index) {
+        long offset = index << 3;
+        return segments[(int) (offset >>> SEGMENT_BITS)].getLong((int) (offset & SEGMENT_MASK));
+    }
+
+    public void putLong(long index, long value) {
+        long offset = index << 3;
+        segments[(int) (offset >>> SEGMENT_BITS)].putLong((int) (offset & SEGMENT_MASK), value);
+    }
+
+}
@@ -0,0 +1,137 @@
+package mars.map;
+
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.io.IOException;
+
+/**
+ * A row-major ElevationGrid whose samples live outside the Java heap in an OffHeapArray, addressed by long
+ * index, so a map may have more than Integer.MAX_VALUE cells (anything past about 46341 x 46341), which no
+ * heap grid can hold. Samples are held as floats, or as doubles for int and double source samples,
+ * exactly as FloatElevationGrid and DoubleElevationGrid do.
+ */
+public class OffHeapElevationGrid extends ElevationGrid {
+
+    protected final OffHeapArray samples;
+    protected final int sampleBytes; //4 for float samples, 8 for double samples
+
+    /**
+     * Allocates a grid of direct memory, filled with zeros.
+     */
+    public OffHeapElevationGrid(int width, int height, boolean doubleSamples) {
+        this(width, height, doubleSamples ? 8 : 4, OffHeapArray.allocate((long) width * height * (doubleSamples ? 8 : 4)));
+    }
+
+    /**
+     * Constructor for a grid over existing samples (such as the mapped samples of a binary map), which are used as is.
+     */
+    OffHeapElevationGrid(int width, int height, int sampleBytes, OffHeapArray samples) {
+        super(width, height);
+        this.sampleBytes = sampleBytes;
+        this.samples = samples;
+    }
+
+    /**
+     * Copies band 0 of the given image into a new grid of direct memory, decoding its strips on up to the given
+     * number of threads (see ElevationGrid.fromImage(RenderedImage, int, LoadProgress)).
+     */
+    public static OffHeapElevationGrid fromImage(RenderedImage image, int threads, LoadProgress progress) throws InterruptedException {
+        OffHeapElevationGrid elevations = new OffHeapElevationGrid(image.getWidth(), image.getHeight(), isDoubleSampled(image));
+        decode(image, elevations.writer(), threads, progress);
+        return elevations;
+    }
+
+    /**
+     * Version of fromImage reading a RegionSource, with one reader per decoding thread.
+     *
+     * @throws IOException if the source cannot be read
+     */
+    public static OffHeapElevationGrid fromSource(RegionSource source, int threads, LoadProgress progress)
+            throws InterruptedException, IOException {
+        OffHeapElevationGrid elevations = new OffHeapElevationGrid(source.getWidth(), source.getHeight(), isDoubleSampled(source.getDataType()));
+        decode(source, elevations.writer(), threads, progress);
+        return elevations;
+    }
+
+    /**
+     * Returns a writer of decoded strips into this grid's samples. Private, so that read-only subclasses such as
+     * MappedElevationGrid have no way to be written to; only the factory methods use it, on grids they have just allocated.
+     */
+    private WritableElevationGrid writer() {
+        return new WritableElevationGrid() {
+            public void copyRows(Raster strip, int firstRow, int rows) {
+                putRows(strip, firstRow, rows);
+            }
+        };
+    }
+
+    /**
+     * Returns the long packed index (y * width + x) of a cell, which unlike an int never overflows.
+     */
+    public long index(int x, int y) {
+        return (long) y * width + x;
+    }
+
+    public double get(int x, int y) {
+        return get((long) y * width + x);
+    }
+
+    public double get(long index) {
+        return sampleBytes == 8 ? samples.getDouble(index) : samples.getFloat(index);
+    }
+
+    public void readRow(int x, int y, int length, double[] dest, int offset) {
+        long start = index(x, y);
+        if (sampleBytes == 8) {
+            samples.getDoubles(start, dest, offset, length);
+        } else {
+            for (int i = 0; i < length; i++) {
+                dest[offset + i] = samples.getFloat(start + i);
+            }
+        }
+    }
+
+    public void readRow(int x, int y, int length, float[] dest, int offset) {
+        long start = index(x, y);
+        if (sampleBytes == 4) {
+            samples.getFloats(start, dest, offset, length);
+        } else {
+            for (int i = 0; i < length; i++) {
+                dest[offset + i] = (float) samples.getDouble(start + i);
+            }
+        }
+    }
+
+    /**
+     * Returns 4 for float samples and 8 for double samples.
+     */
+    public int getSampleBytes() {
+        return sampleBytes;
+    }
+
+    public long getMemoryFootprint() {
+        return 0; //not on the heap; see getDirectBytes and getMappedBytes
+    }
+
+    @Override
+    public long getDirectBytes() {
+        return samples.isMapped() ? 0 : samples.size();
+    }
+
+    @Override
+    public long getMappedBytes() {
+        return samples.isMapped() ? samples.size() : 0;
+    }
+
+    private void putRows(Raster strip, int firstRow, int rows) {
+        long start = index(0, firstRow);
+        if (sampleBytes == 8) {
+            double[] buffer = strip.getSamples(strip.getMinX(), strip.getMinY(), width, rows, 0, (double[]) null);
+            samples.putDoubles(start, buffer, 0, buffer.length);
+        } else {
+            float[] buffer = strip.getSamples(strip.getMinX(), strip.getMinY(), width, rows, 0, (float[]) null);
+            samples.putFloats(start, buffer, 0, buffer.length);
+        }
+    }
+
+}
@@ -0,0 +1,158 @@
+package mars.map;
+
+import java.awt.Rectangle;
+import java.awt.image.DataBuffer;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.io.IOException;
+
+/**
+ * A compact ElevationGrid which stores each elevation as a 16-bit code with a per-map scale and offset:
+ * elevation = offset + (code + 32767) * scale. Short.MIN_VALUE is reserved for missing samples: NaN and the map's
+ * no-data value, which read back as NaN and are left out of the range the codes cover.
+ * This takes half the memory of a float grid. Integer maps whose range fits in 65535 values
+ * (including every 8 and 16 bit DEM) are stored exactly; anything else is off by at most
+ * getQuantizationError().
+ */
+public class QuantizedElevationGrid extends ElevationGrid implements WritableElevationGrid {
+
+    private static final short NO_DATA = Short.MIN_VALUE;
+    private static final int STEPS = 65534; //codes -32767..32767
+
+    private final short[] codes;
+    private final double scale;
+    private final double base; //elevation of code 0
+    private final double quantizationError;
+    private final double noData; //source value stored as NO_DATA, or NaN
+
+    private QuantizedElevationGrid(int width, int height, double offset, double scale, double quantizationError, double noData) {
+        super(width, height);
+        this.noData = noData;
+        this.codes = new short[arrayCells(width, height)];
+        this.scale = scale;
+        this.base = offset + 32767 * scale;
+        this.quantizationError = quantizationError;
+    }
+
+    /**
+     * Quantizes band 0 of the given image. The image is read twice, strip by strip: once to find its range
+     * and once to encode it, so neither a full Raster nor a full float copy is ever held.
+     *
+     * @param image the decoded map image
+     * @return a quantized grid holding every sample of the image
+     */
+    public static QuantizedElevationGrid fromImage(RenderedImage image) {
+        return fromImage(image, Double.NaN);
+    }
+
+    /**
+     * Version of fromImage for maps with a no-data value, such as -32768 or -3.4e38, which is stored as missing
+     * rather than stretching the range the codes have to cover.
+     *
+     * @param image the decoded map image
+     * @param noData the map's no-data value, or NaN if it has none
+     * @return a quantized grid holding every sample of the image
+     */
+    public static QuantizedElevationGrid fromImage(RenderedImage image, double noData) {
+        try {
+            return fromSource(new ImageRegionSource(image), noData);
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not quantize map image", e); //images in memory are never read from files
+        }
+    }
+
+    /**
+     * Version of fromImage reading a RegionSource, such as a map file read directly by TiffRegionSource.
+     *
+     * @param source the map's samples
+     * @param noData the map's no-data value, or NaN if it has none
+     * @throws IOException if the source cannot be read
+     */
+    public static QuantizedElevationGrid fromSource(RegionSource source, double noData) throws IOException {
+        int w = source.getWidth();
+        int h = source.getHeight();
+        int dataType = source.getDataType();
+        if (!isDoubleSampled(dataType)) {
+            noData = (float) noData; //samples are floats, so a no-data value written with more digits is rounded like them
+        }
+        RegionSource.Reader reader = source.open();
+        try {
+            double min = Double.POSITIVE_INFINITY;
+            double max = Double.NEGATIVE_INFINITY;
+            for (int row = 0; row < h; row += STRIP_HEIGHT) {
+                int rows = Math.min(STRIP_HEIGHT, h - row);
+                for (double value : readStrip(reader, w, row, rows)) {
+                    if (value == noData) continue;
+                    if (value < min) min = value;
+                    if (value > max) max = value;
+                }
+            }
+            if (min > max) { //no data at all
+                min = max = 0;
+            }
+
+            boolean integral = dataType == DataBuffer.TYPE_BYTE || dataType == DataBuffer.TYPE_SHORT
+                    || dataType == DataBuffer.TYPE_USHORT || dataType == DataBuffer.TYPE_INT;
+            QuantizedElevationGrid quantized;
+            if (max - min <= STEPS && (integral || max == min)) {
+                quantized = new QuantizedElevationGrid(w, h, min, 1, 0, noData); //every value gets its own code
+            } else {
+                double scale = (max - min) / STEPS;
+                quantized = new QuantizedElevationGrid(w, h, min, scale, scale / 2, noData);
+            }
+
+            for (int row = 0; row < h; row += STRIP_HEIGHT) {
+                int rows = Math.min(STRIP_HEIGHT, h - row);
+                double[] values = readStrip(reader, w, row, rows);
+                int start = row * w;
+                for (int i = 0; i < values.length; i++) {
+                    quantized.codes[start + i] = quantized.encode(values[i]);
+                }
+            }
+            return quantized;
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static double[] readStrip(RegionSource.Reader reader, int width, int row, int rows) throws IOException {
+        Raster strip = reader.read(new Rectangle(0, row, width, rows));
+        return strip.getSamples(strip.getMinX(), strip.getMinY(), width, rows, 0, (double[]) null);
+    }
+
+    private short encode(double value) {
+        if (value != value || value == noData) {
+            return NO_DATA;
+        }
+        long code = Math.round((value - base) / scale);
+        return (short) Math.max(-32767, Math.min(32767, code));
+    }
+
+    public double get(int x, int y) {
+        return get(y * width + x);
+    }
+
+    public double get(long index) {
+        short code = codes[(int) index];
+        return code == NO_DATA ? Double.NaN : base + code * scale;
+    }
+
+    /**
+     * Returns the largest difference between a stored elevation and the original sample.
+     */
+    public double getQuantizationError() {
+        return quantizationError;
+    }
+
+    public long getMemoryFootprint() {
+        return 2L * width * height;
+    }
+
+    public void copyRows(Raster strip, int firstRow, int rows) {
+        double[] values = strip.getSamples(strip.getMinX(), strip.getMinY(), width, rows, 0, (double[]) null);
+        for (int i = 0; i < values.length; i++) {
+            codes[firstRow * width + i] = encode(values[i]);
+        }
+    }
+
+}
@@ -0,0 +1,48 @@
+package mars.map;
+
+import java.awt.Rectangle;
+import java.awt.image.Raster;
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Band 0 of a map image, read a rectangular region at a time. Decoding threads each open a Reader of their own,
+ * so a file-backed source never has several threads queueing on one decoder (see ElevationGrid.decode).
+ * Regions are given in the image's pixels, with (0, 0) its upper-left corner.
+ */
+public interface RegionSource {
+
+    /**
+     * Reads regions of the source; used by one thread at a time.
+     */
+    interface Reader extends Closeable {
+        /**
+         * @param region the region to read
+         * @return a raster holding the region's samples, whose own origin may be anywhere
+         * @throws IOException if the region cannot be read
+         */
+        Raster read(Rectangle region) throws IOException;
+    }
+
+    int getWidth();
+
+    int getHeight();
+
+    /**
+     * Returns the height of the image's own tiles or strips, so regions can be cut along them.
+     */
+    int getTileHeight();
+
+    /**
+     * Returns the DataBuffer type of the samples.
+     */
+    int getDataType();
+
+    /**
+     * Opens a new reader of the source, which the caller closes.
+     *
+     * @throws IOException if the source cannot be opened
+     */
+    Reader open() throws IOException;
+
+}
@@ -0,0 +1,20 @@
+package mars.map;
+
+/**
+ * The usual raster layout: cell (x, y) is at y * width + x.
+ */
+public class RowMajorLayout extends CellLayout {
+
+    public RowMajorLayout(int width, int height) {
+        super(width, height);
+    }
+
+    public long index(int x, int y) {
+        return (long) y * width + x;
+    }
+
+    public long size() {
+        return (long) width * height;
+    }
+
+}
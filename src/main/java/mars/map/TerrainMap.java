@@ -5,18 +5,55 @@ package mars.map;
  */
 public abstract class TerrainMap {
 
+    /**
+     * The value batch reads give points which are off the map.
+     */
+    public static final double NO_VALUE = Double.NaN;
+
     public abstract void initMap(String fileLocation) throws Exception;
 
     public abstract double getValue(double x, double y) throws Exception;
 
+    /**
+     * Non-throwing version of getValue for search loops: the elevation at (x, y), or NO_VALUE if that point is off the map.
+     */
+    public abstract double sample(double x, double y);
+
     public abstract double getMaxValue() throws Exception;
 
     public abstract double getMinValue() throws Exception;
 
+    /**
+     * Returns elevation, no-data and slope statistics for the whole map, computed once and then kept.
+     */
+    public abstract MapStatistics getStatistics();
+
     public abstract String getMapPath();
 
     public abstract double getHeight() throws Exception;
 
     public abstract double getWidth() throws Exception;
 
+    /**
+     * Batch version of getValue: out[i] is the elevation at (xs[i], ys[i]), or NO_VALUE if that point is off the map.
+     * Never throws for points off the map, so a whole neighborhood can be read in one loop.
+     */
+    public abstract void getValues(double[] xs, double[] ys, double[] out, int count);
+
+    /**
+     * Reads elevations by packed pixel index (y * width + x): out[i] is the elevation of pixel indices[i],
+     * or NO_VALUE if the index is off the map.
+     */
+    public abstract void getValues(int[] indices, double[] out, int count);
+
+    /**
+     * Long version of getValues by packed index, for maps with more pixels than an int can count.
+     */
+    public abstract void getValues(long[] indices, double[] out, int count);
+
+    /**
+     * Calls the visitor with every pixel of a rectangle (given in pixels) which lies on the map, row by row.
+     */
+    public abstract void forEachInRect(int x, int y, int width, int height, ElevationVisitor visitor);
+
 }
@@ -0,0 +1,98 @@
+package mars.map;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.Rectangle;
+import java.awt.image.Raster;
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+
+/**
+ * A RegionSource reading the first image of a TIFF (such as a GeoTIFF) straight from the file. Each reader has an
+ * ImageReader and input stream of its own and asks it for just the region wanted, so decoding threads neither share
+ * a decoder nor decode more of the file than their own strips.
+ */
+public class TiffRegionSource implements RegionSource {
+
+    private final File file;
+    private final int width;
+    private final int height;
+    private final int tileHeight;
+    private final int dataType;
+
+    /**
+     * Constructor for a source over the given file, whose layout is read straight away.
+     *
+     * @throws IOException if the file cannot be read or is not an image ImageIO can read
+     */
+    public TiffRegionSource(File file) throws IOException {
+        this.file = file;
+        ImageReader reader = openReader();
+        try {
+            width = reader.getWidth(0);
+            height = reader.getHeight(0);
+            tileHeight = reader.getTileHeight(0);
+            dataType = reader.getRawImageType(0).getSampleModel().getDataType();
+        } finally {
+            close(reader);
+        }
+    }
+
+    private ImageReader openReader() throws IOException {
+        ImageInputStream input = ImageIO.createImageInputStream(file);
+        if (input == null) {
+            throw new IOException("Could not open " + file);
+        }
+        Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+        if (!readers.hasNext()) {
+            input.close();
+            throw new IOException("No image reader for " + file);
+        }
+        ImageReader reader = readers.next();
+        reader.setInput(input);
+        return reader;
+    }
+
+    private static void close(ImageReader reader) throws IOException {
+        Object input = reader.getInput();
+        reader.dispose();
+        if (input instanceof ImageInputStream) {
+            ((ImageInputStream) input).close();
+        }
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getTileHeight() {
+        return tileHeight;
+    }
+
+    public int getDataType() {
+        return dataType;
+    }
+
+    public Reader open() throws IOException {
+        final ImageReader reader = openReader();
+        return new Reader() {
+            public Raster read(Rectangle region) throws IOException {
+                ImageReadParam param = reader.getDefaultReadParam();
+                param.setSourceRegion(region);
+                return reader.canReadRaster() ? reader.readRaster(0, param) : reader.read(0, param).getRaster();
+            }
+
+            public void close() throws IOException {
+                TiffRegionSource.close(reader);
+            }
+        };
+    }
+
+}
@@ -0,0 +1,162 @@
+package mars.map;
+
+import java.awt.Rectangle;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * An ElevationGrid which decodes fixed-size tiles of a map image (or any RegionSource) the first time
+ * they are touched, and keeps decoded tiles in a least-recently-used cache bounded by a byte budget.
+ * Memory use and load time scale with the area a search actually explores rather than with the map size.
+ */
+public class TiledElevationGrid extends ElevationGrid {
+
+    public static final int DEFAULT_TILE_SIZE = 256;
+    public static final long DEFAULT_CACHE_BYTES = 64L * 1024 * 1024;
+
+    private final RegionSource source;
+    private final boolean doubleSamples;
+    private final int tileSize;
+    private final int tilesAcross;
+    private final long cacheBytes;
+    private long cachedBytes = 0;
+    private final LinkedHashMap<Integer, ElevationGrid> tiles = new LinkedHashMap<Integer, ElevationGrid>(16, 0.75f, true); //access order, eldest first
+    private volatile CachedTile lastTile; //searches stay in one tile for long stretches, so skip the cache lock for repeat hits
+
+    /**
+     * Constructor for a tiled grid over the given image. Nothing is decoded until get is called.
+     *
+     * @param image the map image; it should be deferred (not yet decoded) for tiling to save anything
+     * @param tileSize width and height of a tile in pixels
+     * @param cacheBytes how many bytes of decoded tiles to keep before evicting the least recently used
+     */
+    public TiledElevationGrid(RenderedImage image, int tileSize, long cacheBytes) {
+        this(new ImageRegionSource(image), tileSize, cacheBytes);
+    }
+
+    /**
+     * Constructor for a tiled grid reading its tiles from the given source, such as a GeoTIFF read a region at a time.
+     *
+     * @param source the map's samples; a reader is opened for each tile decoded
+     * @param tileSize width and height of a tile in pixels
+     * @param cacheBytes how many bytes of decoded tiles to keep before evicting the least recently used
+     */
+    public TiledElevationGrid(RegionSource source, int tileSize, long cacheBytes) {
+        super(source.getWidth(), source.getHeight());
+        this.source = source;
+        this.doubleSamples = isDoubleSampled(source.getDataType());
+        this.tileSize = tileSize;
+        this.tilesAcross = (width + tileSize - 1) / tileSize;
+        this.cacheBytes = cacheBytes;
+    }
+
+    public double get(int x, int y) {
+        return tileAt(x, y).get(x % tileSize, y % tileSize);
+    }
+
+    public void readRow(int x, int y, int length, double[] dest, int offset) {
+        int end = x + length;
+        while (x < end) {
+            int run = Math.min(end, (x / tileSize + 1) * tileSize) - x; //up to the edge of the tile
+            tileAt(x, y).readRow(x % tileSize, y % tileSize, run, dest, offset);
+            x += run;
+            offset += run;
+        }
+    }
+
+    public void readRow(int x, int y, int length, float[] dest, int offset) {
+        int end = x + length;
+        while (x < end) {
+            int run = Math.min(end, (x / tileSize + 1) * tileSize) - x;
+            tileAt(x, y).readRow(x % tileSize, y % tileSize, run, dest, offset);
+            x += run;
+            offset += run;
+        }
+    }
+
+    /**
+     * Returns the decoded tile containing (x, y).
+     */
+    private ElevationGrid tileAt(int x, int y) {
+        int key = (y / tileSize) * tilesAcross + (x / tileSize);
+        CachedTile last = lastTile;
+        return (last != null && last.key == key) ? last.tile : getTile(key);
+    }
+
+    /**
+     * Returns the decoded tile with the given key, decoding it (and evicting old tiles) if it isn't cached.
+     */
+    private synchronized ElevationGrid getTile(int key) {
+        ElevationGrid tile = tiles.get(key);
+        if (tile == null) {
+            int tileX = (key % tilesAcross) * tileSize;
+            int tileY = (key / tilesAcross) * tileSize;
+            Rectangle region = new Rectangle(tileX, tileY, Math.min(tileSize, width - tileX), Math.min(tileSize, height - tileY));
+            tile = readTile(region);
+            tiles.put(key, tile);
+            cachedBytes += tile.getMemoryFootprint();
+
+            Iterator<Map.Entry<Integer, ElevationGrid>> eldest = tiles.entrySet().iterator();
+            while (cachedBytes > cacheBytes && tiles.size() > 1) {
+                ElevationGrid evicted = eldest.next().getValue();
+                eldest.remove();
+                cachedBytes -= evicted.getMemoryFootprint();
+            }
+        }
+        lastTile = new CachedTile(key, tile);
+        return tile;
+    }
+
+    /**
+     * Reads one tile's region of the source into a new grid.
+     */
+    private ElevationGrid readTile(Rectangle region) {
+        try {
+            RegionSource.Reader reader = source.open();
+            try {
+                Raster samples = reader.read(region);
+                if (doubleSamples) {
+                    DoubleElevationGrid tile = new DoubleElevationGrid(region.width, region.height);
+                    tile.copyRows(samples, 0, region.height);
+                    return tile;
+                }
+                FloatElevationGrid tile = new FloatElevationGrid(region.width, region.height);
+                tile.copyRows(samples, 0, region.height);
+                return tile;
+            } finally {
+                reader.close();
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not read the map tile at " + region.x + ", " + region.y, e);
+        }
+    }
+
+    /**
+     * Returns how many bytes of decoded tiles are currently cached.
+     */
+    public synchronized long getMemoryFootprint() {
+        return cachedBytes;
+    }
+
+    public int getTileSize() {
+        return tileSize;
+    }
+
+    /**
+     * Immutable pairing of a tile with its key, so both can be read from one volatile field.
+     */
+    private static class CachedTile {
+        final int key;
+        final ElevationGrid tile;
+
+        CachedTile(int key, ElevationGrid tile) {
+            this.key = key;
+            this.tile = tile;
+        }
+    }
+
+}
@@ -0,0 +1,20 @@
+package mars.map;
+
+import java.awt.image.Raster;
+
+/**
+ * A grid that image strips can be decoded into (see ElevationGrid.decode). Grids that get their samples some other
+ * way, such as mapped binary maps and tiled grids decoding their own tiles, do not implement it.
+ */
+interface WritableElevationGrid {
+
+    /**
+     * Copies a horizontal strip of the source image into this grid.
+     *
+     * @param strip raster covering the full width of the image
+     * @param firstRow first grid row covered by the strip
+     * @param rows number of rows in the strip
+     */
+    void copyRows(Raster strip, int firstRow, int rows);
+
+}
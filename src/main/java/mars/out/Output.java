@@ -2,7 +2,7 @@ package mars.out;
 
 import mars.algorithm.Algorithm;
 import mars.coordinate.*;
-import mars.map.GeoTIFF;
+import mars.map.GridTerrainMap;
 
 import java.io.IOException;
 import java.util.*;
@@ -15,7 +15,7 @@ public abstract class Output {
 
     List<? extends Coordinate> resultList;
     String coordinateType;
-    GeoTIFF convert;
+    GridTerrainMap convert;
 
     public abstract void writeToOutput() throws IOException;
 }
@@ -0,0 +1,207 @@
+package mars.rover;
+
+import mars.map.ElevationGrid;
+import mars.map.GridTerrainMap;
+import mars.map.LatticeLayout;
+import mars.map.OffHeapArray;
+
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * The effective slope (see MarsRover.effectiveSlope) of the step from every coordinate of a map to each of its
+ * 8 neighbors, worked out once per map with the same plateau extension canTraverse uses (jumping plateaus with
+ * the map's PlateauRuns where it has room for them). Whether any rover can take a step is then a comparison against its own maximum slope, with no elevation reads, so sweeping many slopes over
+ * one map costs one pass over the terrain rather than one per slope. At 32 bytes per coordinate it is only worth that
+ * for sweeps, so TraversabilityMask builds it for a map's second maximum slope, and only within the memory budget.
+ * Slopes are stored as floats rounded down; see allows for how a maximum slope within that rounding is handled.
+ * Like TraversabilityMask, the raster covers coordinates 0 to the grid's width and height inclusive, in directions
+ * TraversabilityMask.DX and DY, laid out by the map's LatticeLayout, and lives off the heap.
+ */
+public class EdgeSlopes {
+
+    /**
+     * Answers of allows.
+     */
+    public static final int NO = 0;
+    public static final int YES = 1;
+    public static final int UNSURE = 2;
+
+    /**
+     * The bytes the raster takes for each coordinate: a float for each of the 8 directions.
+     */
+    public static final int BYTES_PER_COORDINATE = 8 * 4;
+    static final int BAND_ROWS = 64; //rows worked out by one fork/join task; bigger ranges are split in two
+    private static final ForkJoinPool POOL = new ForkJoinPool(); //one worker per core; its threads are daemons
+    private static final Map<GridTerrainMap, FutureTask<EdgeSlopes>> rasters =
+            new WeakHashMap<GridTerrainMap, FutureTask<EdgeSlopes>>(); //dropped with their map
+
+    private final LatticeLayout layout;
+    private final OffHeapArray slopes; //8 per coordinate, at 8 times its index in the layout
+
+    private EdgeSlopes(LatticeLayout layout, OffHeapArray slopes) {
+        this.layout = layout;
+        this.slopes = slopes;
+    }
+
+    /**
+     * Returns the raster of a map, building it on the first request. Concurrent requests wait for one build.
+     *
+     * @param map a loaded map
+     * @return the raster
+     */
+    public static EdgeSlopes get(final GridTerrainMap map) {
+        FutureTask<EdgeSlopes> build;
+        synchronized (rasters) {
+            build = rasters.get(map);
+            if (build == null) {
+                build = new FutureTask<EdgeSlopes>(new Callable<EdgeSlopes>() {
+                    public EdgeSlopes call() {
+                        EdgeSlopes built = build(map, POOL);
+                        map.addDerivedData(built.slopes);
+                        return built;
+                    }
+                });
+                rasters.put(map, build);
+            }
+        }
+        build.run(); //does nothing if another thread has already started the build
+        try {
+            return build.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted waiting for the edge slopes of " + map.getMapPath(), e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof RuntimeException ? (RuntimeException) cause : new IllegalStateException(cause);
+        }
+    }
+
+    /**
+     * Returns the raster of a map if it has already been built, or null, without starting a build.
+     */
+    public static EdgeSlopes getIfBuilt(GridTerrainMap map) {
+        FutureTask<EdgeSlopes> build;
+        synchronized (rasters) {
+            build = rasters.get(map);
+        }
+        if (build == null || !build.isDone()) {
+            return null;
+        }
+        try {
+            return build.get();
+        } catch (Exception e) { //the build failed; whoever asked for it has been told
+            return null;
+        }
+    }
+
+    /**
+     * Works out a new raster of a map on the given pool, a band of rows per task.
+     *
+     * @param map a loaded map
+     * @param pool the pool to build on
+     * @return the raster
+     */
+    public static EdgeSlopes build(GridTerrainMap map, ForkJoinPool pool) {
+        ElevationGrid grid = map.getElevationGrid();
+        if (grid == null) {
+            throw new IllegalStateException("Map is not loaded");
+        }
+        LatticeLayout layout = map.getLatticeLayout();
+        OffHeapArray slopes = OffHeapArray.allocate(BYTES_PER_COORDINATE * layout.size());
+        pool.invoke(new BandTask(map, PlateauRuns.getWithinBudget(map), slopes, layout, 0, layout.getHeight()));
+        return new EdgeSlopes(layout, slopes);
+    }
+
+    /**
+     * Returns the effective slope of the step from (x, y) in the given direction, rounded down to a float:
+     * MarsRover.FLAT for level steps and NaN for steps which can never be taken, including from coordinates off the map.
+     */
+    public float getSlope(int x, int y, int direction) {
+        if (!layout.contains(x, y)) {
+            return Float.NaN;
+        }
+        return slopes.getFloat(layout.index(x, y) * 8 + direction);
+    }
+
+    /**
+     * Returns whether a rover limited to maxSlope can take the step from (x, y) in the given direction: YES, NO,
+     * or UNSURE in the rare case that maxSlope lies within the float rounding of the step's slope, when only
+     * MarsRover.canTraverse can tell.
+     */
+    public int allows(int x, int y, int direction, double maxSlope) {
+        return allows(getSlope(x, y, direction), maxSlope);
+    }
+
+    /**
+     * The comparison behind allows, for a slope already read.
+     */
+    static int allows(float slope, double maxSlope) {
+        if (slope == MarsRover.FLAT) {
+            return YES;
+        }
+        if (!(slope <= maxSlope)) { //too steep, since the exact slope is at least this; or never (NaN)
+            return NO;
+        }
+        return Math.nextUp(slope) <= maxSlope ? YES : UNSURE; //the exact slope is below the next float up
+    }
+
+    public int getWidth() {
+        return layout.getWidth();
+    }
+
+    public int getHeight() {
+        return layout.getHeight();
+    }
+
+    /**
+     * Works out a range of rows, splitting it in two until it is at most BAND_ROWS rows.
+     */
+    private static class BandTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final GridTerrainMap map;
+        private final PlateauRuns runs; //null to walk every plateau
+        private final OffHeapArray slopes;
+        private final LatticeLayout layout;
+        private final int firstRow;
+        private final int endRow; //exclusive
+
+        BandTask(GridTerrainMap map, PlateauRuns runs, OffHeapArray slopes, LatticeLayout layout, int firstRow, int endRow) {
+            this.map = map;
+            this.runs = runs;
+            this.slopes = slopes;
+            this.layout = layout;
+            this.firstRow = firstRow;
+            this.endRow = endRow;
+        }
+
+        @Override
+        protected void compute() {
+            if (endRow - firstRow > BAND_ROWS) {
+                int middle = (firstRow + endRow) >>> 1;
+                invokeAll(new BandTask(map, runs, slopes, layout, firstRow, middle), new BandTask(map, runs, slopes, layout, middle, endRow));
+                return;
+            }
+            int width = layout.getWidth();
+            for (int y = firstRow; y < endRow; y++) {
+                for (int x = 0; x < width; x++) {
+                    long index = layout.index(x, y) * 8;
+                    for (int d = 0; d < 8; d++) {
+                        double slope = MarsRover.effectiveSlope(map, runs, x, y, x + TraversabilityMask.DX[d], y + TraversabilityMask.DY[d]);
+                        float stored = (float) slope;
+                        if (stored > slope) { //rounded up; step back so the stored slope is never steeper than the real one
+                            stored = Math.nextAfter(stored, Double.NEGATIVE_INFINITY);
+                        }
+                        slopes.putFloat(index + d, stored);
+                    }
+                }
+            }
+        }
+    }
+
+}
@@ -1,13 +1,27 @@
 package mars.rover;
 
 import mars.coordinate.Coordinate;
-import mars.map.GeoTIFF;
+import mars.map.ElevationGrid;
+import mars.map.GridTerrainMap;
+import mars.map.MapRegistry;
+import mars.map.GridTransform;
 
 /**
  * Represents a rover which traverses a given terrain.
  */
 public class MarsRover extends Rover {
 
+    /**
+     * The effective slope of a step between level points, which canTraverse allows whatever the maximum slope.
+     */
+    public static final double FLAT = Double.NEGATIVE_INFINITY;
+    /**
+     * Most coordinates a map may have for usesWholeMapState to build state over all of them: 2^26, a mask and
+     * region labels of about 600 MB.
+     */
+    public static final long WHOLE_MAP_COORDINATES = 1L << 26;
+    static final int WHOLE_MAP_BYTES = 1 + 8; //per coordinate: a mask byte and a region label
+
     /**
      * Default constructor for the MarsRover class.
      *
@@ -22,10 +36,11 @@ public class MarsRover extends Rover {
         setCoordType(coordType);
         setEndPosition(endCoords);
         try {
-            map.initTif(mapPath);
+            map = MapRegistry.getMap(mapPath); //shared with every other rover on this map
         } catch (Exception e) {
             System.out.println(e.getMessage());
         }
+        loadStoredMask();
         fieldOfView = Double.POSITIVE_INFINITY; //"Unlimited"
     }
 
@@ -45,10 +60,21 @@ public class MarsRover extends Rover {
         setEndPosition(endCoords);
         setFieldOfView(radius);
         try {
-            map.initTif(mapPath);
+            map = MapRegistry.getMap(mapPath); //shared with every other rover on this map
         } catch (Exception e) {
             System.out.println(e.getMessage());
         }
+        loadStoredMask();
+    }
+
+    /**
+     * Maps in the TraversabilityMask an earlier run stored for this rover's map and slope, if there is one,
+     * so the first search starts with it instead of working it out again.
+     */
+    private void loadStoredMask() {
+        if (map != null && usesWholeMapState()) {
+            TraversabilityMask.getIfStored(map, maxSlope);
+        }
     }
 
     /**
@@ -70,11 +96,7 @@ public class MarsRover extends Rover {
      * @throws Exception exception generated by Geotools
      */
     public double getSlope(int x1, int y1, int x2, int y2) throws Exception {
-        double z1 = map.getValue(x1,y1);
-        double z2 = map.getValue(x2,y2);
-        double zDistance = z2 - z1;
-        double xyDistance = Math.sqrt(Math.pow((x2-x1),2)+Math.pow((y2-y1),2));
-        return Math.toDegrees(Math.atan(zDistance / xyDistance)); // construct a right-angle triangle such that adjacent = xyDistance and opposite = zDistance
+        return slope(x1,y1,map.getValue(x1,y1),x2,y2,map.getValue(x2,y2));
     }
 
     /**
@@ -90,8 +112,14 @@ public class MarsRover extends Rover {
         int x2 = point2.getX();
         int y2 = point2.getY();
 
-        double z1 = map.getValue(x1,y1);
-        double z2 = map.getValue(x2,y2);
+        return slope(x1,y1,map.getValue(x1,y1),x2,y2,map.getValue(x2,y2));
+    }
+
+    /**
+     * The arithmetic behind getSlope, for elevations which have already been read.
+     * @return slope in degrees from (x1,y1,z1) to (x2,y2,z2)
+     */
+    private static double slope(int x1, int y1, double z1, int x2, int y2, double z2) {
         double zDistance = z2 - z1;
         double xyDistance = Math.sqrt(Math.pow((x2-x1),2)+Math.pow((y2-y1),2));
         return Math.toDegrees(Math.atan(zDistance / xyDistance)); // construct a right-angle triangle such that adjacent = xyDistance and opposite = zDistance
@@ -104,8 +132,14 @@ public class MarsRover extends Rover {
      * @return angle in degrees between the two coords
      */
     public double getAngle(Coordinate current, Coordinate goal) {
-        int xdiff = goal.getX() - current.getX();
-        int ydiff = goal.getY() - current.getY();
+        return angle(goal.getX() - current.getX(), goal.getY() - current.getY());
+    }
+
+    /**
+     * The arithmetic behind getAngle.
+     * @return angle in degrees, from 0 up to 360, of the vector (xdiff, ydiff)
+     */
+    private static double angle(int xdiff, int ydiff) {
         double result = Math.toDegrees(Math.atan2(ydiff,xdiff));
         while(result < 0){result += 360;}
         return result;
@@ -117,52 +151,177 @@ public class MarsRover extends Rover {
      * 1. finds the angle between the two points (usually a cardinal direction or a diagonal)
      * 2. adjusts the points away from each other along the line produced by that angle, until they would change elevation
      * 3. finds the slope between the two adjusted points using their respective elevations and returns if it's traversable
+     * Elevations are read with TerrainMap.sample, so points off the map cost a comparison rather than an exception.
      *
      * @param point1 first coord
      * @param point2 second coord
      * @return boolean if slope is acceptable
      */
     public boolean canTraverse(Coordinate point1, Coordinate point2) {
-        try {
-            // step 1
-            double temp1x = point1.getX(); //manually get the components (makes the math a lot easier)
-            double temp1y = point1.getY();
-            double temp2x = point2.getX();
-            double temp2y = point2.getY();
-
-            double angle = getAngle(point1,point2);
-
-            // make sure the point we're looking at is actually valid. protects from unexpected exceptions from the map functions
-            if(temp1x < 0 || temp2x < 0 || temp1x > map.getWidth() || temp2x > map.getWidth()
-                    || temp1y < 0 || temp2y < 0 || temp1y > map.getHeight() | temp2y > map.getHeight() )
-                return false;
-
-            // step 2
-            double point1height = map.getValue(point1.getX(),point1.getY()); //get the heights of the given points
-            double point2height = map.getValue(point2.getX(),point2.getY());
-            if((point1height != point2height && !(map.getMapPath()).equals("src/main/resources/marsMap.tif")) ||
-                    (Math.abs(point1height - point2height) > 6 && (map.getMapPath()).equals("src/main/resources/marsMap.tif"))){ //if the heights aren't the same
-                //while the current adjusted point height and original are the same, and points are in bounds
-                while(temp1x > 0 && temp1x < map.getWidth() && temp1y > 0 && temp1y < map.getHeight() ){
-                    if(point1height != map.getValue(temp1x,temp1y)) break;
-                    temp1x -= Math.cos(angle); //subtract one unit length in the desired angle. note we don't round until the end
-                    temp1y -= Math.sin(angle);
-                }
-                //then do the same for the second point
-                while(temp2x > 0 && temp2x < map.getWidth() && temp2y > 0 && temp2y < map.getHeight() ){
-                    if(point2height != map.getValue(temp2x,temp2y)) break;
-                    temp2x += Math.cos(angle);
-                    temp2y += Math.sin(angle);
-                }
-
-
-                // step 3. finds the slope of these points and compares to maxSlope
-                return Math.abs(getSlope((int)temp1x,(int)temp1y,(int)temp2x,(int)temp2y)) <= maxSlope;
-            }else return true; //if they're the same height, then it can just freely go there and we can skip the hard part
+        return canTraverse(map, maxSlope, point1.getX(), point1.getY(), point2.getX(), point2.getY());
+    }
+
+    /**
+     * The rule behind canTraverse, for a map and a maximum slope rather than a rover, so that it can be
+     * evaluated ahead of time for a whole map (see TraversabilityMask).
+     *
+     * @param map the map to traverse
+     * @param maxSlope the steepest slope allowed, in degrees
+     * @return whether a rover limited to maxSlope can move from (x1, y1) to (x2, y2)
+     */
+    public static boolean canTraverse(GridTerrainMap map, double maxSlope, int x1, int y1, int x2, int y2) {
+        return canTraverse(map, PlateauRuns.getIfBuilt(map), maxSlope, x1, y1, x2, y2);
+    }
+
+    /**
+     * canTraverse with the map's PlateauRuns already looked up, for callers evaluating many steps.
+     */
+    static boolean canTraverse(GridTerrainMap map, PlateauRuns runs, double maxSlope, int x1, int y1, int x2, int y2) {
+        double slope = effectiveSlope(map, runs, x1, y1, x2, y2);
+        return slope == FLAT || slope <= maxSlope; //NaN (never) fails the comparison
+    }
+
+    /**
+     * Steps 1 to 3 of canTraverse without the final comparison: the slope, in degrees, which a rover must be able to
+     * climb to move from (x1, y1) to (x2, y2). canTraverse allows the step exactly when this is FLAT or at most maxSlope,
+     * so one value answers every maximum slope (see EdgeSlopes).
+     *
+     * @param map the map to traverse
+     * @return the absolute slope between the plateau-extended points, FLAT if the points are level, or NaN if the step
+     *         can never be taken (it leaves the map or crosses missing data)
+     */
+    public static double effectiveSlope(GridTerrainMap map, int x1, int y1, int x2, int y2) {
+        return effectiveSlope(map, PlateauRuns.getIfBuilt(map), x1, y1, x2, y2);
+    }
+
+    /**
+     * effectiveSlope with the map's PlateauRuns already looked up (or null to walk every plateau a unit at a time),
+     * for callers evaluating many steps. The tables give exactly the same answers as the walks.
+     */
+    static double effectiveSlope(GridTerrainMap map, PlateauRuns runs, int x1, int y1, int x2, int y2) {
+        ElevationGrid grid = map.getElevationGrid();
+        if(grid == null) return Double.NaN; //no map loaded, so nowhere is safe
+        int width = grid.getWidth(); //read once instead of on every step of the walks
+        int height = grid.getHeight();
+
+        // step 1
+        double temp1x = x1; //work on doubles (makes the math a lot easier)
+        double temp1y = y1;
+        double temp2x = x2;
+        double temp2y = y2;
+
+        double point1height;
+        double point2height;
+        GridTransform transform = map.getGridTransform();
+        int dx = x2 - x1;
+        int dy = y2 - y1;
+        if(transform != null && transform.isIdentity() && grid.contains(x1, y1) && grid.contains(x2, y2)){
+            // fast path: both points are cells of a grid addressed in pixels, so read them straight from it
+            point1height = grid.get(x1, y1);
+            point2height = grid.get(x2, y2);
+        }else{
+            // make sure the point we're looking at is actually valid
+            if(temp1x < 0 || temp2x < 0 || temp1x > width || temp2x > width
+                    || temp1y < 0 || temp2y < 0 || temp1y > height || temp2y > height)
+                return Double.NaN;
+            point1height = map.sample(x1,y1); //get the heights of the given points
+            point2height = map.sample(x2,y2);
         }
-        catch(Exception e) { //if something breaks, then let's not go there
-            return false;
+        if(Double.isNaN(point1height) || Double.isNaN(point2height)) return Double.NaN; //off the map, so let's not go there
+
+        // step 2
+        double angle = angle(dx, dy);
+        boolean marsMap = map.isPixelAddressed(); //only marsMap.tif is, and its elevations are coarse enough to need a tolerance
+        if((point1height != point2height && !marsMap) || (Math.abs(point1height - point2height) > 6 && marsMap)){ //if the heights aren't the same
+            if(runs != null){ //jump across plateaus instead of walking them; both points are on the grid, as their heights aren't NaN
+                long end1 = runs.walk(x1, y1, point1height, -Math.cos(angle), -Math.sin(angle));
+                long end2 = runs.walk(x2, y2, point2height, Math.cos(angle), Math.sin(angle));
+                if(end1 == PlateauRuns.NEVER || end2 == PlateauRuns.NEVER) return Double.NaN;
+                return endSlope(map, PlateauRuns.unpackX(end1), PlateauRuns.unpackY(end1), PlateauRuns.unpackX(end2), PlateauRuns.unpackY(end2));
+            }
+            //while the current adjusted point height and original are the same, and points are in bounds
+            while(temp1x > 0 && temp1x < width && temp1y > 0 && temp1y < height){
+                double height1 = map.sample(temp1x,temp1y);
+                if(Double.isNaN(height1)) return Double.NaN;
+                if(point1height != height1) break;
+                temp1x -= Math.cos(angle); //subtract one unit length in the desired angle. note we don't round until the end
+                temp1y -= Math.sin(angle);
+            }
+            //then do the same for the second point
+            while(temp2x > 0 && temp2x < width && temp2y > 0 && temp2y < height){
+                double height2 = map.sample(temp2x,temp2y);
+                if(Double.isNaN(height2)) return Double.NaN;
+                if(point2height != height2) break;
+                temp2x += Math.cos(angle);
+                temp2y += Math.sin(angle);
+            }
+
+            return endSlope(map, (int)temp1x, (int)temp1y, (int)temp2x, (int)temp2y);
+        }else return FLAT; //if they're the same height, then it can just freely go there and we can skip the hard part
+    }
+
+    /**
+     * Step 3 of canTraverse: the slope between the plateau-extended points, for the caller to compare to maxSlope.
+     * @return the absolute slope, or NaN if either point is off the map
+     */
+    private static double endSlope(GridTerrainMap map, int endX1, int endY1, int endX2, int endY2) {
+        double z1 = map.sample(endX1,endY1);
+        double z2 = map.sample(endX2,endY2);
+        if(Double.isNaN(z1) || Double.isNaN(z2)) return Double.NaN;
+        return Math.abs(slope(endX1,endY1,z1,endX2,endY2,z2));
+    }
+
+    /**
+     * Answers canTraverse for the step from (x, y) in one of the 8 directions of TraversabilityMask.DX and DY:
+     * a lookup in this rover's TraversabilityMask if there is one or it is worth building (see usesWholeMapState),
+     * and the step worked out from the elevations otherwise.
+     * @return whether the rover can take the step
+     */
+    public boolean canTraverse(int x, int y, int direction) {
+        if(map == null || map.getElevationGrid() == null) return false; //no map loaded, so nowhere is safe
+        TraversabilityMask mask = getTraversabilityMask();
+        if(mask != null){
+            return mask.canTraverse(x, y, direction);
         }
+        return canTraverse(map, maxSlope, x, y, x + TraversabilityMask.DX[direction], y + TraversabilityMask.DY[direction]);
+    }
+
+    /**
+     * Returns the TraversabilityMask for this rover's map and maximum slope, building it on first use
+     * and sharing it with every other rover with the same map and slope.
+     * @return the mask, or null if no map is loaded or it is not built and not worth building (see usesWholeMapState)
+     */
+    public TraversabilityMask getTraversabilityMask() {
+        if(map == null) return null;
+        TraversabilityMask built = TraversabilityMask.getIfBuilt(map, maxSlope);
+        if(built != null) return built;
+        if(!usesWholeMapState()) return null;
+        return TraversabilityMask.get(map, maxSlope);
+    }
+
+    /**
+     * Returns the TraversableRegions for this rover's map and maximum slope, labelling them on first use
+     * and sharing them with every other rover with the same map and slope.
+     * @return the regions, or null if no map is loaded or they are not built and not worth building (see usesWholeMapState)
+     */
+    public TraversableRegions getTraversableRegions() {
+        if(map == null) return null;
+        TraversableRegions built = TraversableRegions.getIfBuilt(map, maxSlope);
+        if(built != null) return built;
+        if(!usesWholeMapState()) return null;
+        return TraversableRegions.get(map, maxSlope);
+    }
+
+    /**
+     * Returns whether state worked out over the whole of this rover's map (TraversabilityMask, TraversableRegions)
+     * is worth building: the map has at most WHOLE_MAP_COORDINATES coordinates, and the state's bytes fit
+     * MapRegistry's memory budget alongside the maps already loaded. Past that a search only ever sees a small part
+     * of the map, and building the state would read all of it.
+     */
+    public boolean usesWholeMapState() {
+        if(map == null || map.getElevationGrid() == null) return false;
+        long coordinates = map.getLatticeLayout().size();
+        return coordinates <= WHOLE_MAP_COORDINATES && MapRegistry.fitsBudget(map, coordinates * WHOLE_MAP_BYTES);
     }
 
     // Prints out all of the specs of this rover.
@@ -178,7 +337,7 @@ public class MarsRover extends Rover {
 
     //----Getter/Setter Methods----------------------------------------------------------------------------------------
 
-    public GeoTIFF getMap() { return map; }
+    public GridTerrainMap getMap() { return map; }
 
     public void setMaxSlope(double slope) {
         maxSlope = slope;
@@ -0,0 +1,252 @@
+package mars.rover;
+
+import mars.map.ElevationGrid;
+import mars.map.GridTerrainMap;
+import mars.map.GridTransform;
+import mars.map.MapRegistry;
+import mars.map.OffHeapArray;
+
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Run-length tables of the level runs along the rows of a map, which let MarsRover.effectiveSlope extend a step's
+ * end points across a plateau in one lookup instead of one elevation read per unit of distance.
+ *
+ * For each cell the tables hold how many cells, starting with it and going right (or left), are at exactly its
+ * elevation. walk only jumps when its steps are whole cells along a row (exactly 1 or -1 across and 0 down): the
+ * point then stays on integer coordinates, so a jump lands exactly where the step-by-step walk would with no rounding
+ * to reason about. Every other walk steps one unit at a time as before. Of the 8 steps to a neighbor, only the step
+ * to the right walks whole cells, since effectiveSlope passes the step's angle in degrees to Math.cos and Math.sin.
+ *
+ * Tables are only built for maps addressed in pixels (identity grid transforms), where a point's elevation is that of
+ * the cell found by flooring its coordinates. They take 8 bytes per cell, off the heap, so passes over a whole map ask
+ * for them through getWithinBudget, which leaves them out when the memory budget has no room for them.
+ */
+public class PlateauRuns {
+
+    /**
+     * Returned by walk when the walk reads missing data, so the step can never be taken.
+     */
+    public static final long NEVER = Long.MIN_VALUE;
+
+    /**
+     * The bytes the tables take for each cell: a run in each direction.
+     */
+    public static final int BYTES_PER_CELL = 2 * 4;
+    static final int BAND_ROWS = 64; //rows worked out by one fork/join task; bigger ranges are split in two
+    private static final ForkJoinPool POOL = new ForkJoinPool(); //one worker per core; its threads are daemons
+    private static final Map<GridTerrainMap, FutureTask<PlateauRuns>> tables =
+            new WeakHashMap<GridTerrainMap, FutureTask<PlateauRuns>>(); //dropped with their map
+
+    private final ElevationGrid grid;
+    private final int width;
+    private final int height;
+    private final OffHeapArray runs; //2 planes of width * height ints: level cells rightwards, then leftwards
+
+    private PlateauRuns(ElevationGrid grid, OffHeapArray runs) {
+        this.grid = grid;
+        this.width = grid.getWidth();
+        this.height = grid.getHeight();
+        this.runs = runs;
+    }
+
+    /**
+     * Returns the tables of a map, building them on the first request. Concurrent requests wait for one build.
+     *
+     * @param map a loaded map
+     * @return the tables, or null if the map is not addressed in pixels
+     */
+    public static PlateauRuns get(final GridTerrainMap map) {
+        FutureTask<PlateauRuns> build;
+        synchronized (tables) {
+            build = tables.get(map);
+            if (build == null) {
+                build = new FutureTask<PlateauRuns>(new Callable<PlateauRuns>() {
+                    public PlateauRuns call() {
+                        if (!covers(map)) {
+                            return null;
+                        }
+                        PlateauRuns built = build(map.getElevationGrid(), POOL);
+                        map.addDerivedData(built.runs);
+                        return built;
+                    }
+                });
+                tables.put(map, build);
+            }
+        }
+        build.run(); //does nothing if another thread has already started the build
+        try {
+            return build.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted waiting for the plateaus of " + map.getMapPath(), e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof RuntimeException ? (RuntimeException) cause : new IllegalStateException(cause);
+        }
+    }
+
+    /**
+     * Returns the tables of a map if they have already been built, or null, without starting a build.
+     */
+    public static PlateauRuns getIfBuilt(GridTerrainMap map) {
+        FutureTask<PlateauRuns> build;
+        synchronized (tables) {
+            build = tables.get(map);
+        }
+        if (build == null || !build.isDone()) {
+            return null;
+        }
+        try {
+            return build.get();
+        } catch (Exception e) { //the build failed; whoever asked for it has been told
+            return null;
+        }
+    }
+
+    /**
+     * Returns the tables of a map for a pass over all of it, building them only if they can be used (see covers) and
+     * fit the memory budget (see MapRegistry.fitsBudget). Without them the pass walks plateaus a unit at a time.
+     *
+     * @param map a loaded map
+     * @return the tables, or null to walk every plateau
+     */
+    public static PlateauRuns getWithinBudget(GridTerrainMap map) {
+        PlateauRuns built = getIfBuilt(map);
+        if (built != null || !covers(map)) {
+            return built;
+        }
+        ElevationGrid grid = map.getElevationGrid();
+        if (!MapRegistry.fitsBudget(map, BYTES_PER_CELL * (long) grid.getWidth() * grid.getHeight())) {
+            return null;
+        }
+        return get(map);
+    }
+
+    /**
+     * Returns whether tables can stand in for a map's plateau walks: it is loaded and addressed in pixels.
+     */
+    public static boolean covers(GridTerrainMap map) {
+        GridTransform transform = map.getGridTransform();
+        return map.getElevationGrid() != null && transform != null && transform.isIdentity();
+    }
+
+    /**
+     * Works out the tables of a grid on the given pool, a band of rows per task.
+     *
+     * @param grid the elevations
+     * @param pool the pool to build on
+     * @return the tables
+     */
+    public static PlateauRuns build(ElevationGrid grid, ForkJoinPool pool) {
+        long cells = (long) grid.getWidth() * grid.getHeight();
+        OffHeapArray runs = OffHeapArray.allocate(BYTES_PER_CELL * cells);
+        pool.invoke(new BandTask(grid, runs, 0, grid.getHeight()));
+        return new PlateauRuns(grid, runs);
+    }
+
+    /**
+     * Returns how many cells, starting with (x, y) and going towards the given sign of x (1 or -1), are level with
+     * (x, y). (x, y) must be on the grid.
+     */
+    public int getRun(int x, int y, int signX) {
+        return runs.getInt((signX > 0 ? 0 : (long) width * height) + (long) y * width + x);
+    }
+
+    /**
+     * The plateau walk of MarsRover.effectiveSlope: from (x, y), while the point is strictly inside the map, reads
+     * its elevation and, if it is still startHeight, adds (stepX, stepY). The result is exactly that of the
+     * step-by-step walk, truncated to ints as effectiveSlope does.
+     *
+     * @param x where the walk starts; its cell must be at startHeight
+     * @param y where the walk starts
+     * @param startHeight the elevation of the plateau
+     * @return the truncated end point packed by pack, or NEVER if the walk read missing data
+     */
+    public long walk(int x, int y, double startHeight, double stepX, double stepY) {
+        boolean wholeCells = stepY == 0 && (stepX == 1 || stepX == -1); //the point stays on integers, so jumps are exact
+        double px = x;
+        double py = y;
+        while (px > 0 && px < width && py > 0 && py < height) {
+            int cx = (int) px;
+            int cy = (int) py;
+            double elevation = grid.get(cx, cy);
+            if (Double.isNaN(elevation)) return NEVER;
+            if (elevation != startHeight) break;
+            if (wholeCells) {
+                int run = getRun(cx, cy, (int) stepX); //cx and the next run - 1 cells that way are all level
+                px += stepX > 0 ? run : -Math.min(run, cx); //the walk stops at 0 without reading cell 0
+            } else {
+                px += stepX;
+                py += stepY;
+            }
+        }
+        return pack((int) px, (int) py);
+    }
+
+    /**
+     * Packs a walk's truncated end point into a long.
+     */
+    public static long pack(int x, int y) {
+        return ((long) x << 32) | (y & 0xFFFFFFFFL);
+    }
+
+    public static int unpackX(long point) {
+        return (int) (point >> 32);
+    }
+
+    public static int unpackY(long point) {
+        return (int) point;
+    }
+
+    /**
+     * Works out the runs of a range of rows, splitting it in two until it is at most BAND_ROWS rows. In each row a
+     * cell's run is one more than its neighbor's towards the run's direction if the two are level, and 1 otherwise.
+     */
+    private static class BandTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final ElevationGrid grid;
+        private final OffHeapArray runs;
+        private final int firstRow;
+        private final int endRow; //exclusive
+
+        BandTask(ElevationGrid grid, OffHeapArray runs, int firstRow, int endRow) {
+            this.grid = grid;
+            this.runs = runs;
+            this.firstRow = firstRow;
+            this.endRow = endRow;
+        }
+
+        @Override
+        protected void compute() {
+            if (endRow - firstRow > BAND_ROWS) {
+                int middle = (firstRow + endRow) >>> 1;
+                invokeAll(new BandTask(grid, runs, firstRow, middle), new BandTask(grid, runs, middle, endRow));
+                return;
+            }
+            int width = grid.getWidth();
+            long plane = (long) width * grid.getHeight();
+            double[] row = new double[width];
+            for (int y = firstRow; y < endRow; y++) {
+                grid.readRow(0, y, width, row, 0);
+                long start = (long) y * width;
+                int run = 0;
+                for (int x = width - 1; x >= 0; x--) {
+                    run = x + 1 < width && row[x + 1] == row[x] ? run + 1 : 1;
+                    runs.putInt(start + x, run);
+                }
+                for (int x = 0; x < width; x++) {
+                    run = x > 0 && row[x - 1] == row[x] ? run + 1 : 1;
+                    runs.putInt(plane + start + x, run);
+                }
+            }
+        }
+    }
+
+}
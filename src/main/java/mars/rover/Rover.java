@@ -2,6 +2,7 @@ package mars.rover;
 
 import mars.coordinate.Coordinate;
 import mars.map.GeoTIFF;
+import mars.map.GridTerrainMap;
 import mars.map.TerrainMap;
 
 /**
@@ -16,7 +17,7 @@ public abstract class Rover {
     Coordinate startPosition; //x, y
     String coordType;
     Coordinate endPosition; //x, y
-    GeoTIFF map = new GeoTIFF();
+    GridTerrainMap map = new GeoTIFF();
     double fieldOfView;
 
     public abstract double getSlope(int x1, int y1, int x2, int y2) throws Exception;
@@ -0,0 +1,392 @@
+package mars.rover;
+
+import mars.map.DerivedDataCache;
+import mars.map.ElevationGrid;
+import mars.map.ElevationStorage;
+import mars.map.GridTerrainMap;
+import mars.map.LatticeLayout;
+import mars.map.MapRegistry;
+import mars.map.MortonLayout;
+import mars.map.OffHeapArray;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * The answer of MarsRover.canTraverse for every step from a coordinate to one of its 8 neighbors, for one map and
+ * one maximum slope, worked out once in a parallel pass so a search checks an edge with a single lookup.
+ * The pass works each step out from the elevations, so a mask costs only its own byte per coordinate. Once a map has
+ * masks for more than one slope, the next one builds the map's EdgeSlopes if the memory budget allows, so the masks
+ * of any slopes after that read no elevations at all.
+ * Each coordinate gets a byte whose bit d is set if the step in direction d (see DX and DY) can be taken.
+ * Coordinates run from 0 to the grid's width and height inclusive, since canTraverse accepts both edges, and are
+ * laid out by the map's LatticeLayout, so a search reads the bytes of neighboring coordinates from the same pages.
+ * Masks are kept off the heap (see OffHeapArray), so they cover maps with more cells than an array can hold.
+ * With a shared DerivedDataCache, each mask is also stored on disk, keyed by the map's contents, the maximum slope
+ * and RULES, and later runs map the stored mask instead of working it out again.
+ */
+public class TraversabilityMask {
+
+    /**
+     * The steps of directions 0 to 7, row by row from (-1, -1) to (1, 1).
+     */
+    public static final int[] DX = {-1, 0, 1, -1, 1, -1, 0, 1};
+    public static final int[] DY = {-1, -1, -1, 0, 0, 1, 1, 1};
+    /**
+     * The version of the rules canTraverse decides steps by. Stored masks are only used if they were worked out
+     * under the same version, so this must be bumped whenever canTraverse would answer any step differently.
+     */
+    public static final int RULES = 1;
+    static final int HEADER_BYTES = 24; //width, height, maximum slope, rules, reserved
+    static final int BAND_ROWS = 64; //rows worked out by one fork/join task; bigger ranges are split in two
+    private static final ForkJoinPool POOL = new ForkJoinPool(); //one worker per core; its threads are daemons
+    private static final Map<GridTerrainMap, Map<Double, FutureTask<TraversabilityMask>>> masks =
+            new WeakHashMap<GridTerrainMap, Map<Double, FutureTask<TraversabilityMask>>>(); //dropped with their map
+
+    private final LatticeLayout layout;
+    private final int width; //coordinates across, one more than the grid's width
+    private final int height;
+    private final double maxSlope;
+    private final OffHeapArray directions;
+
+    private TraversabilityMask(LatticeLayout layout, double maxSlope, OffHeapArray directions) {
+        this.layout = layout;
+        this.width = layout.getWidth();
+        this.height = layout.getHeight();
+        this.maxSlope = maxSlope;
+        this.directions = directions;
+    }
+
+    /**
+     * Returns the mask of a map for a maximum slope, building it on the first request for that pair.
+     * Concurrent requests for the same pair wait for one build rather than each starting their own.
+     *
+     * @param map a loaded map
+     * @param maxSlope the steepest slope allowed, in degrees
+     * @return the mask
+     */
+    public static TraversabilityMask get(final GridTerrainMap map, final double maxSlope) {
+        FutureTask<TraversabilityMask> build;
+        synchronized (masks) {
+            Map<Double, FutureTask<TraversabilityMask>> forMap = masks.get(map);
+            if (forMap == null) {
+                forMap = new HashMap<Double, FutureTask<TraversabilityMask>>();
+                masks.put(map, forMap);
+            }
+            build = forMap.get(maxSlope);
+            if (build == null) {
+                build = new FutureTask<TraversabilityMask>(new Callable<TraversabilityMask>() {
+                    public TraversabilityMask call() {
+                        TraversabilityMask mask = load(map, maxSlope);
+                        map.addDerivedData(mask.directions);
+                        return mask;
+                    }
+                });
+                forMap.put(maxSlope, build);
+            }
+        }
+        build.run(); //does nothing if another thread has already started the build
+        try {
+            return build.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted waiting for the traversability of " + map.getMapPath(), e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof RuntimeException ? (RuntimeException) cause : new IllegalStateException(cause);
+        }
+    }
+
+    /**
+     * Returns the mask of a map for a maximum slope if it has already been built, or null, without starting a build.
+     */
+    public static TraversabilityMask getIfBuilt(GridTerrainMap map, double maxSlope) {
+        FutureTask<TraversabilityMask> build;
+        synchronized (masks) {
+            Map<Double, FutureTask<TraversabilityMask>> forMap = masks.get(map);
+            build = forMap == null ? null : forMap.get(maxSlope);
+        }
+        if (build == null || !build.isDone()) {
+            return null;
+        }
+        try {
+            return build.get();
+        } catch (Exception e) { //the build failed; whoever asked for it has been told
+            return null;
+        }
+    }
+
+    /**
+     * Returns the mask of a map for a maximum slope if it is already in memory or stored in the shared
+     * DerivedDataCache, mapping it in from the cache if need be, or null without working it out.
+     *
+     * @param map a loaded map
+     * @param maxSlope the steepest slope allowed, in degrees
+     * @return the mask, or null if it has not been built
+     */
+    public static TraversabilityMask getIfStored(GridTerrainMap map, double maxSlope) {
+        boolean inMemory;
+        synchronized (masks) {
+            Map<Double, FutureTask<TraversabilityMask>> forMap = masks.get(map);
+            inMemory = forMap != null && forMap.containsKey(maxSlope);
+        }
+        if (inMemory) {
+            return get(map, maxSlope); //waits for the build if it is still going
+        }
+        DerivedDataCache cache = DerivedDataCache.getShared();
+        if (cache == null || map.getMapPath() == null) {
+            return null;
+        }
+        try {
+            if (!cache.getEntryFile(new File(map.getMapPath()), "traversability", parameters(map, maxSlope)).isFile()) {
+                return null;
+            }
+        } catch (IOException e) {
+            return null; //the map file cannot be read, so nothing stored for it can be trusted
+        }
+        return get(map, maxSlope);
+    }
+
+    /**
+     * Maps the mask from the shared DerivedDataCache if there is one, building (and storing) it there otherwise.
+     */
+    private static TraversabilityMask load(final GridTerrainMap map, final double maxSlope) {
+        DerivedDataCache cache = DerivedDataCache.getShared();
+        if (cache != null && map.getMapPath() != null) {
+            final TraversabilityMask[] built = new TraversabilityMask[1];
+            try {
+                File stored = cache.getFile(new File(map.getMapPath()), "traversability", parameters(map, maxSlope), new DerivedDataCache.EntryWriter() {
+                    public void write(FileChannel out) throws IOException {
+                        built[0] = build(map, maxSlope, POOL);
+                        built[0].write(out);
+                    }
+                });
+                return built[0] != null ? built[0] : read(stored, map, maxSlope);
+            } catch (IOException e) {
+                System.out.println("Warning: could not use the stored traversability of " + map.getMapPath() + ": " + e.getMessage());
+            }
+        }
+        return build(map, maxSlope, POOL);
+    }
+
+    /**
+     * Everything a stored mask depends on besides the map's contents.
+     */
+    private static String parameters(GridTerrainMap map, double maxSlope) {
+        return "slope=" + maxSlope + ",rules=" + RULES + ",quantized=" + (map.getStorage() == ElevationStorage.QUANTIZED)
+                + ",layout=" + (map.getCellLayout() instanceof MortonLayout ? "morton" : "rows");
+    }
+
+    /**
+     * Works out a new mask of a map for a maximum slope on the given pool, a band of rows per task.
+     * Each bit is worked out from the elevations, unless the map has EdgeSlopes, which this builds when the map already
+     * has a mask for another slope and they fit the memory budget: each bit is then a comparison against them, and
+     * only steps whose slope is within the EdgeSlopes' rounding of maxSlope are walked.
+     *
+     * @param map a loaded map
+     * @param maxSlope the steepest slope allowed, in degrees
+     * @param pool the pool to build on
+     * @return the mask
+     */
+    public static TraversabilityMask build(GridTerrainMap map, double maxSlope, ForkJoinPool pool) {
+        ElevationGrid grid = map.getElevationGrid();
+        if (grid == null) {
+            throw new IllegalStateException("Map is not loaded");
+        }
+        LatticeLayout layout = map.getLatticeLayout();
+        OffHeapArray directions = OffHeapArray.allocate(layout.size());
+        EdgeSlopes slopes = EdgeSlopes.getIfBuilt(map);
+        if (slopes == null && hasOtherSlope(map, maxSlope) && MapRegistry.fitsBudget(map, EdgeSlopes.BYTES_PER_COORDINATE * layout.size())) {
+            slopes = EdgeSlopes.get(map); //a sweep over slopes, which the slopes answer without reading elevations
+        }
+        PlateauRuns runs = PlateauRuns.getWithinBudget(map);
+        pool.invoke(new BandTask(map, slopes, runs, maxSlope, directions, layout, 0, layout.getHeight()));
+        return new TraversabilityMask(layout, maxSlope, directions);
+    }
+
+    /**
+     * Returns whether a map has a mask, built or building, for a maximum slope other than the given one.
+     */
+    private static boolean hasOtherSlope(GridTerrainMap map, double maxSlope) {
+        synchronized (masks) {
+            Map<Double, FutureTask<TraversabilityMask>> forMap = masks.get(map);
+            if (forMap == null) {
+                return false;
+            }
+            for (Double slope : forMap.keySet()) {
+                if (!slope.equals(maxSlope)) { //as the map keys compare them
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Writes the mask (little-endian), to be mapped back by read, for example into a DerivedDataCache.
+     *
+     * @param out channel to write to, positioned where the mask should start
+     * @throws IOException if the mask cannot be written
+     */
+    public void write(FileChannel out) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(width).putInt(height).putDouble(maxSlope).putInt(RULES).putInt(0); //reserved
+        header.flip();
+        while (header.hasRemaining()) {
+            out.write(header);
+        }
+        directions.write(out);
+    }
+
+    /**
+     * Maps a mask written by write, read-only, instead of working it out again.
+     *
+     * @param file the file the mask was written to, from its start
+     * @param map the map the mask was worked out for
+     * @param maxSlope the maximum slope the mask was worked out for
+     * @return the mask
+     * @throws IOException if the file cannot be read, or holds a mask for another map size, slope or RULES
+     */
+    public static TraversabilityMask read(File file, GridTerrainMap map, double maxSlope) throws IOException {
+        ElevationGrid grid = map.getElevationGrid();
+        if (grid == null) {
+            throw new IllegalStateException("Map is not loaded");
+        }
+        LatticeLayout layout = map.getLatticeLayout();
+        int width = layout.getWidth();
+        int height = layout.getHeight();
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = in.getChannel();
+            if (channel.size() != HEADER_BYTES + layout.size()) {
+                throw new IOException("Stored traversability does not match the map");
+            }
+            ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            if (header.getInt() != width || header.getInt() != height
+                    || Double.compare(header.getDouble(), maxSlope) != 0 || header.getInt() != RULES) {
+                throw new IOException("Stored traversability does not match the map");
+            }
+            OffHeapArray directions = OffHeapArray.map(channel, FileChannel.MapMode.READ_ONLY, HEADER_BYTES, layout.size());
+            return new TraversabilityMask(layout, maxSlope, directions);
+        } finally {
+            in.close(); //the mapping stays valid after the channel is closed
+        }
+    }
+
+    /**
+     * Returns the direction (an index into DX and DY) of a step, or -1 if it is not a step to a neighbor.
+     */
+    public static int direction(int dx, int dy) {
+        if (dx < -1 || dx > 1 || dy < -1 || dy > 1 || (dx == 0 && dy == 0)) {
+            return -1;
+        }
+        int direction = (dy + 1) * 3 + dx + 1;
+        return direction > 4 ? direction - 1 : direction; //skip the centre
+    }
+
+    /**
+     * Returns whether the step from (x, y) in the given direction can be taken. Never true for coordinates off the map.
+     */
+    public boolean canTraverse(int x, int y, int direction) {
+        if (x < 0 || y < 0 || x >= width || y >= height) {
+            return false;
+        }
+        return (directions.getByte(layout.index(x, y)) & (1 << direction)) != 0;
+    }
+
+    /**
+     * Returns the bits of all 8 directions from (x, y), or 0 for coordinates off the map.
+     */
+    public int getDirections(int x, int y) {
+        if (x < 0 || y < 0 || x >= width || y >= height) {
+            return 0;
+        }
+        return directions.getByte(layout.index(x, y)) & 0xFF;
+    }
+
+    /**
+     * Returns how many coordinates the mask covers across: one more than the grid's width.
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public double getMaxSlope() {
+        return maxSlope;
+    }
+
+    /**
+     * Returns the layout of the mask's coordinates, which TraversableRegions shares.
+     */
+    public LatticeLayout getLayout() {
+        return layout;
+    }
+
+    /**
+     * Works out a range of rows, splitting it in two until it is at most BAND_ROWS rows.
+     * Every coordinate's byte is written by exactly one task.
+     */
+    private static class BandTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final GridTerrainMap map;
+        private final EdgeSlopes slopes; //null to work every step out from the elevations
+        private final PlateauRuns runs; //null to walk every plateau
+        private final double maxSlope;
+        private final OffHeapArray directions;
+        private final LatticeLayout layout;
+        private final int firstRow;
+        private final int endRow; //exclusive
+
+        BandTask(GridTerrainMap map, EdgeSlopes slopes, PlateauRuns runs, double maxSlope, OffHeapArray directions, LatticeLayout layout, int firstRow, int endRow) {
+            this.map = map;
+            this.slopes = slopes;
+            this.runs = runs;
+            this.maxSlope = maxSlope;
+            this.directions = directions;
+            this.layout = layout;
+            this.firstRow = firstRow;
+            this.endRow = endRow;
+        }
+
+        @Override
+        protected void compute() {
+            if (endRow - firstRow > BAND_ROWS) {
+                int middle = (firstRow + endRow) >>> 1;
+                invokeAll(new BandTask(map, slopes, runs, maxSlope, directions, layout, firstRow, middle),
+                        new BandTask(map, slopes, runs, maxSlope, directions, layout, middle, endRow));
+                return;
+            }
+            int width = layout.getWidth();
+            for (int y = firstRow; y < endRow; y++) {
+                for (int x = 0; x < width; x++) {
+                    int bits = 0;
+                    for (int d = 0; d < 8; d++) {
+                        int allowed = slopes == null ? EdgeSlopes.UNSURE : slopes.allows(x, y, d, maxSlope);
+                        if (allowed == EdgeSlopes.YES
+                                || (allowed == EdgeSlopes.UNSURE && MarsRover.canTraverse(map, runs, maxSlope, x, y, x + DX[d], y + DY[d]))) {
+                            bits |= 1 << d;
+                        }
+                    }
+                    directions.putByte(layout.index(x, y), (byte) bits);
+                }
+            }
+        }
+    }
+
+}
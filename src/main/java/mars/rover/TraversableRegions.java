@@ -0,0 +1,221 @@
+package mars.rover;
+
+import mars.map.GridTerrainMap;
+import mars.map.LatticeLayout;
+import mars.map.OffHeapArray;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * The connected regions of a map for one maximum slope: two coordinates share a region if they are joined by
+ * steps the rover can take in at least one direction (see TraversabilityMask). A search whose start and goal are in
+ * different regions can never succeed, and mayConnect says so in two lookups instead of a search of the whole region.
+ * canTraverse is not symmetric (the plateau walks depend on the direction of the step), so sharing a region does not
+ * guarantee a path; it only rules paths out when the regions differ.
+ *
+ * Regions are labelled with a union-find over the mask: bands of rows are joined in parallel on a fork/join pool,
+ * then the seams between bands as the bands are merged, and finally every coordinate is given its region's label
+ * (the lowest index of any coordinate in it). Labels are longs off the heap, 8 bytes per coordinate, laid out like
+ * the mask (see LatticeLayout).
+ */
+public class TraversableRegions {
+
+    static final int BAND_ROWS = 64; //rows joined by one fork/join task; bigger ranges are split in two
+    private static final ForkJoinPool POOL = new ForkJoinPool(); //one worker per core; its threads are daemons
+    private static final Map<GridTerrainMap, Map<Double, FutureTask<TraversableRegions>>> regions =
+            new WeakHashMap<GridTerrainMap, Map<Double, FutureTask<TraversableRegions>>>(); //dropped with their map
+
+    private final LatticeLayout layout; //as in the mask
+    private final OffHeapArray labels;
+
+    private TraversableRegions(LatticeLayout layout, OffHeapArray labels) {
+        this.layout = layout;
+        this.labels = labels;
+    }
+
+    /**
+     * Returns the regions of a map for a maximum slope, labelling them on the first request for that pair.
+     * Concurrent requests for the same pair wait for one build rather than each starting their own.
+     *
+     * @param map a loaded map
+     * @param maxSlope the steepest slope allowed, in degrees
+     * @return the regions
+     */
+    public static TraversableRegions get(final GridTerrainMap map, final double maxSlope) {
+        FutureTask<TraversableRegions> build;
+        synchronized (regions) {
+            Map<Double, FutureTask<TraversableRegions>> forMap = regions.get(map);
+            if (forMap == null) {
+                forMap = new HashMap<Double, FutureTask<TraversableRegions>>();
+                regions.put(map, forMap);
+            }
+            build = forMap.get(maxSlope);
+            if (build == null) {
+                build = new FutureTask<TraversableRegions>(new Callable<TraversableRegions>() {
+                    public TraversableRegions call() {
+                        TraversableRegions built = build(TraversabilityMask.get(map, maxSlope), POOL);
+                        map.addDerivedData(built.labels);
+                        return built;
+                    }
+                });
+                forMap.put(maxSlope, build);
+            }
+        }
+        build.run(); //does nothing if another thread has already started the build
+        try {
+            return build.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted waiting for the regions of " + map.getMapPath(), e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof RuntimeException ? (RuntimeException) cause : new IllegalStateException(cause);
+        }
+    }
+
+    /**
+     * Returns the regions of a map for a maximum slope if they have already been labelled, or null, without
+     * starting a build.
+     */
+    public static TraversableRegions getIfBuilt(GridTerrainMap map, double maxSlope) {
+        FutureTask<TraversableRegions> build;
+        synchronized (regions) {
+            Map<Double, FutureTask<TraversableRegions>> forMap = regions.get(map);
+            build = forMap == null ? null : forMap.get(maxSlope);
+        }
+        if (build == null || !build.isDone()) {
+            return null;
+        }
+        try {
+            return build.get();
+        } catch (Exception e) { //the build failed; whoever asked for it has been told
+            return null;
+        }
+    }
+
+    /**
+     * Labels the regions of a traversability mask on the given pool.
+     *
+     * @param mask the mask of a map for some maximum slope
+     * @param pool the pool to join bands on
+     * @return the regions
+     */
+    public static TraversableRegions build(TraversabilityMask mask, ForkJoinPool pool) {
+        LatticeLayout layout = mask.getLayout();
+        long cells = layout.size();
+        OffHeapArray parents = OffHeapArray.allocate(8 * cells);
+        for (long i = 0; i < cells; i++) {
+            parents.putLong(i, i);
+        }
+        pool.invoke(new BandTask(mask, parents, 0, layout.getHeight()));
+        for (long i = 0; i < cells; i++) { //parents always have lower indices, so one pass in order flattens every tree
+            parents.putLong(i, parents.getLong(parents.getLong(i)));
+        }
+        return new TraversableRegions(layout, parents);
+    }
+
+    /**
+     * Returns the label of the region holding (x, y), or -1 for coordinates off the map.
+     */
+    public long getRegion(int x, int y) {
+        if (!layout.contains(x, y)) {
+            return -1;
+        }
+        return labels.getLong(layout.index(x, y));
+    }
+
+    /**
+     * Returns false if no path of steps can lead from one coordinate to the other, because they lie in different
+     * regions (or one of them is off the map). True means a path may exist, and a search has to find out.
+     */
+    public boolean mayConnect(int x1, int y1, int x2, int y2) {
+        if (x1 == x2 && y1 == y2) {
+            return true; //already there
+        }
+        long region = getRegion(x1, y1);
+        return region >= 0 && region == getRegion(x2, y2);
+    }
+
+    /**
+     * Joins the regions of a range of rows, splitting it in two until it is at most BAND_ROWS rows and joining the
+     * seam between the halves once both are done. A task only ever touches coordinates in its own rows: a tree only
+     * holds coordinates its task has joined, whatever order the layout puts their indices in.
+     */
+    private static class BandTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final TraversabilityMask mask;
+        private final OffHeapArray parents;
+        private final int firstRow;
+        private final int endRow; //exclusive
+
+        BandTask(TraversabilityMask mask, OffHeapArray parents, int firstRow, int endRow) {
+            this.mask = mask;
+            this.parents = parents;
+            this.firstRow = firstRow;
+            this.endRow = endRow;
+        }
+
+        @Override
+        protected void compute() {
+            if (endRow - firstRow > BAND_ROWS) {
+                int middle = (firstRow + endRow) >>> 1;
+                invokeAll(new BandTask(mask, parents, firstRow, middle), new BandTask(mask, parents, middle, endRow));
+                joinRow(middle - 1, false, true); //the seam
+                return;
+            }
+            for (int y = firstRow; y < endRow; y++) {
+                joinRow(y, true, y + 1 < endRow);
+            }
+        }
+
+        /**
+         * Joins each coordinate of a row to its right neighbor and/or to its three neighbors in the row below.
+         */
+        private void joinRow(int y, boolean right, boolean down) {
+            LatticeLayout layout = mask.getLayout();
+            int width = layout.getWidth();
+            for (int x = 0; x < width; x++) {
+                long cell = layout.index(x, y);
+                for (int d = right ? 4 : 5; d < (down ? 8 : 5); d++) { //4 is right; 5, 6 and 7 are down-left, down and down-right
+                    int nx = x + TraversabilityMask.DX[d];
+                    int ny = y + TraversabilityMask.DY[d];
+                    if (nx < 0 || nx >= width) {
+                        continue;
+                    }
+                    if (mask.canTraverse(x, y, d) || mask.canTraverse(nx, ny, 7 - d)) { //7 - d is the opposite direction
+                        union(cell, layout.index(nx, ny));
+                    }
+                }
+            }
+        }
+
+        private long find(long cell) {
+            long parent = parents.getLong(cell);
+            while (parent != cell) {
+                long grandparent = parents.getLong(parent);
+                parents.putLong(cell, grandparent); //path halving
+                cell = grandparent;
+                parent = parents.getLong(cell);
+            }
+            return cell;
+        }
+
+        private void union(long a, long b) {
+            long rootA = find(a);
+            long rootB = find(b);
+            if (rootA < rootB) { //the lower index is always the root, one of the coordinates of whichever task joined them
+                parents.putLong(rootB, rootA);
+            } else if (rootB < rootA) {
+                parents.putLong(rootA, rootB);
+            }
+        }
+    }
+
+}
@@ -3,13 +3,17 @@ package mars.ui;
 import mars.algorithm.Algorithm;
 import mars.algorithm.AlgorithmFactory;
 import mars.coordinate.Coordinate;
+import mars.map.BinaryMapFormat;
 import mars.map.GeoTIFF;
+import mars.map.GridTerrainMap;
+import mars.map.MapRegistry;
 import mars.map.TerrainMap;
 import mars.out.*;
 import mars.rover.MarsRover;
 import mars.views.MapCoordinatePickerFrame;
 import java.util.Map;
 import java.util.*;
+import java.util.concurrent.Future;
 import java.io.*;
 
 /**
@@ -30,6 +34,7 @@ public class TerminalInterface extends UserInterface {
     public String algorithmClass = ""; //used to instantiate the chosen algorithm by name
     public double fieldOfView = 0;
     TerrainMap map = new GeoTIFF();
+    Future<GridTerrainMap> mapLoad; //the chosen map, loading in the background while the user answers the other prompts
     public String outputClass = "";
     String latLong = "";
     //other variables inherited from "UserInterface"
@@ -44,6 +49,7 @@ public class TerminalInterface extends UserInterface {
         System.out.println("**==================================================**\n");
 
         if( mapPath.compareTo("") == 0) promptForMap();
+        if( mapLoad == null) preloadMap();
         if( slope == 0 ) promptForSlope();
         promptForInputType();
         if( startCoords == null)  promptForStartCoords();
@@ -59,6 +65,14 @@ public class TerminalInterface extends UserInterface {
      * Function to run the requested algorithm with user-prompted variables.
      */
     public void startAlgorithm() {
+        if (mapLoad != null) {
+            try {
+                map = mapLoad.get(); //usually loaded by now; the rover gets this same instance from the registry
+            } catch (Exception e) {
+                System.out.println("Could not load map " + mapPath + ": " + e.getMessage());
+                return;
+            }
+        }
         MarsRover r;
         if (fieldOfView != 0)
             r = new MarsRover(slope, coordType, startCoords, endCoords, mapPath, fieldOfView);
@@ -97,7 +111,7 @@ public class TerminalInterface extends UserInterface {
                 String mapChoice = maps.get(mapNum);
                 if (mapChoice != null) {
                     mapPath = resourceDir + mapChoice;
-                    map.initMap(mapPath);
+                    preloadMap();
                     break;
                 } else {
                     throw new Exception("Please only select from the given options.");
@@ -108,6 +122,17 @@ public class TerminalInterface extends UserInterface {
         }
     }
 
+    /**
+     * Starts loading the chosen map in the background, so it is ready (or nearly) by the time startAlgorithm needs it.
+     */
+    public void preloadMap() {
+        try {
+            mapLoad = MapRegistry.preload(mapPath);
+        } catch (IOException e) {
+            System.out.println("Could not find map " + mapPath + ": " + e.getMessage());
+        }
+    }
+
     /**
      * Asks the user for the maximum slope that their rover can handle.
      */
@@ -533,12 +558,12 @@ public class TerminalInterface extends UserInterface {
     //----Resource scanning methods-------------------------------------------------------------------------------------
 
     /**
-     * Returns a Map of [index] -> [name of .tif(f)]
+     * Returns a Map of [index] -> [name of .tif(f) or binary map]
      */
     public Map<Integer, String> findMaps(String dir) {
         File[] files = new File(dir).listFiles(new FilenameFilter() {
             public boolean accept(File dir, String name) {
-                return name.endsWith(".tif") || name.endsWith(".tiff");
+                return name.endsWith(".tif") || name.endsWith(".tiff") || name.endsWith(BinaryMapFormat.EXTENSION);
             }
         });
         Map<Integer, String> elevationMaps = new HashMap<Integer, String>();
@@ -7,8 +7,23 @@ import mars.algorithm.*;
 import mars.algorithm.limited.*;
 import mars.algorithm.unlimited.*;
 import mars.coordinate.Coordinate;
+import mars.map.BinaryMapFormat;
+import mars.map.BinaryTerrainMap;
+import mars.map.DerivedDataCache;
+import mars.map.ElevationGrid;
+import mars.map.GeoTIFF;
+import mars.map.GridTerrainMap;
+import mars.map.GridTransform;
+import mars.map.MapRegistry;
+import mars.rover.EdgeSlopes;
 import mars.rover.MarsRover;
+import mars.rover.PlateauRuns;
+import mars.rover.TraversabilityMask;
+import mars.rover.TraversableRegions;
 
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.nio.file.Files;
 import java.util.*;
 
 import static java.lang.Math.abs;
@@ -660,6 +675,272 @@ public class AlgorithmTest extends TestCase {
         tryAlgorithm(algorithm,false);
     }
 
+    //Test that the precomputed traversability mask answers every neighbor step as canTraverse does
+    public void testTraversabilityMaskMatchesCanTraverse() throws Exception{
+        String mapPath = "src/test/resources/Phobos_ME_HRSC_DEM_Global_2ppd.tiff";
+        MarsRover rover = new MarsRover(3,"L",new Coordinate(10,10),new Coordinate(10,20),mapPath);
+        TraversabilityMask mask = rover.getTraversabilityMask();
+        assertSame(mask, new MarsRover(3,"L",new Coordinate(0,0),new Coordinate(1,1),mapPath).getTraversabilityMask());
+        int width = rover.getMap().getElevationGrid().getWidth();
+        int height = rover.getMap().getElevationGrid().getHeight();
+        assertEquals(width + 1, mask.getWidth());
+        for (int y = -1; y <= height + 1; y++) {
+            for (int x = -1; x <= width + 1; x++) {
+                if (x % 7 != 0 && y % 5 != 0 && x > 1 && y > 1 && x < width - 1 && y < height - 1) continue; //a lattice of the interior, and all the edges
+                for (int d = 0; d < 8; d++) {
+                    Coordinate from = new Coordinate(x, y);
+                    Coordinate to = new Coordinate(x + TraversabilityMask.DX[d], y + TraversabilityMask.DY[d]);
+                    assertEquals(d, TraversabilityMask.direction(to.getX() - x, to.getY() - y));
+                    assertEquals("(" + x + ", " + y + ") direction " + d, rover.canTraverse(from, to), mask.canTraverse(x, y, d));
+                }
+            }
+        }
+        assertEquals(-1, TraversabilityMask.direction(0, 0));
+        assertEquals(-1, TraversabilityMask.direction(2, 0));
+    }
+
+    //Test that comparing against the edge slope raster answers as canTraverse does, for any rover slope
+    public void testEdgeSlopesMatchCanTraverse() throws Exception{
+        String mapPath = "src/test/resources/Phobos_ME_HRSC_DEM_Global_2ppd.tiff";
+        GridTerrainMap map = new MarsRover(0,"L",new Coordinate(0,0),new Coordinate(1,1),mapPath).getMap();
+        double edge = MarsRover.effectiveSlope(map, 100, 100, 101, 101); //a slope the rover's limit can sit right on
+        for (double slope : new double[] {0, 1, 3, 10, 45, edge, Math.nextUp(edge), Math.nextAfter(edge, 0)}) {
+            MarsRover rover = new MarsRover(slope,"L",new Coordinate(0,0),new Coordinate(1,1),mapPath);
+            for (int y = -1; y <= 361; y += 3) {
+                for (int x = -1; x <= 721; x += 3) {
+                    for (int d = 0; d < 8; d++) {
+                        Coordinate to = new Coordinate(x + TraversabilityMask.DX[d], y + TraversabilityMask.DY[d]);
+                        assertEquals(rover.canTraverse(new Coordinate(x, y), to), rover.canTraverse(x, y, d));
+                    }
+                }
+            }
+        }
+        assertSame(EdgeSlopes.get(map), EdgeSlopes.getIfBuilt(map));
+    }
+
+    //Test that once a map has a mask, the masks of other slopes come from its edge slopes without reading an elevation
+    public void testLaterMasksReadNoElevations() throws Exception{
+        final int[] reads = new int[1];
+        BinaryTerrainMap map = new BinaryTerrainMap() {
+            @Override
+            public void initMap(String fileLocation) throws Exception {
+                super.initMap(fileLocation);
+                final ElevationGrid grid = elevationGrid;
+                elevationGrid = new ElevationGrid(grid.getWidth(), grid.getHeight()) { //counts every read of an elevation
+                    public double get(int x, int y) {
+                        reads[0]++;
+                        return grid.get(x, y);
+                    }
+
+                    public long getMemoryFootprint() {
+                        return grid.getMemoryFootprint();
+                    }
+                };
+            }
+        };
+        map.initMap(makeTerraces(70, 130, 9, 13).getMapPath());
+        TraversabilityMask.get(map, 10);
+        assertTrue(reads[0] > 0);
+        assertNull(EdgeSlopes.getIfBuilt(map)); //a single slope is worked out from the elevations
+        TraversabilityMask.get(map, 15); //the second slope builds the edge slopes
+        assertNotNull(EdgeSlopes.getIfBuilt(map));
+        reads[0] = 0;
+        TraversabilityMask mask = TraversabilityMask.get(map, 25);
+        assertEquals(0, reads[0]);
+        for (int y = 0; y <= 130; y++) {
+            for (int x = 0; x <= 70; x++) {
+                for (int d = 0; d < 8; d++) {
+                    assertEquals(MarsRover.canTraverse(map, 25, x, y, x + TraversabilityMask.DX[d], y + TraversabilityMask.DY[d]), mask.canTraverse(x, y, d));
+                }
+            }
+        }
+    }
+
+    //Builds a fresh map of terraces, cellsX by cellsY cells each, with a 4 by 3 spike on one of them
+    private GridTerrainMap makeTerraces(int width, int height, int cellsX, int cellsY) throws Exception{
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_USHORT_GRAY);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                boolean spike = x >= width / 3 && x < width / 3 + 4 && y >= height / 2 && y < height / 2 + 3;
+                image.getRaster().setSample(x, y, 0, spike ? 999 : (x / cellsX) * 2 + (y / cellsY) * 3);
+            }
+        }
+        File file = File.createTempFile("mars", BinaryMapFormat.EXTENSION);
+        file.deleteOnExit();
+        BinaryMapFormat.write(image, GridTransform.IDENTITY, null, Double.NaN, file);
+        BinaryTerrainMap map = new BinaryTerrainMap();
+        map.initMap(file.getPath());
+        return map;
+    }
+
+    //Test that jumping plateaus with the run-length tables finds exactly the slopes the unit-by-unit walk does
+    public void testPlateauRunsMatchPlateauWalk() throws Exception{
+        GridTerrainMap[] maps = {makeTerraces(70, 130, 9, 13), makeTerraces(2100, 12, 700, 5)}; //the second has runs hundreds of cells long
+        for (GridTerrainMap map : maps) {
+            int width = map.getElevationGrid().getWidth();
+            int height = map.getElevationGrid().getHeight();
+            double[] walked = new double[(width + 3) * (height + 3) * 8];
+            int i = 0;
+            for (int y = -1; y <= height + 1; y++) {
+                for (int x = -1; x <= width + 1; x++) {
+                    for (int d = 0; d < 8; d++) {
+                        walked[i++] = MarsRover.effectiveSlope(map, x, y, x + TraversabilityMask.DX[d], y + TraversabilityMask.DY[d]);
+                    }
+                }
+            }
+            assertNotNull(PlateauRuns.get(map)); //from now on effectiveSlope jumps
+            i = 0;
+            for (int y = -1; y <= height + 1; y++) {
+                for (int x = -1; x <= width + 1; x++) {
+                    for (int d = 0; d < 8; d++) {
+                        double jumped = MarsRover.effectiveSlope(map, x, y, x + TraversabilityMask.DX[d], y + TraversabilityMask.DY[d]);
+                        assertEquals("(" + x + ", " + y + ") direction " + d, //bits, as steps off the map are NaN
+                                Double.doubleToLongBits(walked[i++]), Double.doubleToLongBits(jumped));
+                    }
+                }
+            }
+        }
+    }
+
+    //Test that a mask is worked out without the run-length tables when they don't fit the map budget
+    public void testPlateauRunsStayWithinBudget() throws Exception{
+        GridTerrainMap map = makeTerraces(70, 130, 9, 13);
+        long oldBudget = MapRegistry.getMemoryBudget();
+        try {
+            MapRegistry.clear(); //so only this map counts against the budget
+            MapRegistry.setMemoryBudget(map.getMemoryFootprint() + 70 * 130 * PlateauRuns.BYTES_PER_CELL - 1);
+            TraversabilityMask mask = TraversabilityMask.get(map, 25);
+            assertNull(PlateauRuns.getIfBuilt(map));
+            for (int y = 0; y <= 130; y++) {
+                for (int x = 0; x <= 70; x++) {
+                    for (int d = 0; d < 8; d++) {
+                        assertEquals(MarsRover.canTraverse(map, 25, x, y, x + TraversabilityMask.DX[d], y + TraversabilityMask.DY[d]), mask.canTraverse(x, y, d));
+                    }
+                }
+            }
+        } finally {
+            MapRegistry.setMemoryBudget(oldBudget);
+        }
+    }
+
+    //Test that the run-length tables measure the level runs of each row in both directions
+    public void testPlateauRunsMeasureRows() throws Exception{
+        PlateauRuns runs = PlateauRuns.get(makeTerraces(70, 130, 9, 13));
+        assertEquals(9, runs.getRun(0, 0, 1)); //terrace 0 is 9 wide
+        assertEquals(1, runs.getRun(0, 0, -1));
+        assertEquals(5, runs.getRun(4, 4, 1));
+        assertEquals(5, runs.getRun(4, 4, -1));
+        assertEquals(1, runs.getRun(8, 0, 1)); //the next terrace starts at x = 9
+        assertEquals(9, runs.getRun(8, 12, -1));
+        assertEquals(4, runs.getRun(23, 65, 1)); //the spike
+        assertEquals(4, runs.getRun(26, 65, -1));
+        assertEquals(1, runs.getRun(22, 65, 1));
+        assertEquals(9, runs.getRun(27, 65, 1));
+        assertEquals(7, runs.getRun(63, 0, 1)); //the last terrace is cut short by the edge
+        assertEquals(-5, PlateauRuns.unpackX(PlateauRuns.pack(-5, 7)));
+        assertEquals(7, PlateauRuns.unpackY(PlateauRuns.pack(-5, 7)));
+    }
+
+    //Test that a mask worked out once is stored and mapped back for a fresh copy of the map
+    public void testTraversabilityMaskIsStored() throws Exception{
+        String mapPath = "src/test/resources/Phobos_ME_HRSC_DEM_Global_2ppd.tiff";
+        DerivedDataCache previous = DerivedDataCache.getShared();
+        DerivedDataCache.setShared(new DerivedDataCache(Files.createTempDirectory("mars-cache").toFile()));
+        try {
+            MarsRover rover = new MarsRover(7.25,"L",new Coordinate(0,0),new Coordinate(1,1),mapPath);
+            assertNull(TraversabilityMask.getIfStored(rover.getMap(), 7.25));
+            TraversabilityMask built = rover.getTraversabilityMask(); //worked out and stored
+            GeoTIFF reloaded = new GeoTIFF();
+            reloaded.initMap(mapPath);
+            TraversabilityMask stored = TraversabilityMask.getIfStored(reloaded, 7.25);
+            assertNotNull(stored);
+            assertNotSame(built, stored);
+            for (int y = 0; y <= 360; y += 3) {
+                for (int x = 0; x <= 720; x += 3) {
+                    assertEquals(built.getDirections(x, y), stored.getDirections(x, y));
+                }
+            }
+            assertNull(TraversabilityMask.getIfStored(reloaded, 8));
+        } finally {
+            DerivedDataCache.setShared(previous);
+        }
+    }
+
+    //Test that every step the rover can take stays within one region, and that searches between regions fail at once
+    public void testTraversableRegionsFollowMask() throws Exception{
+        String mapPath = "src/test/resources/Phobos_ME_HRSC_DEM_Global_2ppd.tiff";
+        MarsRover rover = new MarsRover(0,"L",new Coordinate(0,0),new Coordinate(1,1),mapPath);
+        TraversabilityMask mask = rover.getTraversabilityMask();
+        TraversableRegions regions = rover.getTraversableRegions();
+        Coordinate elsewhere = null;
+        for (int y = 0; y <= 360; y += 2) {
+            for (int x = 0; x <= 720; x += 2) {
+                for (int d = 0; d < 8; d++) {
+                    if (mask.canTraverse(x, y, d)) {
+                        assertEquals(regions.getRegion(x, y), regions.getRegion(x + TraversabilityMask.DX[d], y + TraversabilityMask.DY[d]));
+                    }
+                }
+                if (elsewhere == null && !regions.mayConnect(0, 0, x, y)) {
+                    elsewhere = new Coordinate(x, y);
+                }
+            }
+        }
+        assertEquals(-1, regions.getRegion(-1, 0));
+        assertTrue(regions.mayConnect(5, 5, 5, 5));
+        assertNotNull(elsewhere); //(0, 0) is on an island
+        rover = new MarsRover(0,"L",new Coordinate(0,0),elsewhere,mapPath);
+        tryAlgorithm(new UnlimitedBreadthFirstSearch(rover, "TerminalOutput"), false);
+    }
+
+    //Test that limited searches leave the mask and regions unbuilt, and that unlimited ones count them in the map's footprint
+    public void testOnlyUnlimitedSearchesBuildWholeMapState() throws Exception{
+        String mapPath = makeTerraces(60, 40, 6, 4).getMapPath();
+        MarsRover rover = new MarsRover(60,"P",new Coordinate(2,2),new Coordinate(30,10),mapPath,5);
+        GridTerrainMap map = rover.getMap();
+        tryAlgorithm(new LimitedBreadthFirstSearch(rover, "TerminalOutput"), true);
+        long footprint = map.getMemoryFootprint();
+        tryAlgorithm(new UnlimitedBreadthFirstSearch(rover, "TerminalOutput"), true);
+        assertEquals(footprint + 61 * 41 * (1 + 8) + 60 * 40 * 8, map.getMemoryFootprint()); //mask and labels per coordinate, plateau runs per cell
+    }
+
+    //Test that whole-map state is only built while it fits the map budget, and that searches work without it
+    public void testWholeMapStateStaysWithinBudget() throws Exception{
+        String mapPath = makeTerraces(60, 40, 6, 4).getMapPath();
+        long oldBudget = MapRegistry.getMemoryBudget();
+        try {
+            MapRegistry.clear(); //so only this map counts against the budget
+            MarsRover rover = new MarsRover(60,"P",new Coordinate(2,2),new Coordinate(30,10),mapPath);
+            GridTerrainMap map = rover.getMap();
+            long footprint = map.getMemoryFootprint();
+            MapRegistry.setMemoryBudget(footprint + 61 * 41 * (1 + 8) - 1); //a byte short of a mask and labels
+            assertFalse(rover.usesWholeMapState());
+            tryAlgorithm(new UnlimitedBreadthFirstSearch(rover, "TerminalOutput"), true);
+            assertEquals(footprint, map.getMemoryFootprint());
+            for (int d = 0; d < 8; d++) {
+                assertEquals(MarsRover.canTraverse(map, 60, 5, 3, 5 + TraversabilityMask.DX[d], 3 + TraversabilityMask.DY[d]), rover.canTraverse(5, 3, d));
+            }
+            MapRegistry.setMemoryBudget(footprint + 61 * 41 * (1 + 8));
+            assertTrue(rover.usesWholeMapState());
+        } finally {
+            MapRegistry.setMemoryBudget(oldBudget);
+        }
+    }
+
+    //Test that search state can address cells past the 2^31st, as on maps larger than 46341x46341
+    public void testCellSetAddressesHugeMaps() {
+        CellSet cells = new CellSet(100000, 100000);
+        assertTrue(cells.add(99999, 99999));
+        assertTrue(cells.add(3, 21475)); //cell 2147500003, just past Integer.MAX_VALUE
+        assertFalse(cells.add(3, 21475));
+        assertFalse(cells.add(-1, 0)); //off the map
+        assertTrue(cells.contains(99999, 99999));
+        assertTrue(cells.contains(3, 21475));
+        assertFalse(cells.contains(4, 21475));
+        assertFalse(cells.contains(3, 21474));
+        assertFalse(cells.contains(100000, 0));
+        assertEquals(2, cells.size());
+    }
+
     // Tests for LimitedDijkstra
 
     //Test if algorithm can complete a trivial route
@@ -0,0 +1,178 @@
+package mars;
+
+import mars.map.CellLayout;
+import mars.map.ElevationGrid;
+import mars.map.ElevationStorage;
+import mars.map.GeoTIFF;
+import mars.map.MortonElevationGrid;
+import mars.map.RowMajorLayout;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.WritableRaster;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * This class houses the method which compares row-major and Morton (Z-order) layouts of the elevation grid
+ * and of per-cell search state, on the bundled map and on a synthetic one.
+ * Each layout runs the same two workloads:
+ * - a flood fill from the centre of the map over the 8-connected cells a rover could step between,
+ *   which grows roughly evenly in every direction as Dijkstra and A* frontiers do
+ * - a column-by-column sweep reading every cell's 8 neighbors, the worst case for a row-major raster
+ */
+public class LayoutBenchmark {
+
+    private static final double MAX_STEP = 40; //elevation difference the flood fill will cross between neighbors
+    private static final int RUNS = 5; //timed runs per workload; the best one is reported
+
+    /**
+     * Runs the benchmark.
+     * Usage: LayoutBenchmark [map] [syntheticWidth syntheticHeight]
+     * @param args path of a map to load (default: the bundled Phobos map), then the size of the synthetic map (default 8192 x 4096)
+     */
+    public static void main(String[] args) {
+        String mapPath = args.length > 0 ? args[0] : "src/main/resources/Phobos_ME_HRSC_DEM_Global_2ppd.tiff";
+        int width = args.length > 2 ? Integer.parseInt(args[1]) : 8192;
+        int height = args.length > 2 ? Integer.parseInt(args[2]) : 4096;
+
+        try {
+            GeoTIFF map = new GeoTIFF();
+            map.setStorage(ElevationStorage.HEAP);
+            map.initMap(mapPath);
+            compare(mapPath, map.getElevationGrid());
+        } catch (Exception e) {
+            System.out.println("Warning: could not load " + mapPath + ": " + e.getMessage());
+        }
+        compare("synthetic " + width + "x" + height, makeSyntheticGrid(width, height, 7));
+    }
+
+    /**
+     * Times both workloads on a row-major grid and on a Morton copy of it, and prints the results.
+     */
+    static void compare(String name, ElevationGrid rowMajor) {
+        int w = rowMajor.getWidth();
+        int h = rowMajor.getHeight();
+        MortonElevationGrid morton = MortonElevationGrid.copyOf(rowMajor, false);
+        CellLayout rowLayout = new RowMajorLayout(w, h);
+        CellLayout mortonLayout = morton.getLayout();
+
+        System.out.println(name + " (" + w + "x" + h + "):");
+        long rowFlood = Long.MAX_VALUE;
+        long mortonFlood = Long.MAX_VALUE;
+        long rowSweep = Long.MAX_VALUE;
+        long mortonSweep = Long.MAX_VALUE;
+        int reached = 0;
+        for (int run = 0; run <= RUNS; run++) { //run 0 warms up the JIT and is not counted
+            long start = System.nanoTime();
+            reached = flood(rowMajor, rowLayout);
+            long rowTime = System.nanoTime() - start;
+            start = System.nanoTime();
+            int mortonReached = flood(morton, mortonLayout);
+            long mortonTime = System.nanoTime() - start;
+            if (mortonReached != reached) {
+                throw new IllegalStateException("Layouts disagree: " + reached + " vs " + mortonReached + " cells reached");
+            }
+            start = System.nanoTime();
+            double rowSum = sweep(rowMajor);
+            long rowSweepTime = System.nanoTime() - start;
+            start = System.nanoTime();
+            double mortonSum = sweep(morton);
+            long mortonSweepTime = System.nanoTime() - start;
+            if (rowSum != mortonSum && !(Double.isNaN(rowSum) && Double.isNaN(mortonSum))) {
+                throw new IllegalStateException("Layouts disagree on the sweep: " + rowSum + " vs " + mortonSum);
+            }
+            if (run > 0) {
+                rowFlood = Math.min(rowFlood, rowTime);
+                mortonFlood = Math.min(mortonFlood, mortonTime);
+                rowSweep = Math.min(rowSweep, rowSweepTime);
+                mortonSweep = Math.min(mortonSweep, mortonSweepTime);
+            }
+        }
+        System.out.println("  flood fill (" + reached + " cells): row-major " + millis(rowFlood) + " ms, Morton " + millis(mortonFlood) + " ms");
+        System.out.println("  column sweep: row-major " + millis(rowSweep) + " ms, Morton " + millis(mortonSweep) + " ms");
+        System.out.println("  memory: row-major " + rowMajor.getMemoryFootprint() / 1024 + " KB, Morton "
+                + morton.getMemoryFootprint() / 1024 + " KB");
+    }
+
+    private static String millis(long nanos) {
+        return String.format("%.1f", nanos / 1e6);
+    }
+
+    /**
+     * Breadth-first flood fill from the centre of the grid, keeping each cell's distance in an array
+     * laid out like the grid, as a search would keep its per-cell state.
+     * @return the number of cells reached
+     */
+    static int flood(ElevationGrid elevations, CellLayout layout) {
+        int w = elevations.getWidth();
+        int h = elevations.getHeight();
+        int[] distance = new int[(int) layout.size()];
+        Arrays.fill(distance, -1);
+        int[] queueX = new int[w * h];
+        int[] queueY = new int[w * h];
+        int head = 0;
+        int tail = 0;
+        queueX[tail] = w / 2;
+        queueY[tail++] = h / 2;
+        distance[(int) layout.index(w / 2, h / 2)] = 0;
+        while (head < tail) {
+            int x = queueX[head];
+            int y = queueY[head++];
+            double z = elevations.get(x, y);
+            int d = distance[(int) layout.index(x, y)] + 1;
+            for (int j = Math.max(y - 1, 0); j <= Math.min(y + 1, h - 1); j++) {
+                for (int i = Math.max(x - 1, 0); i <= Math.min(x + 1, w - 1); i++) {
+                    int cell = (int) layout.index(i, j);
+                    if (distance[cell] < 0 && Math.abs(elevations.get(i, j) - z) <= MAX_STEP) {
+                        distance[cell] = d;
+                        queueX[tail] = i;
+                        queueY[tail++] = j;
+                    }
+                }
+            }
+        }
+        return tail;
+    }
+
+    /**
+     * Visits every cell column by column, summing the largest elevation difference to any of its neighbors.
+     */
+    static double sweep(ElevationGrid elevations) {
+        int w = elevations.getWidth();
+        int h = elevations.getHeight();
+        double sum = 0;
+        for (int x = 1; x < w - 1; x++) {
+            for (int y = 1; y < h - 1; y++) {
+                double z = elevations.get(x, y);
+                double steepest = 0;
+                for (int j = y - 1; j <= y + 1; j++) {
+                    for (int i = x - 1; i <= x + 1; i++) {
+                        steepest = Math.max(steepest, Math.abs(elevations.get(i, j) - z));
+                    }
+                }
+                sum += steepest;
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * Builds a row-major grid of rolling terrain: a few overlapping sine ridges plus noise, in whole meters
+     * so that flat plateaus appear as they do in real DEMs.
+     */
+    static ElevationGrid makeSyntheticGrid(int width, int height, long seed) {
+        Random random = new Random(seed);
+        double phase = random.nextDouble() * 100;
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_USHORT_GRAY);
+        WritableRaster raster = image.getRaster();
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                double elevation = 2000 * Math.sin(x / 700.0 + phase) * Math.cos(y / 450.0)
+                        + 600 * Math.sin((x + y) / 90.0) + 150 * Math.cos((x - 2 * y) / 23.0) + random.nextInt(5);
+                raster.setSample(x, y, 0, (int) (elevation + 3000)); //kept above zero for the unsigned samples
+            }
+        }
+        return ElevationGrid.fromImage(image);
+    }
+
+}
@@ -4,7 +4,55 @@ import junit.framework.Test;
 import junit.framework.TestCase;
 import junit.framework.TestSuite;
 import mars.coordinate.Coordinate;
+import mars.map.BinaryMapFormat;
+import mars.map.BinaryTerrainMap;
+import mars.map.DerivedDataCache;
+import mars.map.ElevationGrid;
+import mars.map.ElevationPyramid;
+import mars.map.ElevationStorage;
+import mars.map.ElevationVisitor;
 import mars.map.GeoTIFF;
+import mars.map.GridTerrainMap;
+import mars.map.GridTransform;
+import mars.map.LatticeLayout;
+import mars.map.LoadProgress;
+import mars.map.MapRegistry;
+import mars.map.MapStatistics;
+import mars.map.MappedElevationGrid;
+import mars.map.MortonElevationGrid;
+import mars.map.MortonLayout;
+import mars.map.OffHeapElevationGrid;
+import mars.map.QuantizedElevationGrid;
+import mars.map.RegionSource;
+import mars.map.TerrainMap;
+import mars.map.TiffRegionSource;
+import mars.map.TiledElevationGrid;
+import mars.rover.PlateauRuns;
+
+import javax.imageio.ImageIO;
+import java.awt.Transparency;
+import java.awt.color.ColorSpace;
+import java.awt.image.BandedSampleModel;
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class MapTest extends TestCase{
 
@@ -45,6 +93,669 @@ public class MapTest extends TestCase{
         }
     }
 
+    //Test that only marsMap.tif is addressed in pixels, which is decided once at load
+    public void testGeotiffPixelAddressing() throws Exception {
+        GeoTIFF newMap = new GeoTIFF();
+        newMap.initMap("src/test/resources/Phobos_ME_HRSC_DEM_Global_2ppd.tiff");
+        assertFalse(newMap.isPixelAddressed());
+    }
+
+    /**
+     * Builds a small 16-bit image whose sample at (x, y) is x*3 + y*7.
+     */
+    private BufferedImage makeTestImage() {
+        BufferedImage image = new BufferedImage(70, 130, BufferedImage.TYPE_USHORT_GRAY);
+        WritableRaster raster = image.getRaster();
+        for (int y = 0; y < image.getHeight(); y++) {
+            for (int x = 0; x < image.getWidth(); x++) {
+                raster.setSample(x, y, 0, x * 3 + y * 7);
+            }
+        }
+        return image;
+    }
+
+    public void testElevationGridCopiesImage() throws Exception {
+        BufferedImage image = makeTestImage();
+        ElevationGrid elevations = ElevationGrid.fromImage(image);
+        assertEquals(70, elevations.getWidth());
+        assertEquals(130, elevations.getHeight());
+        assertEquals(0.0, elevations.get(0, 0), 0.0);
+        assertEquals(69 * 3 + 129 * 7, elevations.get(69, 129), 0.0);
+        assertEquals(5 * 3 + 100 * 7, elevations.get(5, 100), 0.0);
+    }
+
+    public void testParallelDecodeMatchesSerial() throws Exception {
+        BufferedImage image = makeTestImage();
+        ElevationGrid serial = ElevationGrid.fromImage(image);
+        final int[] lastUpdate = new int[1];
+        ElevationGrid parallel = ElevationGrid.fromImage(image, 4, new LoadProgress() {
+            public synchronized void update(int rowsDone, int rows) {
+                assertEquals(130, rows);
+                lastUpdate[0] = Math.max(lastUpdate[0], rowsDone);
+            }
+        });
+        for (int y = 0; y < image.getHeight(); y++) {
+            for (int x = 0; x < image.getWidth(); x++) {
+                assertEquals(serial.get(x, y), parallel.get(x, y), 0.0);
+            }
+        }
+        assertEquals(130, lastUpdate[0]);
+    }
+
+    public void testTiffRegionSourceDecodesWithOneReaderPerThread() throws Exception {
+        File file = new File("src/test/resources/Phobos_ME_HRSC_DEM_Global_2ppd.tiff");
+        ElevationGrid expected = ElevationGrid.fromImage(ImageIO.read(file));
+        final TiffRegionSource tiff = new TiffRegionSource(file);
+        final AtomicInteger readers = new AtomicInteger();
+        RegionSource counted = new RegionSource() {
+            public int getWidth() {
+                return tiff.getWidth();
+            }
+
+            public int getHeight() {
+                return tiff.getHeight();
+            }
+
+            public int getTileHeight() {
+                return 1; //as many strips as possible
+            }
+
+            public int getDataType() {
+                return tiff.getDataType();
+            }
+
+            public Reader open() throws IOException {
+                readers.incrementAndGet();
+                return tiff.open();
+            }
+        };
+        ElevationGrid parallel = ElevationGrid.fromSource(counted, 3, null);
+        assertTrue(readers.get() <= 3); //one per thread, not one per strip
+        for (int y = 0; y < expected.getHeight(); y++) {
+            for (int x = 0; x < expected.getWidth(); x++) {
+                assertEquals(expected.get(x, y), parallel.get(x, y), 0.0);
+            }
+        }
+    }
+
+    public void testOffHeapGridMatchesHeapGrid() throws Exception {
+        BufferedImage image = makeTestImage();
+        ElevationGrid inHeap = ElevationGrid.fromImage(image);
+        OffHeapElevationGrid offHeap = OffHeapElevationGrid.fromImage(image, 4, null);
+        float[] row = new float[image.getWidth()];
+        for (int y = 0; y < image.getHeight(); y++) {
+            offHeap.readRow(0, y, row.length, row, 0);
+            for (int x = 0; x < image.getWidth(); x++) {
+                assertEquals(inHeap.get(x, y), offHeap.get(x, y), 0.0);
+                assertEquals(inHeap.get(x, y), offHeap.get(offHeap.index(x, y)), 0.0);
+                assertEquals(inHeap.get(x, y), row[x], 0.0);
+            }
+        }
+        assertEquals(0, offHeap.getMemoryFootprint());
+
+        assertTrue(ElevationGrid.fitsInArray(46340, 46340));
+        assertFalse(ElevationGrid.fitsInArray(46341, 46341));
+        assertEquals(50000L * 50000 - 1, GridTransform.IDENTITY.toGridIndex(49999.5, 49999.5, 50000, 50000)); //no int overflow
+    }
+
+    public void testMappedElevationGridMatchesImage() throws Exception {
+        BufferedImage image = makeTestImage();
+        File sidecar = File.createTempFile("mars", ".elev");
+        sidecar.deleteOnExit();
+        BinaryMapFormat.write(image, GridTransform.IDENTITY, null, Double.NaN, sidecar);
+        MappedElevationGrid mapped = MappedElevationGrid.open(sidecar);
+        ElevationGrid inHeap = ElevationGrid.fromImage(image);
+        assertEquals(inHeap.getWidth(), mapped.getWidth());
+        assertEquals(inHeap.getHeight(), mapped.getHeight());
+        for (int y = 0; y < image.getHeight(); y++) {
+            for (int x = 0; x < image.getWidth(); x++) {
+                assertEquals(inHeap.get(x, y), mapped.get(x, y), 0.0);
+            }
+        }
+    }
+
+    public void testBinaryMapRoundTrip() throws Exception {
+        BufferedImage image = makeTestImage();
+        File file = File.createTempFile("mars", BinaryMapFormat.EXTENSION);
+        file.deleteOnExit();
+        GridTransform transform = new GridTransform(new double[] {100, 0, 0, -100, -3500, 6500});
+        BinaryMapFormat.write(image, transform, null, -32768, file);
+
+        BinaryTerrainMap heap = new BinaryTerrainMap();
+        heap.initMap(file.getPath());
+        BinaryTerrainMap mapped = new BinaryTerrainMap();
+        mapped.setStorage(ElevationStorage.MAPPED);
+        mapped.initMap(file.getPath());
+        assertTrue(mapped.verifyChecksum());
+        assertEquals(-32768.0, heap.getNoData(), 0.0);
+        assertEquals(70.0, heap.getWidth(), 0.0);
+
+        //world (x, y) lies in cell (floor((x + 3500) / 100), floor((6500 - y) / 100))
+        assertEquals(35 * 3 + 64 * 7, heap.getValue(0, 50), 0.0);
+        assertEquals(35 * 3 + 64 * 7, mapped.getValue(0, 50), 0.0);
+        assertEquals(35 * 3 + 64 * 7, mapped.getValue(0, 1), 0.0);
+        assertEquals(35 * 3 + 65 * 7, mapped.getValue(0, 0), 0.0);
+        assertEquals(0.0, heap.getMinValue(), 0.0);
+        assertEquals(69 * 3 + 129 * 7, mapped.getMaxValue(), 0.0);
+        assertTrue(Double.isNaN(heap.coordinateConvert(new Coordinate(1, 1))[0])); //written without a geographic transform
+    }
+
+    public void testCoordinateConvertUsesMapTransform() throws Exception {
+        File file = File.createTempFile("mars", BinaryMapFormat.EXTENSION);
+        file.deleteOnExit();
+        GridTransform geographic = new GridTransform(new double[] {0.5, 0, 0, -0.5, -179.75, 89.75}); //half-degree pixels
+        BinaryMapFormat.write(makeTestImage(), GridTransform.IDENTITY, geographic, Double.NaN, file);
+        BinaryTerrainMap map = new BinaryTerrainMap();
+        map.initMap(file.getPath());
+
+        double[] latLong = map.coordinateConvert(new Coordinate(10, 20));
+        assertEquals(89.75 - 10, latLong[0], 1e-12);
+        assertEquals(-179.75 + 5, latLong[1], 1e-12);
+        assertEquals(35 * 3 + 64 * 7, map.getValue(35.5, 64.99), 0.0); //identity transform: map coordinates are pixels
+    }
+
+    public void testBinaryMapRejectsCorruptSamples() throws Exception {
+        File file = File.createTempFile("mars", BinaryMapFormat.EXTENSION);
+        file.deleteOnExit();
+        BinaryMapFormat.write(makeTestImage(), GridTransform.IDENTITY, null, Double.NaN, file);
+        RandomAccessFile out = new RandomAccessFile(file, "rw");
+        try {
+            out.seek(file.length() - 1);
+            out.write(0x7F);
+        } finally {
+            out.close();
+        }
+        try {
+            new BinaryTerrainMap().initMap(file.getPath());
+            fail("A binary map whose samples don't match its checksum should not load");
+        } catch (IOException expectedException) {
+            //expected
+        }
+    }
+
+    public void testElevationsInAreaClipsToMap() throws Exception {
+        File file = File.createTempFile("mars", BinaryMapFormat.EXTENSION);
+        file.deleteOnExit();
+        BinaryMapFormat.write(makeTestImage(), GridTransform.IDENTITY, null, Double.NaN, file);
+        for (ElevationStorage storage : new ElevationStorage[] {ElevationStorage.HEAP, ElevationStorage.MAPPED}) {
+            BinaryTerrainMap map = new BinaryTerrainMap();
+            map.setStorage(storage);
+            map.initMap(file.getPath());
+
+            double[][] area = map.getElevationsInArea(new Coordinate(65, -2), 8, 4); //hangs off the right and top
+            assertEquals(65 * 3 + 1 * 7, area[0][0], 0.0); //first row is the top of the area, y = 1
+            assertEquals(69 * 3, area[1][4], 0.0); //second row is y = 0
+            assertTrue(Double.isNaN(area[0][5])); //x = 70 is off the map
+            assertTrue(Double.isNaN(area[2][0])); //y = -1 is off the map
+
+            float[] flat = map.getElevationsInArea(-1, 128, 3, 3, null); //hangs off the left and bottom
+            assertTrue(Float.isNaN(flat[0]));
+            assertEquals(1 * 3 + 128 * 7, flat[2], 0.0f);
+            assertEquals(0 * 3 + 129 * 7, flat[4], 0.0f);
+            assertTrue(Float.isNaN(flat[7]));
+        }
+    }
+
+    public void testBatchReadsMatchGetValue() throws Exception {
+        File file = File.createTempFile("mars", BinaryMapFormat.EXTENSION);
+        file.deleteOnExit();
+        BinaryMapFormat.write(makeTestImage(), new GridTransform(new double[] {0.5, 0, 0, 0.5, 0, 0}), null, Double.NaN, file);
+        final BinaryTerrainMap map = new BinaryTerrainMap();
+        map.initMap(file.getPath());
+
+        double[] xs = {0, 10.25, 34.9, 35, -1, 69};
+        double[] ys = {0, 20.75, 64.9, 1, 5, 70};
+        double[] values = new double[xs.length];
+        map.getValues(xs, ys, values, xs.length);
+        for (int i = 0; i < xs.length; i++) {
+            double expected;
+            try {
+                expected = map.getValue(xs[i], ys[i]);
+            } catch (Exception e) {
+                expected = TerrainMap.NO_VALUE;
+            }
+            assertEquals(expected, values[i], 0.0);
+        }
+        assertTrue(Double.isNaN(values[3])); //grid column 70 is off the map
+
+        int[] indices = {0, 70 * 2 + 3, 70 * 130 - 1, 70 * 130, -1};
+        map.getValues(indices, values, indices.length);
+        assertEquals(0.0, values[0], 0.0);
+        assertEquals(3 * 3 + 2 * 7, values[1], 0.0);
+        assertEquals(69 * 3 + 129 * 7, values[2], 0.0);
+        assertTrue(Double.isNaN(values[3]));
+        assertTrue(Double.isNaN(values[4]));
+
+        final int[] visited = new int[1];
+        map.forEachInRect(-5, 125, 10, 10, new ElevationVisitor() {
+            public void visit(int x, int y, double elevation) {
+                assertEquals(x * 3 + y * 7, elevation, 0.0);
+                visited[0]++;
+            }
+        });
+        assertEquals(5 * 5, visited[0]);
+    }
+
+    public void testSampleNeverThrows() throws Exception {
+        File file = File.createTempFile("mars", BinaryMapFormat.EXTENSION);
+        file.deleteOnExit();
+        BinaryMapFormat.write(makeTestImage(), GridTransform.IDENTITY, null, Double.NaN, file);
+        BinaryTerrainMap map = new BinaryTerrainMap();
+        map.initMap(file.getPath());
+
+        assertEquals(map.getValue(12, 34), map.sample(12, 34), 0.0);
+        assertEquals(map.getValue(69.5, 129.5), map.sample(69.5, 129.5), 0.0);
+        assertTrue(Double.isNaN(map.sample(-1, 5)));
+        assertTrue(Double.isNaN(map.sample(70, 5))); //passes getValue's bounds check but has no cell
+        assertTrue(Double.isNaN(map.sample(5, 131)));
+
+        BinaryTerrainMap unloaded = new BinaryTerrainMap();
+        assertTrue(Double.isNaN(unloaded.sample(12, 34)));
+        try {
+            unloaded.getValue(12, 34);
+            fail("An unloaded map should not answer getValue");
+        } catch (IllegalStateException expected) {
+        }
+    }
+
+    public void testMortonGridMatchesRowMajor() throws Exception {
+        BufferedImage image = makeTestImage();
+        ElevationGrid rowMajor = ElevationGrid.fromImage(image);
+        MortonElevationGrid morton = MortonElevationGrid.fromImage(image);
+        MortonLayout layout = morton.getLayout();
+        boolean[] used = new boolean[layout.arraySize()];
+        for (int y = 0; y < image.getHeight(); y++) {
+            for (int x = 0; x < image.getWidth(); x++) {
+                assertEquals(rowMajor.get(x, y), morton.get(x, y), 0.0);
+                assertEquals(rowMajor.get(y * 70 + x), morton.get(y * 70 + x), 0.0);
+                int index = layout.arrayIndex(x, y);
+                assertFalse(used[index]); //no two cells share a slot
+                used[index] = true;
+            }
+        }
+        assertEquals(3 * 5 * MortonLayout.TILE_SIZE * MortonLayout.TILE_SIZE, layout.size()); //70x130 rounds up to 3x5 tiles
+        assertEquals(layout.index(0, 1), layout.index(1, 0) + 1); //vertical neighbors are adjacent in memory too
+    }
+
+    public void testLatticeLayoutExtendsTheCellLayout() {
+        MortonLayout cells = new MortonLayout(70, 130);
+        LatticeLayout lattice = new LatticeLayout(cells);
+        assertEquals(71, lattice.getWidth());
+        assertEquals(131, lattice.getHeight());
+        boolean[] used = new boolean[(int) lattice.size()];
+        for (int y = 0; y <= 130; y++) {
+            for (int x = 0; x <= 70; x++) {
+                int index = (int) lattice.index(x, y);
+                assertFalse(used[index]); //no two coordinates share a slot
+                used[index] = true;
+                if (x < 70 && y < 130) {
+                    assertEquals(cells.index(x, y), lattice.index(x, y)); //cells keep the grid's own index
+                }
+            }
+        }
+    }
+
+    public void testDerivedDataCacheReusesAndInvalidatesEntries() throws Exception {
+        File directory = File.createTempFile("mars", "cache");
+        directory.delete();
+        File source = File.createTempFile("mars", ".tif");
+        source.deleteOnExit();
+        Files.write(source.toPath(), new byte[] {1, 2, 3});
+        DerivedDataCache cache = new DerivedDataCache(directory);
+
+        final int[] writes = new int[1];
+        DerivedDataCache.EntryWriter writer = new DerivedDataCache.EntryWriter() {
+            public void write(FileChannel out) throws IOException {
+                writes[0]++;
+                out.write(ByteBuffer.wrap(new byte[] {42}));
+            }
+        };
+        assertEquals(42, cache.get(source, "test", "a", writer).get(0));
+        assertEquals(42, cache.get(source, "test", "a", writer).get(0));
+        assertEquals(1, writes[0]);
+        File first = cache.getEntryFile(source, "test", "a");
+        cache.get(source, "test", "b", writer); //other parameters get their own entry
+        assertEquals(2, writes[0]);
+        assertTrue(first.isFile());
+
+        Files.write(source.toPath(), new byte[] {4, 5, 6, 7});
+        source.setLastModified(source.lastModified() + 2000);
+        cache.get(source, "test", "a", writer);
+        assertEquals(3, writes[0]);
+        assertTrue(first.isFile()); //entries for the old contents stay until they are cleaned up
+        assertEquals(2, cache.removeStaleEntries());
+        assertFalse(first.isFile());
+        assertTrue(cache.getEntryFile(source, "test", "a").isFile());
+
+        for (File entry : directory.listFiles()) {
+            entry.delete();
+        }
+        directory.delete();
+    }
+
+    public void testDerivedDataCacheWritesSharedEntryOnce() throws Exception {
+        final File source = File.createTempFile("mars", ".tif");
+        source.deleteOnExit();
+        Files.write(source.toPath(), new byte[] {9, 8, 7});
+        final DerivedDataCache cache = new DerivedDataCache(Files.createTempDirectory("mars-cache").toFile());
+        final AtomicInteger writes = new AtomicInteger();
+        final DerivedDataCache.EntryWriter slowWriter = new DerivedDataCache.EntryWriter() {
+            public void write(FileChannel out) throws IOException {
+                writes.incrementAndGet();
+                try {
+                    Thread.sleep(50); //long enough for the other threads to find the entry missing
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+                out.write(ByteBuffer.wrap(new byte[] {1, 2, 3, 4}));
+            }
+        };
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        List<Future<File>> results = new ArrayList<Future<File>>();
+        for (int i = 0; i < 4; i++) {
+            results.add(pool.submit(new Callable<File>() {
+                public File call() throws Exception {
+                    return cache.getFile(source, "elevations", "format=2", slowWriter);
+                }
+            }));
+        }
+        for (Future<File> result : results) {
+            assertEquals(4, result.get().length());
+        }
+        pool.shutdown();
+        assertEquals(1, writes.get());
+    }
+
+    public void testElevationPyramidRoundTrips() throws Exception {
+        File file = File.createTempFile("mars", BinaryMapFormat.EXTENSION);
+        file.deleteOnExit();
+        BinaryMapFormat.write(makeTestImage(), GridTransform.IDENTITY, null, Double.NaN, file);
+        BinaryTerrainMap map = new BinaryTerrainMap();
+        map.initMap(file.getPath());
+        ElevationPyramid built = new ElevationPyramid(map.getElevationGrid());
+
+        File stored = File.createTempFile("mars", ".pyramid");
+        stored.deleteOnExit();
+        RandomAccessFile out = new RandomAccessFile(stored, "rw");
+        try {
+            built.write(out.getChannel());
+        } finally {
+            out.close();
+        }
+        ElevationPyramid read = ElevationPyramid.read(ByteBuffer.wrap(Files.readAllBytes(stored.toPath())), map.getElevationGrid());
+        assertEquals(built.getLevelCount(), read.getLevelCount());
+        assertEquals(built.getMean(), read.getMean(), 0.0);
+        assertEquals(built.getMax(3, 40, 50, 60), read.getMax(3, 40, 50, 60), 0.0);
+        assertEquals(built.getTileMin(1, 1, 2), read.getTileMin(1, 1, 2), 0.0);
+    }
+
+    public void testMapStatisticsMatchSerialScan() throws Exception {
+        File file = File.createTempFile("mars", BinaryMapFormat.EXTENSION);
+        file.deleteOnExit();
+        BinaryMapFormat.write(makeTestImage(), GridTransform.IDENTITY, null, 0, file); //pixel (0, 0) is no data
+        BinaryTerrainMap map = new BinaryTerrainMap();
+        map.initMap(file.getPath());
+        MapStatistics stats = MapStatistics.compute(map.getElevationGrid(), map.getNoData(), Double.NaN, Double.NaN);
+
+        assertEquals(1, stats.getNoDataCount());
+        assertEquals(70 * 130 - 1, stats.getCount());
+        assertEquals(3.0, stats.getMin(), 0.0);
+        assertEquals(69 * 3 + 129 * 7, stats.getMax(), 0.0);
+        double sum = 0;
+        for (int y = 0; y < 130; y++) {
+            for (int x = 0; x < 70; x++) {
+                sum += x * 3 + y * 7;
+            }
+        }
+        assertEquals(sum / stats.getCount(), stats.getMean(), 1e-9);
+        long histogramTotal = 0;
+        for (long bin : stats.getElevationHistogram()) histogramTotal += bin;
+        assertEquals(stats.getCount(), histogramTotal);
+
+        //every edge but the two touching (0, 0): 69 * 130 across at atan(3), 70 * 129 down at atan(7)
+        long[] slopes = stats.getSlopeHistogram();
+        assertEquals(69 * 130 - 1, slopes[(int) Math.toDegrees(Math.atan(3))]);
+        assertEquals(70 * 129 - 1, slopes[(int) Math.toDegrees(Math.atan(7))]);
+        assertEquals(69 * 130 + 70 * 129 - 2, stats.getSlopeCount());
+        assertEquals(Math.toDegrees(Math.atan(7)), stats.getMaxSlope(), 1e-9);
+        assertEquals(0.0, stats.getTraversableFraction(70), 0.0);
+        assertEquals(1.0, stats.getTraversableFraction(90), 0.0);
+
+        DerivedDataCache cache = new DerivedDataCache(Files.createTempDirectory("mars-cache").toFile());
+        DerivedDataCache previous = DerivedDataCache.getShared();
+        DerivedDataCache.setShared(cache);
+        try {
+            map.getStatistics(); //computed and stored
+            BinaryTerrainMap reloaded = new BinaryTerrainMap();
+            reloaded.initMap(file.getPath());
+            MapStatistics cached = reloaded.getStatistics(); //read back
+            assertEquals(stats.getMean(), cached.getMean(), 1e-9);
+            assertEquals(stats.getHistogramMin(), cached.getHistogramMin(), 0.0);
+            assertEquals(stats.getElevationHistogram()[17], cached.getElevationHistogram()[17]);
+            assertEquals(stats.getSlopeCount(), cached.getSlopeCount());
+        } finally {
+            DerivedDataCache.setShared(previous);
+        }
+    }
+
+    public void testTiledElevationGridStaysWithinBudget() throws Exception {
+        BufferedImage image = makeTestImage();
+        long budget = 3 * 16 * 16 * 4; //three float tiles
+        TiledElevationGrid tiled = new TiledElevationGrid(image, 16, budget);
+        for (int y = 0; y < image.getHeight(); y++) {
+            for (int x = 0; x < image.getWidth(); x++) {
+                assertEquals(x * 3 + y * 7, tiled.get(x, y), 0.0);
+            }
+        }
+        assertTrue(tiled.getMemoryFootprint() <= budget);
+    }
+
+    public void testMapRegistrySharesOneInstancePerFile() throws Exception {
+        GridTerrainMap first = MapRegistry.getMap("src/test/resources/Phobos_ME_HRSC_DEM_Global_2ppd.tiff");
+        GridTerrainMap second = MapRegistry.getMap("src/test/../test/resources/Phobos_ME_HRSC_DEM_Global_2ppd.tiff");
+        assertSame(first, second);
+    }
+
+    public void testMapRegistryKeysMapsByStorage() throws Exception {
+        File file = File.createTempFile("mars", BinaryMapFormat.EXTENSION);
+        file.deleteOnExit();
+        BinaryMapFormat.write(makeTestImage(), GridTransform.IDENTITY, null, Double.NaN, file);
+        ElevationStorage previous = GridTerrainMap.getDefaultStorage();
+        try {
+            GridTerrainMap.setDefaultStorage(ElevationStorage.HEAP);
+            GridTerrainMap heap = MapRegistry.getMap(file.getPath());
+            GridTerrainMap.setDefaultStorage(ElevationStorage.OFF_HEAP);
+            GridTerrainMap offHeap = MapRegistry.getMap(file.getPath());
+            assertNotSame(heap, offHeap);
+            assertEquals(ElevationStorage.HEAP, heap.getStorage());
+            assertEquals(ElevationStorage.OFF_HEAP, offHeap.getStorage());
+            assertSame(offHeap, MapRegistry.getMap(file.getPath()));
+            GridTerrainMap.setDefaultStorage(ElevationStorage.HEAP);
+            assertSame(heap, MapRegistry.getMap(file.getPath()));
+        } finally {
+            GridTerrainMap.setDefaultStorage(previous);
+        }
+    }
+
+    public void testMapRegistryDropsMapsOverBudget() throws Exception {
+        long oldBudget = MapRegistry.getMemoryBudget();
+        try {
+            MapRegistry.clear();
+            MapRegistry.setMemoryBudget(0);
+            GridTerrainMap map = MapRegistry.getMap("src/test/resources/Phobos_ME_HRSC_DEM_Global_2ppd.tiff");
+            assertNotNull(map);
+            assertEquals(1, MapRegistry.getLoadedMaps().size()); //the map just loaded is never dropped
+        } finally {
+            MapRegistry.setMemoryBudget(oldBudget);
+        }
+    }
+
+    public void testFootprintCountsDirectMappedAndDerivedBytes() throws Exception {
+        BufferedImage image = makeTestImage();
+        OffHeapElevationGrid offHeap = OffHeapElevationGrid.fromImage(image, 1, null);
+        assertEquals(70L * 130 * offHeap.getSampleBytes(), offHeap.getDirectBytes());
+        assertEquals(0, offHeap.getMappedBytes());
+
+        File file = File.createTempFile("mars", BinaryMapFormat.EXTENSION);
+        file.deleteOnExit();
+        BinaryMapFormat.write(image, GridTransform.IDENTITY, null, Double.NaN, file);
+        BinaryTerrainMap map = new BinaryTerrainMap();
+        map.setStorage(ElevationStorage.MAPPED);
+        map.initMap(file.getPath());
+        long samples = 70L * 130 * ((OffHeapElevationGrid) map.getElevationGrid()).getSampleBytes();
+        assertEquals(samples, map.getMappedBytes());
+        assertEquals(0, map.getDirectBytes());
+        assertEquals(samples, map.getMemoryFootprint()); //nothing on the heap, but not free either
+        PlateauRuns.get(map);
+        assertEquals(70L * 130 * 8, map.getDirectBytes()); //2 ints per cell
+        assertEquals(samples + 70L * 130 * 8, map.getMemoryFootprint());
+    }
+
+    public void testPreloadedMapIsSharedWithGetMap() throws Exception {
+        File file = File.createTempFile("mars", BinaryMapFormat.EXTENSION);
+        file.deleteOnExit();
+        BinaryMapFormat.write(makeTestImage(), GridTransform.IDENTITY, null, Double.NaN, file);
+        MapRegistry.clear();
+        Future<GridTerrainMap> load = MapRegistry.preload(file.getPath());
+        GridTerrainMap map = MapRegistry.getMap(file.getPath());
+        assertSame(map, load.get());
+        assertTrue(map instanceof BinaryTerrainMap);
+
+        Future<GridTerrainMap> missing = MapRegistry.preload(file.getPath() + ".missing");
+        try {
+            missing.get();
+            fail("Preloading a missing map should fail through its Future");
+        } catch (ExecutionException expectedException) {
+            //expected
+        }
+    }
+
+    public void testReloadSwapsInNewVersion() throws Exception {
+        File file = File.createTempFile("mars", BinaryMapFormat.EXTENSION);
+        file.deleteOnExit();
+        BufferedImage image = makeTestImage();
+        BinaryMapFormat.write(image, GridTransform.IDENTITY, null, Double.NaN, file);
+        MapRegistry.clear();
+        GridTerrainMap old = MapRegistry.getMap(file.getPath());
+        double before = old.getValue(10, 20);
+
+        image.getRaster().setSample(10, 20, 0, 4000);
+        BinaryMapFormat.write(image, GridTransform.IDENTITY, null, Double.NaN, file); //moved into place, as the old map is still mapped
+        GridTerrainMap reloaded = MapRegistry.reload(file.getPath()).get();
+        assertNotSame(old, reloaded);
+        assertTrue(reloaded.getVersion() > old.getVersion());
+        assertSame(reloaded, MapRegistry.getMap(file.getPath()));
+        assertEquals(4000.0, reloaded.getValue(10, 20));
+        assertEquals(before, old.getValue(10, 20)); //searches holding the old version still see it
+
+        try {
+            MapRegistry.reload(file.getPath() + ".missing").get();
+            fail("Reloading a missing map should fail through its Future");
+        } catch (ExecutionException expectedException) {
+            //expected
+        }
+        assertSame(reloaded, MapRegistry.getMap(file.getPath()));
+    }
+
+    public void testGeotiffCannotBeReloaded() throws Exception {
+        GeoTIFF newMap = new GeoTIFF();
+        newMap.initMap("src/test/resources/Phobos_ME_HRSC_DEM_Global_2ppd.tiff");
+        try {
+            newMap.initMap("src/test/resources/Phobos_ME_HRSC_DEM_Global_2ppd.tiff");
+            fail("A loaded GeoTIFF should not be reloaded in place");
+        } catch (IllegalStateException expectedException) {
+            //expected
+        }
+    }
+
+    public void testElevationPyramidMatchesFullScan() throws Exception {
+        BufferedImage image = new BufferedImage(100, 77, BufferedImage.TYPE_USHORT_GRAY);
+        Random random = new Random(5);
+        for (int y = 0; y < image.getHeight(); y++) {
+            for (int x = 0; x < image.getWidth(); x++) {
+                image.getRaster().setSample(x, y, 0, random.nextInt(5000));
+            }
+        }
+        ElevationGrid elevations = ElevationGrid.fromImage(image);
+        ElevationPyramid pyramid = new ElevationPyramid(elevations);
+
+        for (int i = 0; i < 200; i++) {
+            int x = random.nextInt(110) - 5;
+            int y = random.nextInt(85) - 5;
+            int w = random.nextInt(60) + 1;
+            int h = random.nextInt(60) + 1;
+            double min = Double.NaN;
+            double max = Double.NaN;
+            for (int j = Math.max(y, 0); j < Math.min(y + h, 77); j++) {
+                for (int k = Math.max(x, 0); k < Math.min(x + w, 100); k++) {
+                    double value = elevations.get(k, j);
+                    if (!(value >= min)) min = value;
+                    if (!(value <= max)) max = value;
+                }
+            }
+            assertEquals(min, pyramid.getMin(x, y, w, h), 0.0);
+            assertEquals(max, pyramid.getMax(x, y, w, h), 0.0);
+        }
+    }
+
+    public void testQuantizedElevationGridIsExactForShortSamples() throws Exception {
+        BufferedImage image = makeTestImage();
+        QuantizedElevationGrid quantized = QuantizedElevationGrid.fromImage(image);
+        assertEquals(0.0, quantized.getQuantizationError(), 0.0);
+        for (int y = 0; y < image.getHeight(); y++) {
+            for (int x = 0; x < image.getWidth(); x++) {
+                assertEquals(x * 3 + y * 7, quantized.get(x, y), 0.0);
+            }
+        }
+    }
+
+    public void testQuantizedElevationGridStaysWithinErrorBound() throws Exception {
+        WritableRaster raster = Raster.createWritableRaster(new BandedSampleModel(DataBuffer.TYPE_DOUBLE, 50, 40, 1), null);
+        Random random = new Random(11);
+        for (int y = 0; y < 40; y++) {
+            for (int x = 0; x < 50; x++) {
+                raster.setSample(x, y, 0, random.nextDouble() * 21000 - 8000);
+            }
+        }
+        ComponentColorModel colors = new ComponentColorModel(ColorSpace.getInstance(ColorSpace.CS_GRAY),
+                false, false, Transparency.OPAQUE, DataBuffer.TYPE_DOUBLE);
+        QuantizedElevationGrid quantized = QuantizedElevationGrid.fromImage(new BufferedImage(colors, raster, false, null));
+
+        double bound = quantized.getQuantizationError();
+        assertTrue(bound > 0 && bound < 0.5);
+        for (int y = 0; y < 40; y++) {
+            for (int x = 0; x < 50; x++) {
+                assertEquals(raster.getSampleDouble(x, y, 0), quantized.get(x, y), bound + 1e-9);
+            }
+        }
+    }
+
+    public void testQuantizedElevationGridLeavesOutNoData() throws Exception {
+        WritableRaster raster = Raster.createWritableRaster(new BandedSampleModel(DataBuffer.TYPE_FLOAT, 50, 40, 1), null);
+        Random random = new Random(12);
+        for (int y = 0; y < 40; y++) {
+            for (int x = 0; x < 50; x++) {
+                raster.setSample(x, y, 0, (x + y) % 9 == 0 ? -Float.MAX_VALUE : (float) (random.nextDouble() * 21000 - 8000));
+            }
+        }
+        ComponentColorModel colors = new ComponentColorModel(ColorSpace.getInstance(ColorSpace.CS_GRAY),
+                false, false, Transparency.OPAQUE, DataBuffer.TYPE_FLOAT);
+        double noData = -3.40282346638529e+38; //as GDAL writes it: not quite the float sentinel
+        QuantizedElevationGrid quantized = QuantizedElevationGrid.fromImage(new BufferedImage(colors, raster, false, null), noData);
+
+        double bound = quantized.getQuantizationError();
+        assertTrue(bound > 0 && bound < 0.5); //the sentinel doesn't stretch the range
+        for (int y = 0; y < 40; y++) {
+            for (int x = 0; x < 50; x++) {
+                if ((x + y) % 9 == 0) {
+                    assertTrue(Double.isNaN(quantized.get(x, y)));
+                } else {
+                    assertEquals(raster.getSampleDouble(x, y, 0), quantized.get(x, y), bound + 1e-9);
+                }
+            }
+        }
+    }
+
     public void testGeotiffMaxHeight() throws Exception{
         GeoTIFF newMap = new GeoTIFF();
         newMap.initMap("src/test/resources/Phobos_ME_HRSC_DEM_Global_2ppd.tiff");